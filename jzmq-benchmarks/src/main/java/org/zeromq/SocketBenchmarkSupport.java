@@ -0,0 +1,106 @@
+package org.zeromq;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Common state for the ZMQ.Socket benchmarks: a connected PAIR of sockets over
+ * the selected transport, plus heap and direct buffers of the selected size.
+ *
+ * Every benchmark operation moves exactly one message from {@link #sender} to
+ * {@link #receiver} on the benchmark thread. The path being measured is used on
+ * one side, and the cheapest copying path (send/recv into a preallocated
+ * byte[]) on the other, so results of one class are comparable across paths
+ * and across builds.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class SocketBenchmarkSupport {
+
+    @Param({ "inproc", "ipc", "tcp" })
+    public String transport;
+
+    @Param({ "1", "64", "1024", "16384", "131072", "1048576" })
+    public int size;
+
+    protected ZMQ.Context context;
+    protected ZMQ.Socket sender;
+    protected ZMQ.Socket receiver;
+
+    protected byte[] heapOut;
+    protected byte[] heapIn;
+    protected ByteBuffer directOut;
+    protected ByteBuffer directIn;
+
+    private File ipcFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        context = ZMQ.context(1);
+        receiver = context.socket(ZMQ.PAIR);
+        sender = context.socket(ZMQ.PAIR);
+        receiver.setLinger(0);
+        sender.setLinger(0);
+
+        receiver.connect(bind(sender));
+
+        heapOut = new byte[size];
+        Arrays.fill(heapOut, (byte) 'x');
+        heapIn = new byte[size];
+        directOut = ByteBuffer.allocateDirect(size);
+        directOut.put(heapOut);
+        directOut.clear();
+        directIn = ByteBuffer.allocateDirect(size);
+
+        // make sure the pipe is up before the first measured operation
+        sender.send(heapOut, 0, size, 0);
+        receiver.recv(heapIn, 0, size, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.close();
+        receiver.close();
+        context.term();
+        if (ipcFile != null) {
+            ipcFile.delete();
+        }
+    }
+
+    private String bind(ZMQ.Socket socket) throws Exception {
+        if ("inproc".equals(transport)) {
+            String endpoint = "inproc://jzmq-benchmark";
+            socket.bind(endpoint);
+            return endpoint;
+        } else if ("ipc".equals(transport)) {
+            ipcFile = File.createTempFile("jzmq-benchmark", ".ipc");
+            ipcFile.delete();
+            String endpoint = "ipc://" + ipcFile.getAbsolutePath();
+            socket.bind(endpoint);
+            return endpoint;
+        } else if ("tcp".equals(transport)) {
+            int port = socket.bindToRandomPort("tcp://127.0.0.1");
+            return "tcp://127.0.0.1:" + port;
+        }
+        throw new IllegalArgumentException("Unknown transport: " + transport);
+    }
+}
@@ -0,0 +1,36 @@
+package org.zeromq;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Measures the JNI receive paths of ZMQ.Socket. Each message is fed from the
+ * sending side with send(byte[], int, int, int) from a preallocated array.
+ */
+public class SocketRecvBenchmark extends SocketBenchmarkSupport {
+
+    @Benchmark
+    public byte[] recv() {
+        sender.send(heapOut, 0, size, 0);
+        return receiver.recv(0);
+    }
+
+    @Benchmark
+    public int recvByteArray() {
+        sender.send(heapOut, 0, size, 0);
+        return receiver.recv(heapIn, 0, size, 0);
+    }
+
+    @Benchmark
+    public int recvZeroCopy() {
+        sender.send(heapOut, 0, size, 0);
+        directIn.clear();
+        return receiver.recvZeroCopy(directIn, size, 0);
+    }
+
+    @Benchmark
+    public int recvByteBuffer() {
+        sender.send(heapOut, 0, size, 0);
+        directIn.clear();
+        return receiver.recvByteBuffer(directIn, 0);
+    }
+}
@@ -0,0 +1,29 @@
+package org.zeromq;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Measures the JNI send paths of ZMQ.Socket. Each message is drained on the
+ * receiving side with recv(byte[], int, int, int) into a preallocated array.
+ */
+public class SocketSendBenchmark extends SocketBenchmarkSupport {
+
+    @Benchmark
+    public int sendByteArray() {
+        sender.send(heapOut, 0, size, 0);
+        return receiver.recv(heapIn, 0, size, 0);
+    }
+
+    @Benchmark
+    public int sendZeroCopy() {
+        sender.sendZeroCopy(directOut, size, 0);
+        return receiver.recv(heapIn, 0, size, 0);
+    }
+
+    @Benchmark
+    public int sendByteBuffer() {
+        directOut.clear();
+        sender.sendByteBuffer(directOut, 0);
+        return receiver.recv(heapIn, 0, size, 0);
+    }
+}
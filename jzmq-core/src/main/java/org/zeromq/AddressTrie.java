@@ -0,0 +1,359 @@
+package org.zeromq;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Set of IPv4 and IPv6 addresses and CIDR ranges, matched with a compressed
+ * binary trie over the 128 bits of the address. IPv4 is kept in the
+ * IPv4-mapped IPv6 range, so "::ffff:10.1.2.3" matches "10.0.0.0/8" too.
+ * Entries that are not IP addresses are matched as exact strings.
+ *
+ * Lookups take no lock and do not allocate, and cost at most one step per
+ * distinct prefix on the path whatever the number of entries; adding is
+ * synchronized.
+ */
+final class AddressTrie
+{
+    private static final int BITS = 128;
+    // ::ffff:0:0/96, the IPv4-mapped range
+    private static final long V4_MAPPED = 0xffff00000000L;
+
+    private static final class Node
+    {
+        private final long hi;
+        private final long lo;
+        private final int len;
+        // Nodes are complete before they are linked, so readers see them whole
+        private volatile boolean terminal;
+        private volatile Node zero;
+        private volatile Node one;
+
+        private Node(long hi, long lo, int len)
+        {
+            this.hi = len >= 64 ? hi : hi & ~(-1L >>> len);
+            this.lo = len >= 128 ? lo : len <= 64 ? 0 : lo & ~(-1L >>> (len - 64));
+            this.len = len;
+        }
+
+        private Node child(int bit)
+        {
+            return bit == 0 ? zero : one;
+        }
+
+        private void setChild(int bit, Node node)
+        {
+            if (bit == 0)
+                zero = node;
+            else
+                one = node;
+        }
+    }
+
+    /**
+     * Scratch space to parse an address into, one per thread.
+     */
+    private static final class Parser
+    {
+        private long hi;
+        private long lo;
+        private final int[] groups = new int[8];
+    }
+
+    private static final ThreadLocal<Parser> parsers = new ThreadLocal<Parser>()
+    {
+        @Override
+        protected Parser initialValue()
+        {
+            return new Parser();
+        }
+    };
+
+    private volatile Node root;
+    private final ConcurrentMap<String, Boolean> names = new ConcurrentHashMap<String, Boolean>();
+    private volatile boolean empty = true;
+
+    /**
+     * Add an address, a CIDR range such as "10.0.0.0/8" or "fe80::/10", or
+     * any other string to match exactly.
+     *
+     * @throws IllegalArgumentException
+     *             if the entry has a prefix length but is not a valid range
+     */
+    synchronized void add(String entry)
+    {
+        Parser parser = parsers.get();
+        int slash = entry.indexOf('/');
+        int end = slash < 0 ? entry.length() : slash;
+        int bits = parse(entry, end, parser);
+        if (bits < 0) {
+            if (slash >= 0)
+                throw new IllegalArgumentException("Invalid address range " + entry);
+            names.put(entry, Boolean.TRUE);
+            empty = false;
+            return;
+        }
+        int len = BITS;
+        if (slash >= 0) {
+            int prefix;
+            try {
+                prefix = Integer.parseInt(entry.substring(slash + 1));
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid address range " + entry);
+            }
+            if (prefix < 0 || prefix > bits)
+                throw new IllegalArgumentException("Invalid address range " + entry);
+            len = BITS - bits + prefix;
+        }
+        insert(parser.hi, parser.lo, len);
+        empty = false;
+    }
+
+    /**
+     * Check that an entry would be accepted by add.
+     *
+     * @throws IllegalArgumentException
+     *             if it would not
+     */
+    static void check(String entry)
+    {
+        new AddressTrie().add(entry);
+    }
+
+    boolean isEmpty()
+    {
+        return empty;
+    }
+
+    /**
+     * @return true if the address is one of the entries or in one of the ranges
+     */
+    boolean contains(String address)
+    {
+        if (address == null)
+            return false;
+        if (!names.isEmpty() && names.containsKey(address))
+            return true;
+        Parser parser = parsers.get();
+        if (parse(address, address.length(), parser) < 0)
+            return false;
+        long hi = parser.hi;
+        long lo = parser.lo;
+        Node node = root;
+        while (node != null) {
+            if (commonLength(node.hi, node.lo, hi, lo) < node.len)
+                return false;
+            if (node.terminal)
+                return true;
+            if (node.len == BITS)
+                return false;
+            node = node.child(bit(hi, lo, node.len));
+        }
+        return false;
+    }
+
+    private void insert(long hi, long lo, int len)
+    {
+        Node parent = null;
+        int side = 0;
+        Node node = root;
+        while (true) {
+            if (node == null) {
+                Node leaf = new Node(hi, lo, len);
+                leaf.terminal = true;
+                link(parent, side, leaf);
+                return;
+            }
+            int common = Math.min(commonLength(node.hi, node.lo, hi, lo), Math.min(node.len, len));
+            if (common == node.len) {
+                if (common == len) {
+                    node.terminal = true;
+                    return;
+                }
+                parent = node;
+                side = bit(hi, lo, node.len);
+                node = node.child(side);
+                continue;
+            }
+            // The new entry branches off inside this node's prefix
+            Node split = new Node(hi, lo, common);
+            split.setChild(bit(node.hi, node.lo, common), node);
+            if (common == len) {
+                split.terminal = true;
+            }
+            else {
+                Node leaf = new Node(hi, lo, len);
+                leaf.terminal = true;
+                split.setChild(bit(hi, lo, common), leaf);
+            }
+            link(parent, side, split);
+            return;
+        }
+    }
+
+    private void link(Node parent, int side, Node node)
+    {
+        if (parent == null)
+            root = node;
+        else
+            parent.setChild(side, node);
+    }
+
+    private static int bit(long hi, long lo, int index)
+    {
+        return (int) (index < 64 ? hi >>> (63 - index) : lo >>> (127 - index)) & 1;
+    }
+
+    private static int commonLength(long hi1, long lo1, long hi2, long lo2)
+    {
+        long diff = hi1 ^ hi2;
+        if (diff != 0)
+            return Long.numberOfLeadingZeros(diff);
+        return 64 + Long.numberOfLeadingZeros(lo1 ^ lo2);
+    }
+
+    /**
+     * Parse the IPv4 or IPv6 address in s[0, end) into parser.hi and parser.lo.
+     *
+     * @return 32 for IPv4, 128 for IPv6, or -1 if it is not an IP address
+     */
+    private static int parse(String s, int end, Parser parser)
+    {
+        int start = 0;
+        // Brackets and zone ids, as in "[fe80::1%eth0]"
+        if (end > 0 && s.charAt(0) == '[' && s.charAt(end - 1) == ']') {
+            start = 1;
+            end--;
+        }
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == '%') {
+                end = i;
+                break;
+            }
+        }
+        if (start == end)
+            return -1;
+        if (s.indexOf(':', start) < 0 || s.indexOf(':', start) >= end) {
+            long v4 = parseV4(s, start, end);
+            if (v4 < 0)
+                return -1;
+            parser.hi = 0;
+            parser.lo = V4_MAPPED | v4;
+            return 32;
+        }
+        return parseV6(s, start, end, parser) ? BITS : -1;
+    }
+
+    /**
+     * @return the address as an unsigned int, or -1 if it is not a dotted quad
+     */
+    private static long parseV4(String s, int start, int end)
+    {
+        long address = 0;
+        int octets = 0;
+        int i = start;
+        while (i < end) {
+            int value = 0;
+            int digits = 0;
+            while (i < end && digits < 4) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9')
+                    break;
+                value = value * 10 + (c - '0');
+                digits++;
+                i++;
+            }
+            if (digits == 0 || value > 255 || ++octets > 4)
+                return -1;
+            address = address << 8 | value;
+            if (i < end) {
+                if (s.charAt(i) != '.' || i == end - 1)
+                    return -1;
+                i++;
+            }
+        }
+        return octets == 4 ? address : -1;
+    }
+
+    private static boolean parseV6(String s, int start, int end, Parser parser)
+    {
+        int[] groups = parser.groups;
+        int count = 0;
+        int gap = -1; // Where "::" is, in groups
+        int i = start;
+        if (end - start >= 2 && s.charAt(i) == ':' && s.charAt(i + 1) == ':') {
+            gap = 0;
+            i += 2;
+        }
+        else if (s.charAt(i) == ':') {
+            return false;
+        }
+        while (i < end) {
+            // An IPv4 tail such as "::ffff:10.1.2.3"
+            int dot = -1;
+            for (int j = i; j < end && s.charAt(j) != ':'; j++) {
+                if (s.charAt(j) == '.') {
+                    dot = j;
+                    break;
+                }
+            }
+            if (dot >= 0) {
+                long v4 = parseV4(s, i, end);
+                if (v4 < 0 || count > 6)
+                    return false;
+                groups[count++] = (int) (v4 >>> 16);
+                groups[count++] = (int) (v4 & 0xffff);
+                i = end;
+                break;
+            }
+            int value = 0;
+            int digits = 0;
+            while (i < end && s.charAt(i) != ':') {
+                int digit = Character.digit(s.charAt(i), 16);
+                if (digit < 0 || ++digits > 4)
+                    return false;
+                value = value << 4 | digit;
+                i++;
+            }
+            if (digits == 0 || count == 8)
+                return false;
+            groups[count++] = value;
+            if (i < end) {
+                i++; // ':'
+                if (i < end && s.charAt(i) == ':') {
+                    if (gap >= 0)
+                        return false;
+                    gap = count;
+                    i++;
+                }
+                else if (i == end) {
+                    return false; // Trailing single ':'
+                }
+            }
+        }
+        if (gap < 0 ? count != 8 : count > 7)
+            return false;
+        long hi = 0;
+        long lo = 0;
+        int zeros = 8 - count;
+        int position = 0;
+        for (int g = 0; g <= count; g++) {
+            if (g == gap) {
+                for (int z = 0; z < zeros; z++) {
+                    hi = hi << 16 | lo >>> 48;
+                    lo <<= 16;
+                    position++;
+                }
+            }
+            if (g < count) {
+                hi = hi << 16 | lo >>> 48;
+                lo = lo << 16 | groups[g];
+                position++;
+            }
+        }
+        parser.hi = hi;
+        parser.lo = lo;
+        return position == 8;
+    }
+}
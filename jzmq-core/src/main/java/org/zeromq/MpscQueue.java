@@ -0,0 +1,96 @@
+package org.zeromq;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock free queue for any number of producer threads and one
+ * consumer thread. Each slot carries a sequence number telling whether it
+ * is free to write or ready to read, so producers only contend on a single
+ * compare-and-set and offer and poll do not allocate.
+ */
+final class MpscQueue<E>
+{
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // Next slot to claim, shared by the producers
+    private volatile long head; // Next slot to read, written by the consumer only
+
+    /**
+     * @param capacity
+     *            number of elements the queue holds, rounded up to a power of two of at least 2
+     */
+    MpscQueue(int capacity)
+    {
+        if (capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        // With one slot, "ready to read" and "free on the next lap" would be the same sequence
+        int size = Math.max(2, Integer.highestOneBit(capacity));
+        if (size < capacity)
+            size <<= 1;
+        buffer = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        mask = size - 1;
+    }
+
+    /**
+     * Producer side, safe from any thread.
+     * @return false if the queue is full
+     */
+    boolean offer(E e)
+    {
+        long t;
+        int i;
+        while (true) {
+            t = tail.get();
+            i = (int) t & mask;
+            long delta = sequences.get(i) - t;
+            if (delta == 0) {
+                if (tail.compareAndSet(t, t + 1))
+                    break;
+            }
+            else if (delta < 0)
+                return false; // The slot still holds an element from the previous lap
+        }
+        buffer.lazySet(i, e);
+        // Hands the slot to the consumer
+        sequences.lazySet(i, t + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side.
+     * @return the oldest element, or null if the queue is empty
+     */
+    E poll()
+    {
+        long h = head;
+        int i = (int) h & mask;
+        if (sequences.get(i) != h + 1)
+            return null;
+        E e = buffer.get(i);
+        buffer.lazySet(i, null);
+        // Hands the slot back to the producers for the next lap
+        sequences.lazySet(i, h + mask + 1);
+        head = h + 1;
+        return e;
+    }
+
+    /**
+     * Consumer side.
+     */
+    boolean isEmpty()
+    {
+        long h = head;
+        return sequences.get((int) h & mask) != h + 1;
+    }
+
+    int capacity()
+    {
+        return mask + 1;
+    }
+}
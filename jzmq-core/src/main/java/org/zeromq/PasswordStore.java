@@ -0,0 +1,197 @@
+package org.zeromq;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PLAIN credentials from a name=password file, kept as salted SHA-256
+ * hashes rather than clear text. The file is checked for changes by a
+ * background thread; a reload builds a new snapshot and swaps it in, so
+ * checks never wait for it and never see a half loaded file. Hashes of
+ * entries whose password did not change are kept across reloads.
+ *
+ * A fast hash rather than a slow key derivation is used on purpose: the
+ * file itself is clear text, the hashes only keep passwords out of heap
+ * dumps, and every handshake pays for one.
+ */
+final class PasswordStore
+{
+    private static final int SALT_SIZE = 16;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // A changed file is loaded once it was left alone this long, so it is not read half written
+    private static final long STABLE_MILLIS = 1000;
+
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>()
+    {
+        @Override
+        protected MessageDigest initialValue()
+        {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final File file;
+    private final SecureRandom random = new SecureRandom();
+    // user name to salt followed by hash, replaced whole on reload
+    private volatile Map<String, byte[]> hashes = new HashMap<String, byte[]>();
+    private long modified; // Guarded by this
+    private ScheduledExecutorService reloader; // Guarded by this
+
+    PasswordStore(File file)
+    {
+        this.file = file;
+        reload();
+    }
+
+    /**
+     * @return true if the user exists with that password
+     */
+    boolean check(String username, String password)
+    {
+        if (username == null || password == null)
+            return false;
+        byte[] stored = hashes.get(username);
+        return stored != null && matches(stored, password);
+    }
+
+    int size()
+    {
+        return hashes.size();
+    }
+
+    /**
+     * Check the file for changes every period, in a daemon thread.
+     */
+    synchronized void startReloading(long periodMillis)
+    {
+        if (reloader != null)
+            return;
+        reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "ZAuth password reload");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reloader.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                reloadIfChanged();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stopReloading()
+    {
+        if (reloader != null) {
+            reloader.shutdownNow();
+            reloader = null;
+        }
+    }
+
+    /**
+     * Reload the file if it changed and has been stable for a second.
+     *
+     * @return true if it was reloaded
+     */
+    synchronized boolean reloadIfChanged()
+    {
+        long lastModified = file.lastModified();
+        long age = System.currentTimeMillis() - lastModified;
+        if (lastModified <= modified || age <= STABLE_MILLIS)
+            return false;
+        reload();
+        return true;
+    }
+
+    /**
+     * Read the file again. If it cannot be read, as while an editor replaces
+     * it, the previous credentials are kept and the next check tries again;
+     * the store is only left empty when the first load fails.
+     */
+    synchronized void reload()
+    {
+        long lastModified = file.lastModified();
+        Map<String, byte[]> previous = hashes;
+        Map<String, byte[]> loaded = new HashMap<String, byte[]>();
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    // Skip lines starting with "#" or that do not look like name=value data
+                    int equals = line.indexOf('=');
+                    if (line.length() == 0 || line.charAt(0) == '#' || equals <= 0 || equals == line.length() - 1)
+                        continue;
+                    String username = line.substring(0, equals);
+                    String password = line.substring(equals + 1);
+                    byte[] old = previous.get(username);
+                    loaded.put(username, old != null && matches(old, password) ? old : hash(password));
+                }
+            }
+            finally {
+                br.close();
+            }
+        }
+        catch (IOException e) {
+            // Keep what was there rather than lose logins to a partial read
+            return;
+        }
+        modified = lastModified;
+        hashes = loaded;
+    }
+
+    private byte[] hash(String password)
+    {
+        byte[] salt = new byte[SALT_SIZE];
+        random.nextBytes(salt);
+        byte[] digest = digest(salt, password);
+        byte[] stored = new byte[SALT_SIZE + digest.length];
+        System.arraycopy(salt, 0, stored, 0, SALT_SIZE);
+        System.arraycopy(digest, 0, stored, SALT_SIZE, digest.length);
+        return stored;
+    }
+
+    private static boolean matches(byte[] stored, String password)
+    {
+        byte[] digest = digest(stored, password);
+        // Constant time, so the comparison does not tell how much matched
+        int diff = stored.length ^ (SALT_SIZE + digest.length);
+        for (int i = 0; i < digest.length && SALT_SIZE + i < stored.length; i++)
+            diff |= stored[SALT_SIZE + i] ^ digest[i];
+        return diff == 0;
+    }
+
+    /**
+     * @return the hash of the salt, the first SALT_SIZE bytes of salted, and the password
+     */
+    static byte[] digest(byte[] salted, String password)
+    {
+        MessageDigest digest = digests.get();
+        digest.update(salted, 0, SALT_SIZE);
+        digest.update(password.getBytes(UTF8));
+        return digest.digest();
+    }
+}
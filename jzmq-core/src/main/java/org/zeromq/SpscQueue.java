@@ -0,0 +1,77 @@
+package org.zeromq;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock free queue for one producer thread and one consumer thread
+ * at a time. The ring is allocated once, so offer and poll do not allocate.
+ */
+final class SpscQueue<E>
+{
+    private final AtomicReferenceArray<E> buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // Next slot to read, written by the consumer
+    private final AtomicLong tail = new AtomicLong(); // Next slot to write, written by the producer
+
+    /**
+     * @param capacity
+     *            number of elements the queue holds, rounded up to a power of two
+     */
+    SpscQueue(int capacity)
+    {
+        if (capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        buffer = new AtomicReferenceArray<E>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Producer side.
+     * @return false if the queue is full
+     */
+    boolean offer(E e)
+    {
+        long t = tail.get();
+        if (t - head.get() > mask)
+            return false;
+        buffer.lazySet((int) t & mask, e);
+        // Publishes the element: the store above is ordered before this one
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side.
+     * @return the oldest element, or null if the queue is empty
+     */
+    E poll()
+    {
+        long h = head.get();
+        if (h == tail.get())
+            return null;
+        int i = (int) h & mask;
+        E e = buffer.get(i);
+        buffer.lazySet(i, null);
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    boolean isEmpty()
+    {
+        return head.get() == tail.get();
+    }
+
+    boolean isFull()
+    {
+        return tail.get() - head.get() > mask;
+    }
+
+    int capacity()
+    {
+        return mask + 1;
+    }
+}
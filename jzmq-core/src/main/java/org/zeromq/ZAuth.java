@@ -1,10 +1,14 @@
 package org.zeromq;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.zeromq.ZMQ.PollItem;
 import org.zeromq.ZMQ.Poller;
@@ -16,6 +20,10 @@ import org.zeromq.ZThread.IAttachedRunnable;
  * Note that libzmq provides four levels of security: default NULL (which zauth
  * does not see), and authenticated NULL, PLAIN, and CURVE, which zauth can see.
  *
+ * ZAP requests are handled by a pool of worker threads, and decisions can be
+ * cached for a while so that clients reconnecting at once are answered
+ * without checking their credentials again.
+ *
  * Based on <a
  * href="http://github.com/zeromq/czmq/blob/master/src/zauth.c">zauth.c</a> in
  * czmq
@@ -25,8 +33,11 @@ import org.zeromq.ZThread.IAttachedRunnable;
 public class ZAuth {
 	public static final String CURVE_ALLOW_ANY = "*";
 	
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     private Socket pipe; //pipe to backend agent
     private boolean verbose;
+    private final DecisionCache cache = new DecisionCache();
 
     /**
      * A small class for working with ZAP requests and replies. 
@@ -47,36 +58,37 @@ public class ZAuth {
 
         static ZAPRequest recvRequest(Socket handler) {
             if (ZMQ.getMajorVersion() == 4) {
-                ZMsg request = ZMsg.recvMsg(handler);
                 ZAPRequest self = new ZAPRequest();
 
                 //  Store handler socket so we can send a reply easily
                 self.handler = handler;
 
                 //  Get all standard frames off the handler socket
-                self.version = request.popString();
-                self.sequence = request.popString();
-                self.domain = request.popString();
-                self.address = request.popString();
-                self.identity = request.popString();
-                self.mechanism = request.popString();
+                self.version = handler.recvStr(UTF8);
+                self.sequence = handler.recvStr(UTF8);
+                self.domain = handler.recvStr(UTF8);
+                self.address = handler.recvStr(UTF8);
+                self.identity = handler.recvStr(UTF8);
+                self.mechanism = handler.recvStr(UTF8);
 
                 //  If the version is wrong, we're linked with a bogus libzmq, so die
                 assert (self.version.equals("1.0"));
 
                 // Get mechanism-specific frames
                 if (self.mechanism.equals("PLAIN")) {
-                    self.username = request.popString();
-                    self.password = request.popString();
+                    self.username = handler.recvStr(UTF8);
+                    self.password = handler.recvStr(UTF8);
                 } else if (self.mechanism.equals("CURVE")) {
-                	ZFrame frame = request.pop();
-                	byte[] clientPublicKey = frame.getData();
+                	byte[] clientPublicKey = handler.recv(0);
                 	self.clientKey = ZMQ.Curve.z85Encode(clientPublicKey);
                 } else if (self.mechanism.equals("GSSAPI")) {
-                    self.principal = request.popString();
+                    self.principal = handler.recvStr(UTF8);
                 }
 
-                request.destroy();
+                // Skip any frames we do not know about
+                while (handler.hasReceiveMore()) {
+                    handler.recv(0);
+                }
                 return self;
             } else {
                 return null;
@@ -93,14 +105,137 @@ public class ZAuth {
                 return;
             }
 
-            ZMsg msg = new ZMsg();
-            msg.add("1.0");
-            msg.add(request.sequence);
-            msg.add(statusCode);
-            msg.add(statusText);
-            msg.add("");
-            msg.add("");
-            msg.send(request.handler);
+            Socket handler = request.handler;
+            handler.sendMore("1.0");
+            handler.sendMore(request.sequence);
+            handler.sendMore(statusCode);
+            handler.sendMore(statusText);
+            handler.sendMore("");
+            handler.send("");
+        }
+    }
+
+    /**
+     * Recent decisions by mechanism, address and credentials. Entries expire
+     * after the TTL so that changes to password files and certificate
+     * folders are seen; changes made through the API clear the cache.
+     *
+     * PLAIN credentials are only kept as a salted digest, and only once they
+     * were accepted, so the cache keeps no passwords and guessing does not
+     * fill it.
+     */
+    private static class DecisionCache {
+        private static class Decision {
+            private final boolean allowed;
+            private final long expires;
+
+            private Decision(boolean allowed, long expires) {
+                this.allowed = allowed;
+                this.expires = expires;
+            }
+        }
+
+        private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+        private final ConcurrentMap<String, Decision> decisions = new ConcurrentHashMap<String, Decision>();
+        private final byte[] salt = new byte[16];
+        // Bumped by every clear, so a decision made before it is not kept
+        private final AtomicInteger generation = new AtomicInteger();
+        private final AtomicLong hits = new AtomicLong();
+        private volatile int maxEntries;
+        private volatile long ttlNanos; // 0 when caching is off
+
+        private DecisionCache() {
+            new SecureRandom().nextBytes(salt);
+        }
+
+        private void configure(int maxEntries, long ttlMillis) {
+            this.maxEntries = maxEntries;
+            this.ttlNanos = maxEntries > 0 ? ttlMillis * 1000000L : 0;
+            clear();
+        }
+
+        /**
+         * @return the generation to pass to put for a decision made from now on
+         */
+        private int generation() {
+            return generation.get();
+        }
+
+        /**
+         * @return the decision made for the key, or null if there is none still valid
+         */
+        private Boolean get(String key) {
+            if (ttlNanos == 0 || key == null) {
+                return null;
+            }
+            Decision decision = decisions.get(key);
+            if (decision == null) {
+                return null;
+            }
+            if (System.nanoTime() - decision.expires >= 0) {
+                decisions.remove(key, decision);
+                return null;
+            }
+            hits.incrementAndGet();
+            return decision.allowed;
+        }
+
+        /**
+         * Remember a decision, unless the cache was cleared since generation was read.
+         */
+        private void put(String key, boolean allowed, int generation) {
+            long ttl = ttlNanos;
+            if (ttl == 0 || key == null) {
+                return;
+            }
+            if (decisions.size() >= maxEntries) {
+                evict();
+            }
+            Decision decision = new Decision(allowed, System.nanoTime() + ttl);
+            decisions.put(key, decision);
+            // A clear may have run between the check and the put; clear bumps first, so this sees it
+            if (this.generation.get() != generation) {
+                decisions.remove(key, decision);
+            }
+        }
+
+        private void evict() {
+            long now = System.nanoTime();
+            Iterator<Map.Entry<String, Decision>> it = decisions.entrySet().iterator();
+            while (it.hasNext()) {
+                if (now - it.next().getValue().expires >= 0) {
+                    it.remove();
+                }
+            }
+            // Nothing expired, start over rather than grow
+            if (decisions.size() >= maxEntries) {
+                decisions.clear();
+            }
+        }
+
+        private void clear() {
+            generation.incrementAndGet();
+            decisions.clear();
+        }
+
+        /**
+         * @return the key of a request, or null if its decision must not be cached
+         */
+        private String keyOf(ZAPRequest request) {
+            StringBuilder key = new StringBuilder(request.mechanism).append('\0').append(request.domain).append('\0')
+                    .append(request.address);
+            if (request.mechanism.equals("PLAIN")) {
+                byte[] digest = PasswordStore.digest(salt, request.username + '\0' + request.password);
+                // One char per byte, the digest is not meant to be read
+                key.append('\0').append(new String(digest, LATIN1));
+            } else if (request.mechanism.equals("CURVE")) {
+                key.append('\0').append(request.clientKey);
+            } else if (!request.mechanism.equals("NULL")) {
+                // GSSAPI goes through the application callback every time
+                return null;
+            }
+            return key.toString();
         }
     }
 
@@ -112,23 +247,29 @@ public class ZAuth {
      */
     private static class ZAuthAgent implements IAttachedRunnable {
 
+        private static final long PASSWORDS_CHECK_MILLIS = 1000;
+
         private Socket pipe; //pipe back to application api
-        private Socket handler; //ZAP handler socket
-        private boolean verbose; //trace output to stdout
-        private ConcurrentMap<String, String> whitelist = new ConcurrentHashMap<String, String>(); //whitelisted addresses
-        private ConcurrentMap<String, String> blacklist = new ConcurrentHashMap<String, String>(); //blacklisted addresses
-        private ConcurrentMap<String, String> passwords = new ConcurrentHashMap<String, String>(); // PLAIN passwords, if loaded
+        private Socket handler; //ZAP handler socket, requests are queued to the workers
+        private Socket workers; //backend to the worker sockets
+        private Socket[] workerPipes; //pipes to the worker threads
+        private final int nWorkers;
+        private final DecisionCache cache;
+        private volatile boolean verbose; //trace output to stdout
+        private final AddressTrie whitelist = new AddressTrie(); //whitelisted addresses and ranges
+        private final AddressTrie blacklist = new AddressTrie(); //blacklisted addresses and ranges
+        private volatile PasswordStore passwords; // PLAIN passwords, if loaded
         private boolean terminated; //did api ask us to quit?
-        private File passwords_file;
-        private long passwords_modified;
         final private ZAuth auth; //our parent auth, used for authorization callbacks
-        private boolean allow_any;
-        private ZCertStore certStore = null;
+        private volatile boolean allow_any;
+        private volatile ZCertStore certStore = null;
         
         
 
-        private ZAuthAgent(ZAuth auth) {
+        private ZAuthAgent(ZAuth auth, int nWorkers) {
             this.auth = auth;
+            this.nWorkers = nWorkers;
+            this.cache = auth.cache;
         }
 
         /**
@@ -151,26 +292,34 @@ public class ZAuth {
                 if (verbose) {
                 	System.out.printf("ZAuth: - whitelisting ipaddress=%s\n", address);
                 }
-                whitelist.put(address, "OK");
+                whitelist.add(address);
+                cache.clear();
             } else if (command.equals("DENY")) {
                 String address = msg.popString();
                 if (verbose) {
                 	System.out.printf("ZAuth: - blacklisting ipaddress=%s\n", address);
                 }            	
-                blacklist.put(address, "OK");
+                blacklist.add(address);
+                cache.clear();
             } else if (command.equals("PLAIN")) {
                 // For now we don't do anything with domains
                 String domain = msg.popString();
-                // Get password file and load into HashMap
-                // If the file doesn't exist we'll get an empty map
+                // Get password file and load it, checking for changes in the background
+                // If the file doesn't exist we'll get an empty store
                 String filename = msg.popString();
-                this.passwords_file = new File(filename);
+                File passwordsFile = new File(filename);
 
                 if (verbose) {
-            		System.out.println("ZAuth: - activated plain-mechanism with password-file:"+this.passwords_file.getAbsolutePath());
+            		System.out.println("ZAuth: - activated plain-mechanism with password-file:"+passwordsFile.getAbsolutePath());
             	}
 
-                this.loadPasswords(true);
+                PasswordStore passwords = new PasswordStore(passwordsFile);
+                passwords.startReloading(PASSWORDS_CHECK_MILLIS);
+                if (this.passwords != null) {
+                    this.passwords.stopReloading();
+                }
+                this.passwords = passwords;
+                cache.clear();
 
                 ZMsg reply = new ZMsg();
                 reply.add("OK");
@@ -183,17 +332,33 @@ public class ZAuth {
             	if (location.equals(CURVE_ALLOW_ANY)){
             		allow_any=true;
             	} else {
+            		if (this.certStore != null) {
+            			this.certStore.stopWatching();
+            		}
             		this.certStore = new ZCertStore(location);
+            		// handshakes then look keys up without scanning the folder
+            		this.certStore.startWatching();
             		this.allow_any = false;
             	}
+            	cache.clear();
             } else if (command.equals("GSSAPI")) {
                 //for now, we don't do anything with domains
                 String domain = msg.popString();
+            } else if (command.equals("CACHE")) {
+                int maxEntries = Integer.parseInt(msg.popString());
+                long ttl = Long.parseLong(msg.popString());
+                cache.configure(maxEntries, ttl);
             } else if (command.equals("VERBOSE")) {
                 String verboseStr = msg.popString();
                 this.verbose = verboseStr.equals("true");
             } else if (command.equals("TERMINATE")) {
                 this.terminated = true;
+                if (this.certStore != null) {
+                    this.certStore.stopWatching();
+                }
+                if (this.passwords != null) {
+                    this.passwords.stopReloading();
+                }
                 ZMsg reply = new ZMsg();
                 reply.add("OK");
                 reply.send(pipe);
@@ -205,18 +370,32 @@ public class ZAuth {
             return true;
         }
 
-        private boolean authenticate() {
+        /**
+         * Answer one ZAP request; called from the worker threads.
+         */
+        private boolean authenticate(Socket handler) {
             ZAPRequest request = ZAPRequest.recvRequest(handler);
             if (request == null) {
                 return false;
             }
 
+            int generation = cache.generation();
+            String key = cache.keyOf(request);
+            Boolean cached = cache.get(key);
+            if (cached != null) {
+                if (verbose) {
+                    System.out.printf("I: %s (cached) address = %s\n", cached ? "ALLOWED" : "DENIED", request.address);
+                }
+                reply(request, cached);
+                return true;
+            }
+
             //is the address explicitly whitelisted or blacklisted?
             boolean allowed = false;
             boolean denied = false;
 
             if (!whitelist.isEmpty()) {
-                if (whitelist.containsKey(request.address)) {
+                if (whitelist.contains(request.address)) {
                     allowed = true;
                     if (verbose) {
                         System.out.printf("I: PASSED (whitelist) address = %s\n", request.address);
@@ -228,7 +407,7 @@ public class ZAuth {
                     }
                 }
             } else if (!blacklist.isEmpty()) {
-                if (blacklist.containsKey(request.address)) {
+                if (blacklist.contains(request.address)) {
                     denied = true;
                     if (verbose) {
                         System.out.printf("I: DENIED (blacklist) address = %s\n", request.address);
@@ -264,21 +443,26 @@ public class ZAuth {
                 }
             }
 
+            // Denied passwords are not kept, or guessing them would flush the cache
+            if (allowed || !request.mechanism.equals("PLAIN")) {
+                cache.put(key, allowed, generation);
+            }
+            reply(request, allowed);
+
+            return true;
+        }
+
+        private void reply(ZAPRequest request, boolean allowed) {
             if (allowed) {
                 ZAPRequest.reply(request, "200", "OK");
             } else {
                 ZAPRequest.reply(request, "400", "NO ACCESS");
             }
-
-            return true;
         }
 
         private boolean authenticatePlain(ZAPRequest request) {
-            // Refresh the passwords map if the file changed
-            this.loadPasswords(false);
-
-            String password = this.passwords.get(request.username);
-            if (password != null && password.equals(request.password)) {
+            PasswordStore passwords = this.passwords;
+            if (passwords != null && passwords.check(request.username, request.password)) {
                 if (this.verbose) {
                     System.out.printf("ZAUTH I: ALLOWED (PLAIN) username=%s password=%s\n",
                                       request.username, request.password);
@@ -302,8 +486,9 @@ public class ZAuth {
         		}
         		return true;
         	} else {
-        		if (this.certStore!=null) {
-        			if (this.certStore.containsPublicKey(request.clientKey)) {
+        		ZCertStore certStore = this.certStore;
+        		if (certStore!=null) {
+        			if (certStore.containsPublicKey(request.clientKey)) {
         				// login allowed
         				if (verbose) {
         					System.out.printf("zauth: - allowed (CURVE) client_key=%s\n",request.clientKey);	
@@ -321,12 +506,19 @@ public class ZAuth {
         	return false;
         }
 
+        /**
+         * @return true if a whole request can be sent to the workers without blocking
+         */
+        private boolean workersWritable() {
+            return (workers.getEvents() & Poller.POLLOUT) != 0;
+        }
+
         @Override
         public void run(Object[] args, ZContext ctx, Socket pipe) {
             this.pipe = pipe;
 
             //create ZAP handler and get ready for requests
-            handler = ctx.createSocket(ZMQ.REP);
+            handler = ctx.createSocket(ZMQ.ROUTER);
             try {
                 handler.bind("inproc://zeromq.zap.01");
             } catch (ZMQException e) {
@@ -334,10 +526,28 @@ public class ZAuth {
                 return;
             }
 
+            //requests are passed on to the workers, and their replies back
+            workers = ctx.createSocket(ZMQ.DEALER);
+            String workersAddress = String.format("inproc://zauth-workers-%d", workers.hashCode());
+            workers.bind(workersAddress);
+            workerPipes = new Socket[nWorkers];
+            for (int i = 0; i < nWorkers; i++) {
+                workerPipes[i] = ZThread.fork(ctx, new ZAuthWorker(), workersAddress);
+                //wait until the worker is connected
+                workerPipes[i].recv(0);
+            }
+
             pipe.send("OK");
 
-            PollItem[] pollItems = {new PollItem(pipe, Poller.POLLIN), new PollItem(handler, Poller.POLLIN)};
+            //requests are only taken while a worker has room for one, so the agent never blocks sending to the
+            //workers while their replies wait to be read; replies go to the ROUTER, which never blocks
+            PollItem[] forwarding = {new PollItem(pipe, Poller.POLLIN), new PollItem(handler, Poller.POLLIN),
+                    new PollItem(workers, Poller.POLLIN)};
+            PollItem[] waiting = {new PollItem(pipe, Poller.POLLIN),
+                    new PollItem(workers, Poller.POLLIN | Poller.POLLOUT)};
             while (!terminated && !Thread.currentThread().isInterrupted()) {
+                boolean writable = workersWritable();
+                PollItem[] pollItems = writable ? forwarding : waiting;
                 int rc = ZMQ.poll(pollItems, -1);
                 if (rc == -1) {
                     break; //interrupt
@@ -350,42 +560,46 @@ public class ZAuth {
                     }
                 }
 
-                if (pollItems[1].isReadable()) {
-                    if (!authenticate()) {
-                        break;
+                if (writable && pollItems[1].isReadable()) {
+                    while (workersWritable() && handler.forward(workers, ZMQ.DONTWAIT) > 0) {
                     }
                 }
-            }
-        }
 
-        private void loadPasswords(boolean initial) {
-            if (!initial) {
-                long lastModified = this.passwords_file.lastModified();
-                long age = System.currentTimeMillis() - lastModified;
-                if (lastModified > this.passwords_modified && age > 1000) {
-                    // File has been modified and is stable, clear hashmap
-                    this.passwords.clear();
-                } else {
-                    return;
+                if (pollItems[pollItems.length - 1].isReadable()) {
+                    while (workers.forward(handler, ZMQ.DONTWAIT) > 0) {
+                    }
                 }
             }
 
-            this.passwords_modified = this.passwords_file.lastModified();
-            try {
-                BufferedReader br = new BufferedReader(new FileReader(this.passwords_file));
-                String line;
-                while ((line = br.readLine()) != null) {
-                    // Skip lines starting with "#" or that do not look like name=value data
-                    int equals = line.indexOf('=');
-                    if (line.charAt(0) == '#' || equals == -1 || equals == line.length() - 1) {
-                        continue;
+            for (Socket workerPipe : workerPipes) {
+                workerPipe.send("TERMINATE");
+            }
+        }
+
+        /**
+         * Worker thread answering the ZAP requests the agent queues to it.
+         */
+        private class ZAuthWorker implements IAttachedRunnable {
+            @Override
+            public void run(Object[] args, ZContext ctx, Socket pipe) {
+                Socket worker = ctx.createSocket(ZMQ.REP);
+                worker.connect((String) args[0]);
+                pipe.send("OK");
+
+                PollItem[] pollItems = {new PollItem(pipe, Poller.POLLIN), new PollItem(worker, Poller.POLLIN)};
+                while (!Thread.currentThread().isInterrupted()) {
+                    int rc = ZMQ.poll(pollItems, -1);
+                    if (rc == -1 || pollItems[0].isReadable()) {
+                        break; //interrupt or terminated
+
                     }
 
-                    this.passwords.put(line.substring(0, equals), line.substring(equals + 1, line.length()));
+                    if (pollItems[1].isReadable()) {
+                        if (!authenticate(worker)) {
+                            break;
+                        }
+                    }
                 }
-                br.close();
-            } catch (Exception ex) {
-                // Ignore the exception, just don't read the file
             }
         }
     }
@@ -396,7 +610,18 @@ public class ZAuth {
      * behaviour), and all PLAIN and CURVE connections are denied.
      */
     public ZAuth(ZContext ctx) {
-        pipe = ZThread.fork(ctx, new ZAuthAgent(this));
+        this(ctx, 1);
+    }
+
+    /**
+     * Install authentication for the specified context, with ZAP requests
+     * handled by several threads.
+     *
+     * @param workers how many threads answer ZAP requests
+     */
+    public ZAuth(ZContext ctx, int workers) {
+        assert (workers > 0);
+        pipe = ZThread.fork(ctx, new ZAuthAgent(this, workers));
         ZMsg msg = ZMsg.recvMsg(pipe);
         String response = msg.popString();
 
@@ -420,15 +645,18 @@ public class ZAuth {
     }
 
     /**
-     * Allow (whitelist) a single IP address. For NULL, all clients from this
+     * Allow (whitelist) a single IP address, or a CIDR range such as
+     * "10.0.0.0/8" or "fe80::/10". For NULL, all clients from this
      * address will be accepted. For PLAIN and CURVE, they will be allowed to
      * continue with authentication. You can call this method multiple times to
      * whitelist multiple IP addresses. If you whitelist a single address, any
      * non-whitelisted addresses are treated as blacklisted.
      *
+     * @throws IllegalArgumentException if the CIDR range is not valid
      */
     public void allow(String address) {
         assert (address != null);
+        AddressTrie.check(address);
 
         ZMsg msg = new ZMsg();
         msg.add("ALLOW");
@@ -438,13 +666,17 @@ public class ZAuth {
     }
 
     /**
-     * Deny (blacklist) a single IP address. For all security mechanisms, this
+     * Deny (blacklist) a single IP address, or a CIDR range such as
+     * "10.0.0.0/8" or "fe80::/10". For all security mechanisms, this
      * rejects the connection without any further authentication. Use either a
      * whitelist, or a blacklist, not not both. If you define both a whitelist
      * and a blacklist, only the whitelist takes effect.
+     *
+     * @throws IllegalArgumentException if the CIDR range is not valid
      */
     public void deny(String address) {
         assert (address != null);
+        AddressTrie.check(address);
 
         ZMsg msg = new ZMsg();
         msg.add("DENY");
@@ -473,6 +705,33 @@ public class ZAuth {
         msg.destroy();
     }
 
+    /**
+     * Remember up to maxEntries decisions for ttlMillis, keyed by mechanism,
+     * domain, address and credentials. Repeated requests, such as many
+     * clients reconnecting at once, are then answered without checking
+     * again. Changes to password files and certificate folders take up to
+     * the TTL to apply; changes made through this API apply at once. A
+     * maxEntries of 0 turns caching off, which is the default.
+     *
+     * @param maxEntries most decisions remembered
+     * @param ttlMillis how long a decision is remembered
+     */
+    public void configureCache(int maxEntries, long ttlMillis) {
+        ZMsg msg = new ZMsg();
+        msg.add("CACHE");
+        msg.add(Integer.toString(maxEntries));
+        msg.add(Long.toString(ttlMillis));
+        msg.send(pipe);
+        msg.destroy();
+    }
+
+    /**
+     * @return how many ZAP requests were answered from the cache
+     */
+    long cacheHits() {
+        return cache.hits.get();
+    }
+
     /**
      * Configure CURVE authentication 
      *
@@ -517,7 +776,8 @@ public class ZAuth {
     /*
      * Callback for authorizing an authenticated GSS connection.  Returns true 
      * if the connection is authorized, false otherwise.  Default implementation 
-     * authorizes all authenticated connections.
+     * authorizes all authenticated connections. Called from the worker
+     * threads, so it may run for several connections at once.
      */
     protected boolean authenticateGSS(ZAPRequest request) {
         if (verbose) {
@@ -0,0 +1,167 @@
+package org.zeromq;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ZBufferPool keeps direct ByteBuffers for reuse, so frames can be received
+ * and sent from off-heap memory without allocating at steady state. Buffers
+ * come in power-of-two size classes between a minimum and a maximum size.
+ * Each size class is split in stripes picked by thread, which keeps
+ * contention between threads low.
+ */
+public class ZBufferPool
+{
+    private static final int DEFAULT_MIN_SIZE = 64;
+    private static final int DEFAULT_MAX_SIZE = 64 * 1024;
+    private static final int DEFAULT_BUFFERS = 64;
+
+    private final int minShift;
+    private final int maxSize;
+    private final int stripeMask;
+    private final Stripe[][] classes;
+
+    /**
+     * Buffers of one size class held for one group of threads.
+     */
+    private static class Stripe
+    {
+        private final ByteBuffer[] buffers;
+        private int count;
+
+        Stripe(int capacity)
+        {
+            buffers = new ByteBuffer[capacity];
+        }
+
+        synchronized ByteBuffer pop()
+        {
+            if (count == 0)
+                return null;
+            ByteBuffer buffer = buffers[--count];
+            buffers[count] = null;
+            return buffer;
+        }
+
+        synchronized boolean push(ByteBuffer buffer)
+        {
+            if (count == buffers.length)
+                return false;
+            buffers[count++] = buffer;
+            return true;
+        }
+    }
+
+    public ZBufferPool()
+    {
+        this(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_BUFFERS);
+    }
+
+    /**
+     * @param minSize
+     *            size of the smallest buffers, rounded up to a power of two
+     * @param maxSize
+     *            size of the largest buffers, rounded up to a power of two
+     * @param buffersPerStripe
+     *            number of idle buffers kept per size class and stripe
+     */
+    public ZBufferPool(int minSize, int maxSize, int buffersPerStripe)
+    {
+        this(minSize, maxSize, buffersPerStripe, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param minSize
+     *            size of the smallest buffers, rounded up to a power of two
+     * @param maxSize
+     *            size of the largest buffers, rounded up to a power of two
+     * @param buffersPerStripe
+     *            number of idle buffers kept per size class and stripe
+     * @param stripes
+     *            number of stripes per size class, rounded up to a power of
+     *            two; 1 gives a single pool shared by all threads
+     */
+    public ZBufferPool(int minSize, int maxSize, int buffersPerStripe, int stripes)
+    {
+        if (minSize < 1 || maxSize < minSize || maxSize > 1 << 30 || buffersPerStripe < 0 || stripes < 1)
+            throw new IllegalArgumentException("Invalid pool configuration");
+
+        this.minShift = shift(minSize);
+        int maxShift = shift(maxSize);
+        this.maxSize = 1 << maxShift;
+
+        int nstripes = 1 << shift(stripes);
+        this.stripeMask = nstripes - 1;
+        this.classes = new Stripe[maxShift - minShift + 1][nstripes];
+        for (Stripe[] cls : classes) {
+            for (int i = 0; i < nstripes; i++)
+                cls[i] = new Stripe(buffersPerStripe);
+        }
+    }
+
+    /**
+     * @return size of the largest buffers the pool hands out
+     */
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Take a buffer of at least the given size from the pool. The buffer is
+     * positioned at 0 with its limit set to size. Sizes beyond the largest
+     * size class get a new buffer that is not pooled.
+     * @param size
+     *            number of bytes needed
+     * @return direct buffer
+     */
+    public ByteBuffer acquire(int size)
+    {
+        if (size < 0)
+            throw new IllegalArgumentException("Negative buffer size");
+        if (size > maxSize)
+            return ByteBuffer.allocateDirect(size);
+
+        int cls = classOf(size);
+        ByteBuffer buffer = stripe(cls).pop();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(1 << (cls + minShift));
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. Buffers that did not come from a pool
+     * of this shape, or that do not fit because the pool is full, are left
+     * to the garbage collector.
+     * @param buffer
+     *            buffer to give back
+     */
+    public void release(ByteBuffer buffer)
+    {
+        if (buffer == null || !buffer.isDirect())
+            return;
+        int capacity = buffer.capacity();
+        if (capacity > maxSize || Integer.bitCount(capacity) != 1 || capacity < 1 << minShift)
+            return;
+        stripe(classOf(capacity)).push(buffer);
+    }
+
+    private int classOf(int size)
+    {
+        return Math.max(0, shift(size) - minShift);
+    }
+
+    private Stripe stripe(int cls)
+    {
+        return classes[cls][(int) Thread.currentThread().getId() & stripeMask];
+    }
+
+    /**
+     * @return the exponent of the smallest power of two not less than value
+     */
+    private static int shift(int value)
+    {
+        return value <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(value - 1);
+    }
+}
@@ -1,11 +1,20 @@
 package org.zeromq;
 
 import java.io.File;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 /**
  * Simple certstore that manages certificate file in a directory. Those files need to be in ZMP-Format which is created by ZConf.java
  * 
+ * The public keys are kept in an index that lookups read without locking. Watching the directory is opt-in: by
+ * default the directory is still scanned for changes on every lookup, as it always was. Call startWatching() to keep
+ * the index up to date from file system events instead; lookups are then a plain map lookup that never blocks nor
+ * touches the file system, and a certificate is found once the watcher thread has seen it, shortly after it was
+ * written. ZAuth watches the stores it creates.
+ * 
  * @author thomas (dot) trocha (at) gmail (dot) com
  *
  */
@@ -28,8 +37,11 @@ public class ZCertStore {
 	private boolean fileCheckRunning = false;
 	private boolean requestStopThread = false;
 	
-	// save publickey as key and the modified-date in milliseconds as value
-	private Set<String> publicKeys = new HashSet<String>();
+	// z85 public key of each certificate file, guarded by this
+	private Map<File, String> keyByFile = new HashMap<File, String>();
+	// how many certificate files hold each public key, only changed while holding this
+	private volatile ConcurrentMap<String, Integer> publicKeys = new ConcurrentHashMap<String, Integer>();
+	private volatile ZCertStoreWatcher watcher;
 	
 	/**
 	 * Create a CertificationStore at that filesystem location
@@ -83,7 +95,8 @@ public class ZCertStore {
 	/**
 	 * check if a z85-based publickey is in the certstore. 
 	 * 
-	 * if you have no checkthread running this method will scan the cert-folder for changes on every call
+	 * if the folder is not watched and you have no checkthread running this method will scan the cert-folder for
+	 * changes on every call
 	 * 
 	 * @param publicKey
 	 * @return
@@ -93,16 +106,22 @@ public class ZCertStore {
 			throw new RuntimeException("z85 publickeys should have a length of 40bytes but got "+publicKey.length());
 		}
 		
+		if (watcher != null) {
+			// the watcher thread keeps the index current, a miss does not wait for it
+			return publicKeys.containsKey(publicKey);
+		}
+		
 		// if the checkthread is not running we scan the folders on each publickey-check
 		if (!isCheckThreadRunning()){
 			checkAndReload();
 		} 
 		
-		return publicKeys.contains(publicKey);
+		return publicKeys.containsKey(publicKey);
 	}
 	
-	private void loadFiles(String directory) {
-		publicKeys.clear();
+	private synchronized void loadFiles(String directory) {
+		final Map<File, String> newKeyByFile = new HashMap<File, String>();
+		final ConcurrentMap<String, Integer> newPublicKeys = new ConcurrentHashMap<String, Integer>();
 		certCount=0;
 		location = directory;
 		File f = new File(directory);
@@ -119,21 +138,11 @@ public class ZCertStore {
 		traverseDirectory(directory, new IFileVisitor() {
 			@Override
 			public void handleFile(File f) {
-				try {
-					ZConfig zconf = ZConfig.load(f.getAbsolutePath());
-					String publicKey = zconf.getValue("curve/public-key");
-					if (publicKey==null) {
-						System.out.println("Warning!! File has no curve/public-key-element: "+f.getAbsolutePath()+" SKIPPING!");
-						return;
-					}
-					if (publicKey.length()==32) { // we want to store the public-key as Z85-String
-						publicKey=ZMQ.Curve.z85Encode(publicKey.getBytes());
-					}
-					publicKeys.add(publicKey);
+				String publicKey = readPublicKey(f);
+				if (publicKey != null) {
+					newKeyByFile.put(f, publicKey);
+					addKey(newPublicKeys, publicKey);
 					certCount++;
-				} 
-				catch (Exception e) {
-					e.printStackTrace();
 				}
 			}
 			
@@ -142,6 +151,151 @@ public class ZCertStore {
 				fileSize += f.list().length;
 			}
 		});
+		keyByFile = newKeyByFile;
+		publicKeys = newPublicKeys;
+	}
+	
+	/**
+	 * @return the z85 public key of a certificate file, or null if it has none
+	 */
+	private String readPublicKey(File f) {
+		try {
+			ZConfig zconf = ZConfig.load(f.getAbsolutePath());
+			String publicKey = zconf.getValue("curve/public-key");
+			if (publicKey==null) {
+				System.out.println("Warning!! File has no curve/public-key-element: "+f.getAbsolutePath()+" SKIPPING!");
+				return null;
+			}
+			if (publicKey.length()==32) { // we want to store the public-key as Z85-String
+				publicKey=ZMQ.Curve.z85Encode(publicKey.getBytes());
+			}
+			return publicKey;
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	private static void addKey(ConcurrentMap<String, Integer> keys, String publicKey) {
+		Integer count = keys.get(publicKey);
+		keys.put(publicKey, count == null ? 1 : count + 1);
+	}
+	
+	private static void removeKey(ConcurrentMap<String, Integer> keys, String publicKey) {
+		Integer count = keys.get(publicKey);
+		if (count == null || count == 1) {
+			keys.remove(publicKey);
+		} else {
+			keys.put(publicKey, count - 1);
+		}
+	}
+	
+	/**
+	 * Read a certificate file again after it was created or changed, or forget it if it is gone
+	 */
+	synchronized void updateFile(File f) {
+		if (f.isFile() && f.length() == 0) {
+			// an empty file is one being written, it keeps its key until the next event brings the content
+			return;
+		}
+		String publicKey = f.isFile() ? readPublicKey(f) : null;
+		String old = publicKey == null ? keyByFile.remove(f) : keyByFile.put(f, publicKey);
+		if (publicKey != null && publicKey.equals(old)) {
+			return;
+		}
+		// add before remove, so a handshake racing with the event never misses a key that is still there
+		if (publicKey != null) {
+			addKey(publicKeys, publicKey);
+			certCount++;
+		}
+		if (old != null) {
+			removeKey(publicKeys, old);
+			certCount--;
+		}
+	}
+	
+	/**
+	 * Forget a deleted certificate file, or every certificate below a deleted directory
+	 */
+	synchronized void removePath(File path) {
+		String prefix = path.getPath() + File.separator;
+		Iterator<Map.Entry<File, String>> it = keyByFile.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<File, String> entry = it.next();
+			String file = entry.getKey().getPath();
+			if (file.equals(path.getPath()) || file.startsWith(prefix)) {
+				it.remove();
+				removeKey(publicKeys, entry.getValue());
+				certCount--;
+			}
+		}
+	}
+	
+	/**
+	 * Read the certificates of a directory that appeared
+	 */
+	void scanDirectory(File dir) {
+		if (!dir.isDirectory()) {
+			return;
+		}
+		traverseDirectory(dir, new IFileVisitor() {
+			@Override
+			public void handleFile(File f) {
+				updateFile(f);
+			}
+			
+			@Override
+			public void handleDir(File f) {
+			}
+		});
+	}
+	
+	/**
+	 * Keep the certificates up to date from file system events instead of scanning the directory on lookups.
+	 * Needs Java 7; on older runtimes, or if the file system cannot be watched, the store keeps scanning.
+	 * 
+	 * @return true if the directory is being watched
+	 */
+	public synchronized boolean startWatching() {
+		if (watcher != null) {
+			return true;
+		}
+		try {
+			ZCertStoreWatcher w = new ZCertStoreWatcher(this, new File(location));
+			// files written before the watch was set up
+			loadFiles(location);
+			Thread thread = new Thread(w, "ZCertStore watcher");
+			thread.setDaemon(true);
+			thread.start();
+			watcher = w;
+			return true;
+		}
+		catch (LinkageError e) {
+			return false;
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Stop watching the directory, lookups scan it again
+	 */
+	public synchronized void stopWatching() {
+		if (watcher != null) {
+			watcher.close();
+			watcher = null;
+		}
+	}
+	
+	public boolean isWatching() {
+		return watcher != null;
+	}
+	
+	String getLocation() {
+		return location;
 	}
 	
 	/**
@@ -149,7 +303,11 @@ public class ZCertStore {
 	 * @return int
 	 */
 	public int getAmountCertificates() {
-		if (!isCheckThreadRunning()) {
+		ZCertStoreWatcher w = watcher;
+		if (w != null) {
+			w.processEvents();
+		}
+		else if (!isCheckThreadRunning()) {
 			checkAndReload();
 		}
 		return publicKeys.size();
@@ -172,7 +330,7 @@ public class ZCertStore {
 	 * 
 	 * @return boolean
 	 */
-	public boolean checkCertFolderForChanges() {
+	public synchronized boolean checkCertFolderForChanges() {
 		if (directoryModified(location)) {
 			return true;
 		}
@@ -213,7 +371,7 @@ public class ZCertStore {
 	/**
 	 * Check if certificates in the cert-folder changed and reload them
 	 */
-	public void checkAndReload(boolean force) {
+	public synchronized void checkAndReload(boolean force) {
 		if (force || checkCertFolderForChanges()) {
 			loadFiles(location);
 		}
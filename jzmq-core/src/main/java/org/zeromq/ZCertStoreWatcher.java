@@ -0,0 +1,129 @@
+package org.zeromq;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the index of a ZCertStore up to date from file system events, so
+ * lookups do not walk the certificate folder. Kept out of ZCertStore, which
+ * still loads on runtimes without java.nio.file.
+ */
+final class ZCertStoreWatcher implements Runnable {
+
+	private final ZCertStore store;
+	private final Path root;
+	private final WatchService watchService;
+	// directory of each watch key, guarded by this
+	private final Map<WatchKey, Path> dirs = new HashMap<WatchKey, Path>();
+
+	ZCertStoreWatcher(ZCertStore store, File root) throws IOException {
+		this.store = store;
+		this.root = root.toPath();
+		this.watchService = this.root.getFileSystem().newWatchService();
+		synchronized (this) {
+			registerTree(this.root);
+		}
+	}
+
+	/**
+	 * Watch a directory and the directories below it
+	 */
+	private void registerTree(Path dir) throws IOException {
+		dirs.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+		File[] children = dir.toFile().listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			if (child.isDirectory()) {
+				registerTree(child.toPath());
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				synchronized (this) {
+					handle(key);
+				}
+			}
+		} catch (InterruptedException e) {
+			// exit
+		} catch (ClosedWatchServiceException e) {
+			// stopped
+		}
+	}
+
+	/**
+	 * Apply the events waiting, without blocking
+	 */
+	synchronized void processEvents() {
+		try {
+			WatchKey key;
+			while ((key = watchService.poll()) != null) {
+				handle(key);
+			}
+		} catch (ClosedWatchServiceException e) {
+			// stopped
+		}
+	}
+
+	private void handle(WatchKey key) {
+		Path dir = dirs.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW || dir == null) {
+				// events were lost, start over
+				try {
+					registerTree(root);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				store.checkAndReload(true);
+				continue;
+			}
+			Path path = dir.resolve((Path) event.context());
+			File file = path.toFile();
+			if (event.kind() == ENTRY_DELETE) {
+				store.removePath(file);
+			} else if (file.isDirectory()) {
+				if (event.kind() == ENTRY_CREATE) {
+					try {
+						registerTree(path);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					// files created before the directory was watched
+					store.scanDirectory(file);
+				}
+			} else {
+				store.updateFile(file);
+			}
+		}
+		if (!key.reset()) {
+			dirs.remove(key);
+		}
+	}
+
+	void close() {
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
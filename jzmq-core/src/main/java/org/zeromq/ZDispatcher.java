@@ -1,48 +1,178 @@
 package org.zeromq;
 
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Dispatcher for ZeroMQ Sockets.
  *
- * Warning:
- * The Dispatcher uses a busy spin loop when waiting on events.
- * This is ideal for low latency applications but not in all situations.
- * It has the side effect of consuming 100% of a CPU when waiting for events.
+ * All sockets of a dispatcher are served by a single I/O thread, which
+ * sleeps in a poll until one of them has input or a ZSender has something
+ * to send, so an idle dispatcher uses no CPU. It never blocks on a socket:
+ * a reply the socket has no room for waits until it polls writable, while
+ * the other sockets carry on. Likewise a socket that fails, such as when its
+ * context is terminated, is dropped on its own; unregister it before closing
+ * it. Should the I/O loop itself fail, the dispatcher stops taking handlers.
  *
- * With this dispatcher, you can register ONE handler per socket 
+ * Messages go between the I/O thread and the handlers through bounded lock
+ * free queues. When the queue of received messages of a socket is full, the
+ * socket is not read until its handler catches up, leaving the messages
+ * queued in 0MQ. What ZSender.send does when its queue is full is set by
+ * its Backpressure policy.
+ *
+ * The messages of a socket are handled one at a time in the order they were
+ * received, unless it is registered with a ZKeyExtractor: then they are
+ * spread across lanes by key and only messages with the same key keep their
+ * order.
+ *
+ * Unless given a pool of their own, handlers of all sockets share one pool
+ * of the dispatcher, so the number of threads does not grow with the number
+ * of sockets. A lane hands its thread back after each batch and queues up
+ * again behind the other lanes waiting, so busy sockets take turns.
+ *
+ * With this dispatcher, you can register ONE handler per socket
  * and get a Sender for sending ZMsg.
  */
 public class ZDispatcher {
+    private static final AtomicInteger instances = new AtomicInteger();
+    private static final byte[] SIGNAL = new byte[0];
+    // Rings are allocated whole up front, per lane and per sender; larger ones are asked for explicitly
+    private static final int DEFAULT_CAPACITY = 1024;
+
     private ConcurrentMap<ZMQ.Socket, SocketDispatcher> dispatchers = new ConcurrentHashMap<ZMQ.Socket, SocketDispatcher>();
     private final ExecutorService dispatcherExecutor;
+    private final ExecutorService handlerExecutor;
+    private final boolean ownsHandlerExecutor;
+    private final int inboundCapacity;
+
+    // Dispatchers registered or unregistered since the I/O loop last looked
+    private final Queue<SocketDispatcher> changes = new ConcurrentLinkedQueue<SocketDispatcher>();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+    private final CountDownLatch loopDone = new CountDownLatch(1);
+    private volatile boolean active = true;
+
+    // Inproc pair used to wake the I/O loop, in a context of its own since
+    // the registered sockets may come from any context
+    private final ZMQ.Context signalContext;
+    private final ZMQ.Socket signalIn;
+    private final ZMQ.Socket signalOut;
+    private final AtomicBoolean signalled = new AtomicBoolean(false);
+    private boolean signalClosed; // Guarded by signalOut
 
     public ZDispatcher() {
-        this.dispatcherExecutor = Executors.newCachedThreadPool();
+        this(Executors.newSingleThreadExecutor());
     }
 
     public ZDispatcher(ExecutorService dispatcherExecutor) {
+        this(dispatcherExecutor, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param dispatcherExecutor runs the I/O loop
+     * @param inboundCapacity how many received messages are queued per socket, or per lane, for its handler
+     */
+    public ZDispatcher(ExecutorService dispatcherExecutor, int inboundCapacity) {
+        this(dispatcherExecutor, null, inboundCapacity);
+    }
+
+    /**
+     * @param dispatcherExecutor runs the I/O loop
+     * @param handlerExecutor runs the handlers registered without a pool of their own, such as one made by
+     *            newHandlerExecutor; null for a pool of one thread per processor, shut down with the dispatcher
+     * @param inboundCapacity how many received messages are queued per socket, or per lane, for its handler
+     */
+    public ZDispatcher(ExecutorService dispatcherExecutor, ExecutorService handlerExecutor, int inboundCapacity) {
+        if (inboundCapacity < 1) {
+            throw new IllegalArgumentException("Inbound capacity must be at least 1");
+        }
         this.dispatcherExecutor = dispatcherExecutor;
+        this.ownsHandlerExecutor = handlerExecutor == null;
+        this.handlerExecutor = ownsHandlerExecutor
+                ? newHandlerExecutor(Runtime.getRuntime().availableProcessors(), false) : handlerExecutor;
+        this.inboundCapacity = inboundCapacity;
+
+        String address = "inproc://zdispatcher-" + instances.incrementAndGet();
+        this.signalContext = ZMQ.context(0);
+        this.signalIn = signalContext.socket(ZMQ.PAIR);
+        this.signalIn.bind(address);
+        this.signalOut = signalContext.socket(ZMQ.PAIR);
+        this.signalOut.connect(address);
     }
 
     public void registerHandler(ZMQ.Socket socket, ZMessageHandler messageHandler, ZSender sender) {
-        registerHandler(socket, messageHandler, sender, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+        registerHandler(socket, messageHandler, sender, handlerExecutor);
     }
 
     public void registerHandler(ZMQ.Socket socket, ZMessageHandler messageHandler, ZSender sender, ExecutorService threadpool) {
-        SocketDispatcher socketDispatcher = new SocketDispatcher(socket, messageHandler, sender, threadpool);
+        registerHandler(socket, messageHandler, sender, threadpool, null, 1);
+    }
+
+    /**
+     * Register a handler whose messages are spread across one lane per processor by their key, handled by the
+     * shared pool.
+     *
+     * @see #registerHandler(ZMQ.Socket, ZMessageHandler, ZSender, ExecutorService, ZKeyExtractor, int)
+     */
+    public void registerHandler(ZMQ.Socket socket, ZMessageHandler messageHandler, ZSender sender,
+            ZKeyExtractor keyExtractor) {
+        registerHandler(socket, messageHandler, sender, handlerExecutor, keyExtractor,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Register a handler whose messages are spread across lanes by their key. Messages with equal keys go to the
+     * same lane, and each lane is handled by one thread at a time in the order its messages were received, so the
+     * handler sees messages of one key in order while different keys are handled in parallel.
+     *
+     * @param keyExtractor gives the key of a message, such as ROUTER_IDENTITY
+     * @param nLanes how many lanes, at most this many messages are handled at once
+     */
+    public void registerHandler(ZMQ.Socket socket, ZMessageHandler messageHandler, ZSender sender,
+            ExecutorService threadpool, ZKeyExtractor keyExtractor, int nLanes) {
+        if (nLanes < 1) {
+            throw new IllegalArgumentException("There must be at least one lane");
+        }
+        if (nLanes > 1 && keyExtractor == null) {
+            throw new IllegalArgumentException("Several lanes need a key extractor");
+        }
+        if (!active) {
+            throw new IllegalStateException("The dispatcher is shut down");
+        }
+        SocketDispatcher socketDispatcher = new SocketDispatcher(this, socket, messageHandler, sender, threadpool,
+                keyExtractor, nLanes, inboundCapacity);
         if (dispatchers.putIfAbsent(socket, socketDispatcher) != null) {
             throw new IllegalArgumentException("This socket already have a message handler");
         }
-        socketDispatcher.start();
-        dispatcherExecutor.execute(socketDispatcher);
+        sender.dispatcher = this;
+        changes.add(socketDispatcher);
+        // The I/O loop may have ended before it could see the registration
+        if (!active && changes.remove(socketDispatcher)) {
+            dispatchers.remove(socket, socketDispatcher);
+            throw new IllegalStateException("The dispatcher is shut down");
+        }
+        if (started.compareAndSet(false, true)) {
+            dispatcherExecutor.execute(new IoLoop());
+        } else {
+            wakeup();
+        }
     }
 
     public void unregisterHandler(ZMQ.Socket socket) {
@@ -50,17 +180,135 @@ public class ZDispatcher {
         if (removedDispatcher == null) {
             throw new IllegalArgumentException("This socket doesn't have a message handler");
         }
-        removedDispatcher.shutdown();
+        removedDispatcher.active = false;
+        changes.add(removedDispatcher);
+        wakeup();
+        removedDispatcher.awaitShutdown();
     }
 
     public void shutdown() {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        active = false;
+        if (started.get()) {
+            wakeup();
+            try {
+                loopDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            signalIn.close();
+        }
         dispatcherExecutor.shutdown();
-        for (SocketDispatcher socketDispatcher : dispatchers.values()) {
-            socketDispatcher.shutdown();
+        if (ownsHandlerExecutor) {
+            handlerExecutor.shutdown();
         }
         dispatchers.clear();
+        synchronized (signalOut) {
+            signalClosed = true;
+            signalOut.close();
+        }
+        signalContext.term();
+    }
+
+    /**
+     * Make a pool for handlers with a fixed number of threads, which are virtual threads if asked for and the JDK
+     * has them. Even on virtual threads the pool keeps to its budget, so a handler blocking does not pile up more
+     * threads than that.
+     *
+     * @param nThreads how many handlers run at once
+     * @param virtualThreads whether to use virtual threads when available
+     */
+    public static ExecutorService newHandlerExecutor(int nThreads, boolean virtualThreads) {
+        ThreadFactory threadFactory = virtualThreads ? virtualThreadFactory() : null;
+        if (threadFactory == null) {
+            threadFactory = Executors.defaultThreadFactory();
+        }
+        return new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+    }
+
+    /**
+     * @return Thread.ofVirtual().factory(), or null before Java 21
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Wake the I/O loop up. Only the first call after the loop last woke up
+     * sends a signal.
+     */
+    private void wakeup() {
+        if (signalled.compareAndSet(false, true)) {
+            // Senders come from any thread, the socket does not
+            synchronized (signalOut) {
+                // Handlers may still be sending after shutdown
+                if (!signalClosed) {
+                    signalOut.send(SIGNAL, ZMQ.DONTWAIT);
+                }
+            }
+        }
     }
 
+    /**
+     * Let the I/O loop read a paused socket again.
+     */
+    private void resume(SocketDispatcher dispatcher) {
+        if (dispatcher.paused.compareAndSet(true, false)) {
+            changes.add(dispatcher);
+            wakeup();
+        }
+    }
+
+    /**
+     * What ZSender.send does when the queue of messages to send is full.
+     */
+    public enum Backpressure {
+        /**
+         * Wait until there is room, or until the dispatcher is shut down.
+         */
+        BLOCK,
+        /**
+         * Discard the message and return false.
+         */
+        DROP,
+        /**
+         * Throw an IllegalStateException.
+         */
+        REJECT
+    }
+
+    /**
+     * Gives the key by which a message is assigned to a lane; messages with equal keys are handled in order.
+     */
+    public interface ZKeyExtractor {
+
+        /**
+         * @return the key, compared with equals and hashCode; null puts the message in the first lane
+         */
+        public Object keyOf(ZMsg msg);
+
+    }
+
+    /**
+     * Keys messages by their first frame, the peer identity on a ROUTER socket.
+     */
+    public static final ZKeyExtractor ROUTER_IDENTITY = new ZKeyExtractor() {
+        @Override
+        public Object keyOf(ZMsg msg) {
+            return msg.getFirst();
+        }
+    };
+
     public interface ZMessageHandler {
 
         public void handleMessage(ZDispatcher.ZSender sender, ZMsg msg);
@@ -68,99 +316,460 @@ public class ZDispatcher {
     }
 
     public final static class ZSender {
-        private final BlockingQueue<ZMsg> out = new LinkedBlockingQueue<ZMsg>();
+        private static final int SPINS = 100;
+        private static final long PARK_NANOS = 50000;
+
+        private final MpscQueue<ZMsg> out;
+        private final Backpressure backpressure;
+        private volatile ZDispatcher dispatcher;
 
+        public ZSender() {
+            this(DEFAULT_CAPACITY, Backpressure.BLOCK);
+        }
+
+        /**
+         * @param capacity how many messages can wait to be sent
+         * @param backpressure what send does when that many are waiting
+         */
+        public ZSender(int capacity, Backpressure backpressure) {
+            this.out = new MpscQueue<ZMsg>(capacity);
+            this.backpressure = backpressure;
+        }
+
+        /**
+         * Queue a message to be sent by the dispatcher. Safe to call from any thread.
+         *
+         * @return true if the message was queued; false if it was dropped, or if the dispatcher was shut down while
+         *         waiting for room
+         */
         public final boolean send(ZMsg msg) {
-            return out.add(msg);
+            if (!out.offer(msg)) {
+                switch (backpressure) {
+                case DROP:
+                    return false;
+                case REJECT:
+                    throw new IllegalStateException("Too many messages waiting to be sent");
+                default:
+                    if (!offerBlocking(msg)) {
+                        return false;
+                    }
+                }
+            }
+            ZDispatcher d = dispatcher;
+            if (d != null) {
+                d.wakeup();
+            }
+            return true;
+        }
+
+        private boolean offerBlocking(ZMsg msg) {
+            int tries = 0;
+            while (!out.offer(msg)) {
+                ZDispatcher d = dispatcher;
+                if (d != null) {
+                    if (!d.active) {
+                        return false;
+                    }
+                    // Make sure the I/O loop is draining
+                    d.wakeup();
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                if (++tries < SPINS) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Polls every registered socket and the wake up signal, and moves
+     * messages between the sockets and the handlers. A socket is polled for
+     * input unless it is paused, and for output while a reply waits for room.
+     */
+    private final class IoLoop implements Runnable {
+        private final ZMQ.Poller poller = new ZMQ.Poller(16);
+        private SocketDispatcher[] byIndex = new SocketDispatcher[16];
+        // Every dispatcher the loop serves, whether polled or not
+        private final List<SocketDispatcher> attached = new ArrayList<SocketDispatcher>();
+        // Dispatchers whose socket failed this round, dropped before the next poll
+        private final List<SocketDispatcher> failed = new ArrayList<SocketDispatcher>();
+        private int signalIndex;
+
+        public void run() {
+            try {
+                signalIndex = poller.register(signalIn, ZMQ.Poller.POLLIN);
+                while (active) {
+                    applyChanges();
+
+                    boolean pending = false;
+                    for (SocketDispatcher dispatcher : attached) {
+                        try {
+                            pending |= dispatcher.doSend();
+                        } catch (ZMQException e) {
+                            failed.add(dispatcher);
+                        }
+                    }
+                    detachFailed();
+                    for (SocketDispatcher dispatcher : attached) {
+                        updateEvents(dispatcher);
+                    }
+                    if (!active) {
+                        break;
+                    }
+
+                    // Only block once every queued reply is out or waits for room
+                    try {
+                        poller.poll(pending ? 0 : -1);
+                    } catch (ZMQException e) {
+                        // The poll fails as a whole, so find the sockets that are broken
+                        for (SocketDispatcher dispatcher : attached) {
+                            try {
+                                dispatcher.socket.getEvents();
+                            } catch (ZMQException broken) {
+                                failed.add(dispatcher);
+                            }
+                        }
+                        if (failed.isEmpty()) {
+                            throw e;
+                        }
+                        detachFailed();
+                        continue;
+                    }
+
+                    if (poller.pollin(signalIndex)) {
+                        while (signalIn.recv(ZMQ.DONTWAIT) != null) {
+                        }
+                        // Anything sent from now on signals again
+                        signalled.set(false);
+                    }
+                    for (int i = 0; i < byIndex.length; i++) {
+                        SocketDispatcher dispatcher = byIndex[i];
+                        if (dispatcher != null && dispatcher.reading && poller.pollin(i)) {
+                            try {
+                                boolean full = dispatcher.doReceive();
+                                dispatcher.doHandle();
+                                if (full) {
+                                    pause(dispatcher);
+                                }
+                            } catch (ZMQException e) {
+                                failed.add(dispatcher);
+                            }
+                        }
+                    }
+                    detachFailed();
+                }
+            } catch (ZMQException e) {
+                // context destroyed, exit
+                if (ZMQ.Error.ETERM.getCode() != e.getErrorCode()) {
+                    throw e;
+                }
+            } finally {
+                // Registrations from now on fail rather than wait for a loop that is gone
+                active = false;
+                for (SocketDispatcher dispatcher : attached) {
+                    dispatcher.finish();
+                }
+                SocketDispatcher dispatcher;
+                while ((dispatcher = changes.poll()) != null) {
+                    dispatcher.finish();
+                }
+                signalIn.close();
+                loopDone.countDown();
+            }
+        }
+
+        private void applyChanges() {
+            SocketDispatcher dispatcher;
+            while ((dispatcher = changes.poll()) != null) {
+                if (!dispatcher.active) {
+                    detach(dispatcher);
+                } else if (!dispatcher.attached) {
+                    attached.add(dispatcher);
+                    dispatcher.attached = true;
+                    dispatcher.reading = true;
+                } else if (!dispatcher.reading && !dispatcher.paused.get()) {
+                    // Resumed by its handler
+                    if (dispatcher.offerPending()) {
+                        dispatcher.reading = true;
+                    } else {
+                        // The lane of the message held back is full again
+                        pause(dispatcher);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Stop serving a socket, which stays registered until unregisterHandler so its owner can tell when it is
+         * safe to close.
+         */
+        private void detach(SocketDispatcher dispatcher) {
+            if (dispatcher.attached) {
+                setEvents(dispatcher, 0);
+                attached.remove(dispatcher);
+                dispatcher.attached = false;
+            }
+            dispatcher.finish();
+        }
+
+        private void detachFailed() {
+            for (SocketDispatcher dispatcher : failed) {
+                detach(dispatcher);
+            }
+            failed.clear();
+        }
+
+        private void updateEvents(SocketDispatcher dispatcher) {
+            setEvents(dispatcher, (dispatcher.reading ? ZMQ.Poller.POLLIN : 0)
+                    | (dispatcher.pendingOut != null ? ZMQ.Poller.POLLOUT : 0));
+        }
+
+        private void setEvents(SocketDispatcher dispatcher, int events) {
+            if (dispatcher.events == events) {
+                return;
+            }
+            if (dispatcher.index >= 0) {
+                poller.unregister(dispatcher.socket);
+                byIndex[dispatcher.index] = null;
+                dispatcher.index = -1;
+            }
+            if (events != 0) {
+                int index = poller.register(dispatcher.socket, events);
+                if (index >= byIndex.length) {
+                    byIndex = Arrays.copyOf(byIndex, Math.max(index + 1, 2 * byIndex.length));
+                }
+                byIndex[index] = dispatcher;
+                dispatcher.index = index;
+            }
+            dispatcher.events = events;
+        }
+
+        /**
+         * Stop reading a socket whose handler is behind; the handler resumes it once it has taken messages. The
+         * socket leaves the poller on the next round, still sending.
+         */
+        private void pause(SocketDispatcher dispatcher) {
+            dispatcher.reading = false;
+            dispatcher.paused.set(true);
+            // The handler may have caught up before it could see the flag
+            if (!dispatcher.isFull()) {
+                resume(dispatcher);
+            }
         }
     }
 
-    private static final class SocketDispatcher implements Runnable {
-        private volatile boolean active = false;
+    private static final class SocketDispatcher {
+        private final ZDispatcher owner;
+        private volatile boolean active = true;
         private final CountDownLatch shutdownLatch = new CountDownLatch(1);
         private final ZMQ.Socket socket;
         private final ZMessageHandler handler;
         private final ZSender sender;
         private final ExecutorService threadpool;
-        private final BlockingQueue<ZMsg> in = new LinkedBlockingQueue<ZMsg>();
+        private final ZKeyExtractor keyExtractor;
+        private final Lane[] lanes;
         private static final int BUFFER_SIZE = 1024;
+        // Messages a lane handles before giving its thread to the next lane waiting
+        private static final int HANDLE_BATCH = 64;
         private static final ThreadLocal<ZMessageBuffer> messages = new ThreadLocal<ZMessageBuffer>() {
             @Override
             protected ZMessageBuffer initialValue() {
                 return new ZMessageBuffer();
             }
         };
-        private final AtomicBoolean busy = new AtomicBoolean(false);
+        private final AtomicBoolean paused = new AtomicBoolean(false);
+        // State of the I/O loop, only used by that thread
+        private boolean attached;
+        private boolean reading;
+        private int events;
+        private int index = -1; // Slot in the poller
+        private ZMsg pendingOut; // Taken from the sender, waits for the socket to have room
+        // Received while its lane was full, queued before anything else is read; only used by the I/O loop
+        private ZMsg pendingMsg;
+        private Lane pendingLane;
 
-        public SocketDispatcher(ZMQ.Socket socket, ZMessageHandler handler, ZSender sender, ExecutorService handleThreadpool) {
+        public SocketDispatcher(ZDispatcher owner, ZMQ.Socket socket, ZMessageHandler handler, ZSender sender,
+                ExecutorService handleThreadpool, ZKeyExtractor keyExtractor, int nLanes, int inboundCapacity) {
+            this.owner = owner;
             this.socket = socket;
             this.handler = handler;
             this.sender = sender;
             this.threadpool = handleThreadpool;
+            this.keyExtractor = keyExtractor;
+            this.lanes = new Lane[nLanes];
+            for (int i = 0; i < nLanes; i++) {
+                lanes[i] = new Lane(inboundCapacity);
+            }
         }
 
-        public void run() {
-            while (active) {
-                doReceive();
-                doHandle();
-                doSend();
+        /**
+         * Called by the I/O loop once it no longer uses the socket.
+         */
+        private void finish() {
+            active = false;
+            // The shared pool outlives its sockets
+            if (threadpool != owner.handlerExecutor) {
+                threadpool.shutdown();
             }
-            threadpool.shutdown();
             shutdownLatch.countDown();
         }
 
-        public void start() {
-            this.active = true;
-        }
-
-        public void shutdown() {
+        private void awaitShutdown() {
             try {
-                this.active = false;
                 this.shutdownLatch.await();
-
             } catch (InterruptedException e) {
             }
         }
 
-        private void doReceive() {
+        /**
+         * @return true if a lane is full and the socket should not be read for now
+         */
+        private boolean doReceive() {
+            if (!offerPending()) {
+                return true;
+            }
             ZMsg msg;
             int remainingBuffer = BUFFER_SIZE;
             while (active && remainingBuffer-- > 0 && (msg = ZMsg.recvMsg(socket, ZMQ.DONTWAIT)) != null && msg.size() > 0 && msg.getFirst().hasData()) {
-                in.add(msg);
+                Lane lane = laneOf(msg);
+                if (!lane.in.offer(msg)) {
+                    // Hold it back rather than drop it, and read no further until its lane has room
+                    pendingMsg = msg;
+                    pendingLane = lane;
+                    return true;
+                }
+                // The next message may belong to this lane too, so stop while it has no room
+                if (lane.in.isFull()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Queue the message held back by doReceive, if any.
+         *
+         * @return false if its lane is still full
+         */
+        private boolean offerPending() {
+            if (pendingMsg == null) {
+                return true;
+            }
+            if (!pendingLane.in.offer(pendingMsg)) {
+                return false;
+            }
+            pendingLane.doHandle();
+            pendingMsg = null;
+            pendingLane = null;
+            return true;
+        }
+
+        private Lane laneOf(ZMsg msg) {
+            if (lanes.length == 1) {
+                return lanes[0];
+            }
+            Object key = keyExtractor.keyOf(msg);
+            if (key == null) {
+                return lanes[0];
+            }
+            int h = key.hashCode();
+            h ^= h >>> 16;
+            return lanes[(h & Integer.MAX_VALUE) % lanes.length];
+        }
+
+        private boolean isFull() {
+            for (Lane lane : lanes) {
+                if (lane.in.isFull()) {
+                    return true;
+                }
             }
+            return false;
         }
 
         private void doHandle() {
-            if (!in.isEmpty() && busy.compareAndSet(false, true)) {
-                threadpool.submit(new Runnable() {
-                    @Override
-                    public void run() {
-                        ZMessageBuffer messages = SocketDispatcher.this.messages.get();
-                        messages.drainFrom(in);
+            for (Lane lane : lanes) {
+                lane.doHandle();
+            }
+        }
+
+        /**
+         * Messages of one lane are handled by one thread at a time, in the order they were received.
+         */
+        private final class Lane implements Runnable {
+            private final SpscQueue<ZMsg> in;
+            private final AtomicBoolean busy = new AtomicBoolean(false);
+
+            private Lane(int capacity) {
+                this.in = new SpscQueue<ZMsg>(capacity);
+            }
+
+            private void doHandle() {
+                if (!in.isEmpty() && busy.compareAndSet(false, true)) {
+                    try {
+                        threadpool.submit(this);
+                    } catch (RejectedExecutionException e) {
+                        // The pool was shut down with the dispatcher
                         busy.set(false);
-                        for (int i = 0; i <= messages.lastValidIndex; i++) {
-                            if (active) {
-                                handler.handleMessage(sender, messages.buffer[i]);
-                            }
+                    }
+                }
+            }
+
+            @Override
+            public void run() {
+                ZMessageBuffer messages = SocketDispatcher.messages.get();
+                messages.drainFrom(in);
+                // Another lane may still be full, then its own handler resumes the socket
+                if (paused.get() && !isFull()) {
+                    owner.resume(SocketDispatcher.this);
+                }
+                try {
+                    for (int i = 0; i <= messages.lastValidIndex; i++) {
+                        if (active) {
+                            handler.handleMessage(sender, messages.buffer[i]);
                         }
                     }
-                });
+                } finally {
+                    busy.set(false);
+                    // Messages queued while busy was still set would wait for the next input otherwise
+                    if (active && !in.isEmpty()) {
+                        doHandle();
+                    }
+                }
             }
         }
 
-        private void doSend() {
-            ZMsg msg;
+        /**
+         * Send without blocking, so a peer that does not keep up does not hold up the other sockets. A message the
+         * socket has no room for is kept in pendingOut until it polls writable.
+         *
+         * @return true if messages are left to send and the socket still has room
+         */
+        private boolean doSend() {
             int remainingBuffer = BUFFER_SIZE;
-            while (active && remainingBuffer-- > 0 && (msg = sender.out.poll()) != null) {
-                msg.send(socket);
+            while (active && remainingBuffer-- > 0) {
+                ZMsg msg = pendingOut != null ? pendingOut : sender.out.poll();
+                if (msg == null) {
+                    return false;
+                }
+                if (!msg.send(socket, ZMQ.DONTWAIT)) {
+                    pendingOut = msg;
+                    return false;
+                }
+                pendingOut = null;
             }
+            return active && !sender.out.isEmpty();
         }
 
         private static class ZMessageBuffer {
-            private final ZMsg[] buffer = new ZMsg[BUFFER_SIZE];
+            private final ZMsg[] buffer = new ZMsg[HANDLE_BATCH];
             private int lastValidIndex;
 
-            private void drainFrom(BlockingQueue<ZMsg> in) {
+            private void drainFrom(SpscQueue<ZMsg> in) {
                 int lastIndex = lastValidIndex = -1;
                 ZMsg msg;
                 while (++lastIndex < buffer.length && (msg = in.poll()) != null) {
@@ -0,0 +1,446 @@
+package org.zeromq;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.zeromq.ZMQ.Socket;
+
+/**
+ * ZFlatMsg is a compact alternative to ZMsg. All frames of the message are
+ * stored back to back in a single byte array, indexed by offset and length,
+ * instead of one ZFrame object and array per frame. Room is kept at the front
+ * of the array so envelope frames can be pushed and popped without moving
+ * the body.
+ * <p>
+ * A ZFlatMsg is meant to be reused: recv() and clear() keep the storage, so
+ * once it has grown to fit the traffic, receiving and sending do not
+ * allocate.
+ */
+public class ZFlatMsg
+{
+    private static final Charset ENCODING = Charset.forName("UTF-8");
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int DEFAULT_FRAMES = 8;
+    // Room left at the front for envelope frames
+    private static final int FRONT_RESERVE = 64;
+    private static final int FRONT_FRAMES = 2;
+
+    // Frame bytes, in use from head to tail
+    private byte[] data;
+    private int head;
+    private int tail;
+
+    // Frame index, in use from first to first + count
+    private int[] offsets;
+    private int[] lengths;
+    private int first;
+    private int count;
+
+    // Reused for every receive
+    private ZMQ.Message message;
+
+    public ZFlatMsg()
+    {
+        this(DEFAULT_CAPACITY, DEFAULT_FRAMES);
+    }
+
+    /**
+     * @param capacity
+     *            initial number of bytes of frame data
+     * @param frames
+     *            initial number of frames
+     */
+    public ZFlatMsg(int capacity, int frames)
+    {
+        if (capacity < 0 || frames < 0)
+            throw new IllegalArgumentException("Negative capacity");
+        data = new byte[FRONT_RESERVE + capacity];
+        offsets = new int[FRONT_FRAMES + frames];
+        lengths = new int[FRONT_FRAMES + frames];
+        clear();
+    }
+
+    /**
+     * Remove all frames, keeping the storage.
+     */
+    public void clear()
+    {
+        head = tail = Math.min(FRONT_RESERVE, data.length);
+        first = Math.min(FRONT_FRAMES, offsets.length);
+        count = 0;
+    }
+
+    /**
+     * @return number of frames in the message
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    public boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+    /**
+     * @return total number of bytes in all frames
+     */
+    public int contentSize()
+    {
+        return tail - head;
+    }
+
+    /**
+     * @return size in bytes of the frame at index
+     */
+    public int frameSize(int index)
+    {
+        return lengths[slot(index)];
+    }
+
+    /**
+     * @return a copy of the frame at index
+     */
+    public byte[] getFrame(int index)
+    {
+        int i = slot(index);
+        return Arrays.copyOfRange(data, offsets[i], offsets[i] + lengths[i]);
+    }
+
+    /**
+     * @return the frame at index decoded as UTF-8
+     */
+    public String getString(int index)
+    {
+        int i = slot(index);
+        return new String(data, offsets[i], lengths[i], ENCODING);
+    }
+
+    /**
+     * Copy the frame at index in to dst.
+     * @return number of bytes copied
+     */
+    public int copyFrame(int index, byte[] dst, int offset)
+    {
+        int i = slot(index);
+        System.arraycopy(data, offsets[i], dst, offset, lengths[i]);
+        return lengths[i];
+    }
+
+    /**
+     * @return true if the frame at index holds exactly the given bytes
+     */
+    public boolean frameEquals(int index, byte[] value)
+    {
+        int i = slot(index);
+        if (value.length != lengths[i])
+            return false;
+        int offset = offsets[i];
+        for (int n = 0; n < value.length; n++) {
+            if (data[offset + n] != value[n])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Add a frame at the end of the message.
+     */
+    public void add(byte[] frame)
+    {
+        add(frame, 0, frame.length);
+    }
+
+    public void add(String str)
+    {
+        add(str.getBytes(ENCODING));
+    }
+
+    /**
+     * Add a frame made of length bytes of src from offset at the end of the
+     * message.
+     */
+    public void add(byte[] src, int offset, int length)
+    {
+        ensureBack(length);
+        System.arraycopy(src, offset, data, tail, length);
+        append(length);
+    }
+
+    /**
+     * Add a frame in front of the message.
+     */
+    public void push(byte[] frame)
+    {
+        ensureFront(frame.length);
+        if (first == 0)
+            growIndexFront();
+        head -= frame.length;
+        System.arraycopy(frame, 0, data, head, frame.length);
+        first--;
+        count++;
+        offsets[first] = head;
+        lengths[first] = frame.length;
+    }
+
+    public void push(String str)
+    {
+        push(str.getBytes(ENCODING));
+    }
+
+    /**
+     * Remove the first frame of the message.
+     * @return the frame removed, or null if the message is empty
+     */
+    public byte[] pop()
+    {
+        if (count == 0)
+            return null;
+        byte[] frame = getFrame(0);
+        remove();
+        return frame;
+    }
+
+    public String popString()
+    {
+        if (count == 0)
+            return null;
+        String str = getString(0);
+        remove();
+        return str;
+    }
+
+    /**
+     * Push an address frame plus an empty delimiter frame in front of the
+     * message.
+     */
+    public void wrap(byte[] address)
+    {
+        push(EMPTY);
+        push(address);
+    }
+
+    /**
+     * Pop the address frame off the front of the message, and the empty
+     * delimiter frame after it if there is one.
+     * @return the address frame, or null if the message is empty
+     */
+    public byte[] unwrap()
+    {
+        byte[] address = pop();
+        if (count > 0 && lengths[first] == 0)
+            remove();
+        return address;
+    }
+
+    /**
+     * Send the message as one multipart message, see send(Socket, int).
+     * @return true if the message was sent
+     */
+    public boolean send(Socket socket)
+    {
+        return send(socket, 0);
+    }
+
+    /**
+     * Send the message as one multipart message. Once the first frame is
+     * queued 0MQ takes the rest without blocking, so a later frame only fails
+     * when the socket or context is closing. Such a failure raises a
+     * ZMQException; the peer never sees the partial message, as 0MQ only
+     * delivers whole ones, but the socket is left in the middle of it and
+     * should be closed.
+     * @param flags
+     *            flags to apply to every frame, see ZMQ constants
+     * @return true if the message was sent, false if the first frame would
+     *         block, in which case nothing was sent
+     */
+    public boolean send(Socket socket, int flags)
+    {
+        if (socket == null)
+            throw new IllegalArgumentException("socket is null");
+        for (int n = 0; n < count; n++) {
+            int i = first + n;
+            if (!socket.send(data, offsets[i], lengths[i], n < count - 1 ? flags | ZMQ.SNDMORE : flags)) {
+                if (n == 0)
+                    return false;
+                throw new ZMQException("Frame " + n + " of " + count + " could not be sent",
+                        (int) ZMQ.Error.EAGAIN.getCode());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Receive a multipart message in to this one, replacing its frames.
+     * @param flags
+     *            see ZMQ constants
+     * @return true if a message was received, false if none was waiting or
+     *         the receive was interrupted
+     */
+    public boolean recv(Socket socket, int flags)
+    {
+        if (socket == null)
+            throw new IllegalArgumentException("socket is null");
+        clear();
+        if (message == null)
+            message = new ZMQ.Message();
+        try {
+            do {
+                if (!socket.recvMessage(message, flags)) {
+                    clear();
+                    return false;
+                }
+                int length = message.size();
+                ensureBack(length);
+                message.copyTo(data, tail);
+                append(length);
+            } while (message.hasMore());
+        } catch (ZMQException e) {
+            clear();
+            ZMQ.Error error = ZMQ.Error.findByCode(e.getErrorCode());
+            if (error == ZMQ.Error.ETERM || error == ZMQ.Error.ENOTSOCK)
+                return false;
+            throw e;
+        } finally {
+            message.close();
+        }
+        return true;
+    }
+
+    /**
+     * Receives a message from the socket, returns null if the recv was
+     * interrupted.
+     */
+    public static ZFlatMsg recvMsg(Socket socket)
+    {
+        return recvMsg(socket, 0);
+    }
+
+    /**
+     * Receives a message from the socket, returns null if there was no input
+     * waiting or if the recv was interrupted.
+     * @param flag
+     *            see ZMQ constants
+     */
+    public static ZFlatMsg recvMsg(Socket socket, int flag)
+    {
+        ZFlatMsg msg = new ZFlatMsg();
+        if (!msg.recv(socket, flag))
+            return null;
+        return msg;
+    }
+
+    /**
+     * @return a ZMsg holding copies of the frames of this message
+     */
+    public ZMsg toZMsg()
+    {
+        ZMsg msg = new ZMsg();
+        for (int n = 0; n < count; n++)
+            msg.add(getFrame(n));
+        return msg;
+    }
+
+    /**
+     * @return a ZFlatMsg holding copies of the frames of msg
+     */
+    public static ZFlatMsg from(ZMsg msg)
+    {
+        ZFlatMsg flat = new ZFlatMsg((int) msg.contentSize(), msg.size());
+        for (ZFrame f : msg)
+            flat.add(f.hasData() ? f.getData() : EMPTY);
+        return flat;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toZMsg().toString();
+    }
+
+    private int slot(int index)
+    {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Frame " + index + " of " + count);
+        return first + index;
+    }
+
+    /**
+     * Index the length bytes just written at tail as a new last frame.
+     */
+    private void append(int length)
+    {
+        if (first + count == offsets.length) {
+            int ncap = Math.max(offsets.length * 2, first + count + 1);
+            offsets = Arrays.copyOf(offsets, ncap);
+            lengths = Arrays.copyOf(lengths, ncap);
+        }
+        offsets[first + count] = tail;
+        lengths[first + count] = length;
+        count++;
+        tail += length;
+    }
+
+    /**
+     * Drop the first frame.
+     */
+    private void remove()
+    {
+        head += lengths[first];
+        first++;
+        count--;
+        if (count == 0)
+            clear();
+    }
+
+    private void ensureBack(int length)
+    {
+        if (tail + length > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, tail + length));
+    }
+
+    /**
+     * Make room for length bytes in front of head, moving the frames back.
+     */
+    private void ensureFront(int length)
+    {
+        if (head >= length)
+            return;
+        int nhead = length + FRONT_RESERVE;
+        int used = tail - head;
+        byte[] ndata = data;
+        if (nhead + used > data.length)
+            ndata = new byte[Math.max(data.length * 2, nhead + used)];
+        System.arraycopy(data, head, ndata, nhead, used);
+        data = ndata;
+
+        int delta = nhead - head;
+        for (int i = first; i < first + count; i++)
+            offsets[i] += delta;
+        head = nhead;
+        tail += delta;
+    }
+
+    /**
+     * Make room for index entries in front of first.
+     */
+    private void growIndexFront()
+    {
+        int room = Math.max(FRONT_FRAMES, count);
+        if (room + count > offsets.length) {
+            int[] noffsets = new int[room + offsets.length];
+            int[] nlengths = new int[room + offsets.length];
+            System.arraycopy(offsets, first, noffsets, room, count);
+            System.arraycopy(lengths, first, nlengths, room, count);
+            offsets = noffsets;
+            lengths = nlengths;
+        } else {
+            System.arraycopy(offsets, first, offsets, room, count);
+            System.arraycopy(lengths, first, lengths, room, count);
+        }
+        first = room;
+    }
+}
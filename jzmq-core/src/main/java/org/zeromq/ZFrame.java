@@ -20,10 +20,22 @@ public class ZFrame
 {
     private static Charset ENCODING = Charset.forName("UTF-8");
 
+    // One reusable receive message per thread for recvFrame with a pool
+    private static final ThreadLocal<ZMQ.Message> received = new ThreadLocal<ZMQ.Message>()
+    {
+        @Override
+        protected ZMQ.Message initialValue()
+        {
+            return new ZMQ.Message();
+        }
+    };
+
     private byte[] data;
     private boolean more;
     private int capacity;
     private ByteBuffer buffer;
+    // Set when the contents live in a direct buffer taken from this pool
+    private ZBufferPool pool;
 
     public ZFrame()
     {
@@ -45,6 +57,32 @@ public class ZFrame
         this.buffer = buffer;
     }
 
+    /**
+     * Creates a frame of the given size whose contents live in a direct
+     * buffer taken from the pool. Fill it through getBuffer(). The buffer goes
+     * back to the pool when the frame is destroyed.
+     * @param pool
+     *            pool to take the buffer from
+     * @param size
+     *            size of the frame in bytes
+     */
+    public ZFrame(final ZBufferPool pool, int size)
+    {
+        Utils.checkNotNull(pool);
+        this.pool = pool;
+        this.buffer = pool.acquire(size);
+        this.capacity = this.buffer.capacity();
+    }
+
+    /**
+     * Frame for one part of a message read with Socket.recvMultipart.
+     */
+    ZFrame(final byte[] data, final boolean more)
+    {
+        init(data);
+        this.more = more;
+    }
+
     public ZFrame(String data)
     {
         Utils.checkNotNull(data);
@@ -69,19 +107,36 @@ public class ZFrame
      */
     public void destroy()
     {
+        if (pool != null) {
+            pool.release(buffer);
+            pool = null;
+        }
         data = null;
         buffer = null;
         capacity = 0;
     }
 
     /**
-     * @return the data
+     * @return the data; a copy of it for frames held in a pooled buffer
      */
     public byte[] getData()
     {
+        if (pool != null) {
+            byte[] copy = new byte[buffer.limit()];
+            buffer.duplicate().get(copy);
+            return copy;
+        }
         return data;
     }
 
+    /**
+     * @return a view of the frame contents, or null if the frame is empty
+     */
+    public ByteBuffer getBuffer()
+    {
+        return buffer == null ? null : buffer.duplicate();
+    }
+
     /**
      * @return More flag, true if last read had MORE message parts to come
      */
@@ -96,16 +151,26 @@ public class ZFrame
      */
     public int size()
     {
+        if (pool != null)
+            return buffer.limit();
         return hasData() ? data.length : 0;
     }
 
+    /**
+     * @return True if the frame contents live in a pooled direct buffer
+     */
+    boolean isPooled()
+    {
+        return pool != null;
+    }
+
     /**
      * Convenience method to ascertain if this frame contains some message data
      * @return True if frame contains data
      */
     public boolean hasData()
     {
-        return data != null;
+        return data != null || pool != null;
     }
 
     /**
@@ -118,6 +183,8 @@ public class ZFrame
      */
     public boolean send(Socket socket, int flags)
     {
+        if (pool != null)
+            return socket.sendByteBuffer(buffer.duplicate(), flags) >= 0;
         // Note the jzmq Socket.cpp JNI class does a memcpy of the byte data
         // before calling
         // the 0MQ send function, so don't have to clone the message data again
@@ -131,6 +198,13 @@ public class ZFrame
      */
     public ZFrame duplicate()
     {
+        if (pool != null) {
+            ZFrame frame = new ZFrame(pool, buffer.limit());
+            frame.buffer.put(buffer.duplicate());
+            frame.buffer.flip();
+            frame.more = this.more;
+            return frame;
+        }
         int length = size();
         byte[] copy = new byte[length];
         System.arraycopy(this.data, 0, copy, 0, length);
@@ -150,6 +224,10 @@ public class ZFrame
      */
     public void reset(byte[] data)
     {
+        if (pool != null) {
+            pool.release(buffer);
+            pool = null;
+        }
         init(data);
     }
 
@@ -171,6 +249,7 @@ public class ZFrame
     {
         String hexChar = "0123456789ABCDEF";
 
+        byte[] data = getData();
         StringBuilder b = new StringBuilder();
         for (int nbr = 0; nbr < data.length; nbr++) {
             int b1 = data[nbr] >>> 4 & 0xf;
@@ -182,7 +261,8 @@ public class ZFrame
     }
 
     /**
-     * String equals. Uses String compareTo for the comparison (lexigraphical)
+     * String equals. Compares the frame bytes with the UTF-8 encoding of the
+     * string, without decoding the frame or encoding the string.
      * @param str
      *            String to compare with frame data
      * @return True if frame body data matches given string
@@ -191,7 +271,69 @@ public class ZFrame
     {
         if (!hasData())
             return false;
-        return new String(this.data).compareTo(str) == 0;
+        return matches(str, false);
+    }
+
+    /**
+     * Checks whether the frame starts with the UTF-8 encoding of the string,
+     * without decoding the frame or encoding the string.
+     * @param prefix
+     *            String to compare with the start of the frame data
+     * @return True if frame body data starts with the given string
+     */
+    public boolean startsWith(String prefix)
+    {
+        if (!hasData())
+            return false;
+        return matches(prefix, true);
+    }
+
+    /**
+     * Compare the frame bytes with str encoded as UTF-8, one char at a time.
+     */
+    private boolean matches(String str, boolean prefix)
+    {
+        int size = size();
+        int pos = 0;
+        int length = str.length();
+        for (int i = 0; i < length; i++) {
+            int c = str.charAt(i);
+            if (c < 0x80) {
+                if (pos >= size || byteAt(pos++) != c)
+                    return false;
+                continue;
+            }
+            if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                if (Character.isHighSurrogate((char) c) && i + 1 < length
+                        && Character.isLowSurrogate(str.charAt(i + 1)))
+                    c = Character.toCodePoint((char) c, str.charAt(++i));
+                else
+                    // Unpaired surrogates encode as '?', as in String.getBytes
+                    c = '?';
+            }
+
+            int n = c < 0x80 ? 1 : c < 0x800 ? 2 : c < 0x10000 ? 3 : 4;
+            if (pos + n > size)
+                return false;
+            if (n == 1) {
+                if (byteAt(pos++) != c)
+                    return false;
+                continue;
+            }
+            int lead = n == 2 ? 0xc0 | c >> 6 : n == 3 ? 0xe0 | c >> 12 : 0xf0 | c >> 18;
+            if (byteAt(pos++) != (byte) lead)
+                return false;
+            for (int shift = 6 * (n - 2); shift >= 0; shift -= 6) {
+                if (byteAt(pos++) != (byte) (0x80 | (c >> shift) & 0x3f))
+                    return false;
+            }
+        }
+        return prefix || pos == size;
+    }
+
+    private byte byteAt(int index)
+    {
+        return pool != null ? buffer.get(index) : data[index];
     }
 
     @Override
@@ -204,7 +346,7 @@ public class ZFrame
 
         ZFrame zFrame = (ZFrame) o;
 
-        if (!Arrays.equals(data, zFrame.data))
+        if (!Arrays.equals(getData(), zFrame.getData()))
             return false;
         return true;
     }
@@ -212,7 +354,7 @@ public class ZFrame
     @Override
     public int hashCode()
     {
-        int hashcode = Arrays.hashCode(data);
+        int hashcode = Arrays.hashCode(getData());
         hashcode += more ? 1231 : 1237;
         return hashcode;
     }
@@ -227,6 +369,7 @@ public class ZFrame
         if (!hasData())
             return "";
         // Dump message as text or hex-encoded string
+        byte[] data = getData();
         boolean isText = true;
         for (int i = 0; i < data.length; i++) {
             if (data[i] < 32 || data[i] > 127)
@@ -293,4 +436,46 @@ public class ZFrame
         }
         return f;
     }
+
+    /**
+     * Receive a new frame in to a direct buffer taken from the pool. Returns
+     * null if there was no input waiting, or if the read was interrupted.
+     * Frames larger than the largest pooled buffer cannot be received this
+     * way and raise ENOBUFS. Requires 0MQ 3.0 or later.
+     * @param socket
+     *            Socket to read from
+     * @param flags
+     *            Pass flags to 0MQ socket.recv call
+     * @param pool
+     *            pool to take the buffer from
+     * @return received frame, else null
+     */
+    public static ZFrame recvFrame(Socket socket, int flags, ZBufferPool pool)
+    {
+        // The frame is received in place first, so its size is known before
+        // a buffer of the right size class is taken and it is copied once.
+        ZMQ.Message msg = received.get();
+        try {
+            if (!socket.recvMessage(msg, flags))
+                return null;
+        } catch (ZMQException e) {
+            ZMQ.Error error = ZMQ.Error.findByCode(e.getErrorCode());
+            if (error == ZMQ.Error.ETERM || error == ZMQ.Error.ENOTSOCK)
+                return null;
+            throw e;
+        }
+        try {
+            int size = msg.size();
+            if (size > pool.getMaxSize())
+                throw new ZMQException("Frame of " + size + " bytes does not fit a pooled buffer",
+                        (int) ZMQ.Error.ENOBUFS.getCode());
+            ZFrame f = new ZFrame(pool, size);
+            f.buffer.put(msg.data());
+            f.buffer.flip();
+            f.more = msg.hasMore();
+            return f;
+        } finally {
+            msg.close();
+        }
+    }
 }
@@ -20,8 +20,10 @@
 package org.zeromq;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.zeromq.ZMQ.PollItem;
 import org.zeromq.ZMQ.Poller;
@@ -43,6 +45,8 @@ public class ZLoop {
         IZLoopHandler handler;
         Object arg;
         int errors; // If too many errors, kill poller
+        int index = -1; // Slot in the poll set, -1 if not registered
+        SPoller nextSameKey; // Other pollers on the same socket/FD
 
         protected SPoller(PollItem item, IZLoopHandler handler, Object arg) {
             this.item = item;
@@ -55,77 +59,123 @@ public class ZLoop {
 
     ;
 
-    private class STimer {
-        int delay;
-        int times;
-        IZLoopHandler handler;
-        Object arg;
-        long when; // Clock time when alarm goes off
-
-        public STimer(int delay, int times, IZLoopHandler handler, Object arg) {
+    /**
+     * Handle to a timer registered with addTimer, used to cancel it.
+     */
+    public final class Timer {
+        private final int delay;
+        private int times;
+        private final IZLoopHandler handler;
+        private final Object arg;
+        private long when; // System.nanoTime() when alarm goes off
+        private int index = -1; // Position in the timer heap, -1 if not in it
+        private boolean cancelled;
+        private Timer prevSameArg; // Other live timers with the same arg
+        private Timer nextSameArg;
+
+        private Timer(int delay, int times, IZLoopHandler handler, Object arg) {
             this.delay = delay;
             this.times = times;
             this.handler = handler;
             this.arg = arg;
-            this.when = -1;
         }
 
+        /**
+         * Cancel the timer; its handler will not be called again. Takes constant time, and can be called from
+         * inside any handler of the loop.
+         */
+        public void cancel() {
+            if (cancelled)
+                return;
+            cancelled = true;
+            unlinkArg(this);
+            if (index >= 0)
+                cancelledInHeap++;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
     }
 
-    private final List<SPoller> pollers; // List of poll items
-    private final List<STimer> timers; // List of timers
-    private int pollSize; // Size of poll set
-    private Poller pollset; // zmq_poll set
-    private SPoller[] pollact; // Pollers for this poll set
-    private boolean dirty; // True if pollset needs rebuilding
+    private static final long MAX_WAIT = 1000L * 3600; // Tickless timer limit, in msecs
+    private static final int MIN_PURGE = 64; // Cancelled timers tolerated in the heap
+
+    private static final int POLL_SIZE = 16; // Initial size of poll set
+
+    private final Map<Object, SPoller> pollers; // Pollers by socket/FD
+    private final Poller pollset; // zmq_poll set, kept up to date as pollers come and go
+    private SPoller[] pollact; // Pollers by slot in the poll set
+    private final List<SPoller> newPollers; // Pollers added while handling events
+    private boolean dispatching; // True while calling poller handlers
     private boolean verbose; // True if verbose tracing wanted
-    private final List<Object> zombies; // List of timers to kill
-    private final List<STimer> newTimers; // List of timers to add
+
+    // Timers by expiry time; cancelled ones stay until they reach the top or get purged
+    private Timer[] heap;
+    private int heapSize;
+    private int cancelledInHeap;
+    private final List<Timer> due; // Timers being fired
+    private final List<Timer> newTimers; // List of timers to add
+    private final Map<Object, Timer> timersByArg; // First live timer per arg, for removeTimer
 
     public ZLoop() {
-        pollers = new ArrayList<SPoller>();
-        timers = new ArrayList<STimer>();
-        zombies = new ArrayList<Object>();
-        newTimers = new ArrayList<STimer>();
+        pollers = new IdentityHashMap<Object, SPoller>();
+        pollset = new Poller(POLL_SIZE);
+        pollact = new SPoller[POLL_SIZE];
+        newPollers = new ArrayList<SPoller>();
+        heap = new Timer[16];
+        due = new ArrayList<Timer>();
+        newTimers = new ArrayList<Timer>();
+        timersByArg = new IdentityHashMap<Object, Timer>();
     }
 
     public void destroy() {
         // do nothing
     }
 
-    // We hold an array of pollers that matches the pollset, so we can
-    // register/cancel pollers orthogonally to executing the pollset
-    // activity on pollers. Returns 0 on success, -1 on failure.
+    // We hold an array of pollers indexed like the pollset. Slots stay put
+    // while an item is registered, so registering or cancelling one poller
+    // costs the same however many others there are.
 
-    private void rebuild() {
-        pollact = null;
+    private void register(SPoller poller) {
+        int index = pollset.register(poller.item);
+        if (index >= pollact.length)
+            pollact = Arrays.copyOf(pollact, Math.max(index + 1, pollact.length * 2));
+        pollact[index] = poller;
+        poller.index = index;
+    }
 
-        pollSize = pollers.size();
-        pollset = new Poller(pollSize);
+    private void unregister(SPoller poller) {
+        if (poller.item.getSocket() != null)
+            pollset.unregister(poller.item.getSocket());
+        else
+            pollset.unregister(poller.item.getRawSocket());
+        pollact[poller.index] = null;
+        poller.index = -1;
+    }
 
-        pollact = new SPoller[pollSize];
+    private void addNewPollers() {
+        for (SPoller poller : newPollers)
+            register(poller);
+        newPollers.clear();
+    }
 
-        int itemNbr = 0;
-        for (SPoller poller : pollers) {
-            pollset.register(poller.item);
-            pollact[itemNbr] = poller;
-            itemNbr++;
-        }
-        dirty = false;
+    private static Object keyOf(PollItem item) {
+        return item.getSocket() != null ? item.getSocket() : item.getRawSocket();
     }
 
     private long ticklessTimer() {
         // Calculate tickless timer, up to 1 hour
-        long tickless = System.currentTimeMillis() + 1000 * 3600;
-        for (STimer timer : timers) {
-            if (timer.when == -1)
-                timer.when = timer.delay + System.currentTimeMillis();
-            if (tickless > timer.when)
-                tickless = timer.when;
+        long timeout = MAX_WAIT;
+        while (heapSize > 0 && heap[0].cancelled) {
+            removeFirst();
+            cancelledInHeap--;
+        }
+        if (heapSize > 0) {
+            // Round up, so the poll does not return just before the timer is due
+            long nanos = heap[0].when - System.nanoTime();
+            timeout = nanos <= 0 ? 0 : Math.min(MAX_WAIT, (nanos + 999999) / 1000000);
         }
-        long timeout = tickless - System.currentTimeMillis();
-        if (timeout < 0)
-            timeout = 0;
         if (verbose)
             System.out.printf("I: zloop: polling for %d msec\n", timeout);
         return timeout;
@@ -144,9 +194,14 @@ public class ZLoop {
             return -1;
 
         SPoller poller = new SPoller(item_, handler, arg);
-        pollers.add(poller);
-
-        dirty = true;
+        poller.nextSameKey = pollers.put(keyOf(item), poller);
+
+        // A slot freed by a handler is not reused before the pollers ready in
+        // this round have been handled; new pollers join after that.
+        if (dispatching)
+            newPollers.add(poller);
+        else
+            register(poller);
         if (verbose)
             System.out.printf("I: zloop: register %s poller (%s, %s)\n", item.getSocket() != null ? item.getSocket()
                     .getType() : "RAW", item.getSocket(), item.getRawSocket());
@@ -161,13 +216,13 @@ public class ZLoop {
     public void removePoller(PollItem item_) {
         PollItem item = item_;
 
-        Iterator<SPoller> it = pollers.iterator();
-        while (it.hasNext()) {
-            SPoller p = it.next();
-            if (item.equals(p.item)) {
-                it.remove();
-                dirty = true;
-            }
+        SPoller p = pollers.remove(keyOf(item));
+        for (; p != null; p = p.nextSameKey) {
+            // Pollers added by a handler are not registered yet
+            if (p.index >= 0)
+                unregister(p);
+            else
+                newPollers.remove(p);
         }
         if (verbose)
             System.out.printf("I: zloop: cancel %s poller (%s, %s)", item.getSocket() != null ? item.getSocket()
@@ -178,11 +233,11 @@ public class ZLoop {
     // --------------------------------------------------------------------------
     // Register a timer that expires after some delay and repeats some number of
     // times. At each expiry, will call the handler, passing the arg. To
-    // run a timer forever, use 0 times. Returns 0 if OK, -1 if there was an
-    // error.
+    // run a timer forever, use 0 times. Returns a handle that cancels the timer.
 
-    public int addTimer(int delay, int times, IZLoopHandler handler, Object arg) {
-        STimer timer = new STimer(delay, times, handler, arg);
+    public Timer addTimer(int delay, int times, IZLoopHandler handler, Object arg) {
+        Timer timer = new Timer(delay, times, handler, arg);
+        linkArg(timer);
 
         // We cannot touch self->timers because we may be executing that
         // from inside the poll loop. So, we hold the new timer on the newTimers
@@ -191,7 +246,7 @@ public class ZLoop {
         if (verbose)
             System.out.printf("I: zloop: register timer delay=%d times=%d\n", delay, times);
 
-        return 0;
+        return timer;
     }
 
     // --------------------------------------------------------------------------
@@ -201,10 +256,14 @@ public class ZLoop {
     public int removeTimer(Object arg) {
         assert (arg != null);
 
-        // We cannot touch self->timers because we may be executing that
-        // from inside the poll loop. So, we hold the arg on the zombie
-        // list, and process that list when we're done executing timers.
-        zombies.add(arg);
+        // Cancelled timers are only marked, so this is safe from inside the
+        // poll loop too.
+        Timer timer = timersByArg.get(arg);
+        while (timer != null) {
+            Timer next = timer.nextSameArg;
+            timer.cancel();
+            timer = next;
+        }
         if (verbose)
             System.out.printf("I: zloop: cancel timer\n");
 
@@ -227,21 +286,19 @@ public class ZLoop {
     public int start() {
         int rc = 0;
 
-        timers.addAll(newTimers);
-        newTimers.clear();
+        // In case a handler threw out of a previous run
+        dispatching = false;
+        addNewPollers();
 
         // Recalculate all timers now
-        for (STimer timer : timers) {
-            timer.when = timer.delay + System.currentTimeMillis();
-        }
+        long now = System.nanoTime();
+        for (int i = 0; i < heapSize; i++)
+            heap[i].when = now + heap[i].delay * 1000000L;
+        heapify();
+        addNewTimers(now);
 
         // Main reactor loop
         while (!Thread.currentThread().isInterrupted()) {
-            if (dirty) {
-                // If s_rebuild_pollset() fails, break out of the loop and
-                // return its error
-                rebuild();
-            }
             long wait = ticklessTimer();
 
             rc = pollset.poll(wait);
@@ -252,72 +309,226 @@ public class ZLoop {
                 rc = 0;
                 break; // Context has been shut down
             }
+            // Pollers added by handlers join once this round is over
+            dispatching = true;
+
             // Handle any timers that have now expired
-            Iterator<STimer> it = timers.iterator();
-            while (it.hasNext()) {
-                STimer timer = it.next();
-                if (System.currentTimeMillis() >= timer.when && timer.when != -1) {
-                    if (verbose)
-                        System.out.println("I: zloop: call timer handler");
-                    rc = timer.handler.handle(this, null, timer.arg);
-                    if (rc == -1)
-                        break; // Timer handler signalled break
-                    if (timer.times != 0 && --timer.times == 0) {
-                        it.remove();
-                    } else
-                        timer.when = timer.delay + System.currentTimeMillis();
+            rc = fireTimers(System.nanoTime());
+
+            // Handle any pollers that are ready, unless some timer signalled
+            // break from the reactor loop
+            if (rc != -1)
+                rc = handlePollers();
+
+            dispatching = false;
+
+            // Now register any pollers added by the handlers
+            addNewPollers();
+
+            // Now handle any new timers added inside the loop
+            addNewTimers(System.nanoTime());
+
+            if (rc == -1)
+                break;
+        }
+
+        return rc;
+    }
+
+    // Call the handlers of the pollers that are ready. Returns -1 if a
+    // handler signalled break.
+
+    private int handlePollers() {
+        int rc = 0;
+        int pollSize = pollset.getNext();
+        for (int itemNbr = 0; itemNbr < pollSize; itemNbr++) {
+            SPoller poller = pollact[itemNbr];
+            if (poller == null)
+                continue; // Free slot, or cancelled by an earlier handler
+            if (poller.item.isError()) {
+                if (verbose)
+                    System.out.printf("I: zloop: can't poll %s socket (%s, %s)",
+                            poller.item.getSocket() != null ? poller.item.getSocket().getType() : "RAW",
+                            poller.item.getSocket(), poller.item.getRawSocket());
+                // Give handler one chance to handle error, then kill
+                // poller because it'll disrupt the reactor otherwise.
+                if (poller.errors++ > 0) {
+                    removePoller(poller.item);
                 }
+            } else
+                poller.errors = 0; // A non-error happened
+
+            if (poller.item.readyOps() > 0) {
+                if (verbose)
+                    System.out.printf("I: zloop: call %s socket handler (%s, %s)\n",
+                            poller.item.getSocket() != null ? poller.item.getSocket().getType() : "RAW",
+                            poller.item.getSocket(), poller.item.getRawSocket());
+                rc = poller.handler.handle(this, poller.item, poller.arg);
+                if (rc == -1)
+                    break; // Poller handler signalled break
             }
+        }
+        return rc;
+    }
+
+    // Call the handlers of the timers due at now, and schedule their next
+    // expiry. Returns -1 if a handler signalled break.
+
+    private int fireTimers(long now) {
+        while (heapSize > 0 && heap[0].when - now <= 0) {
+            Timer timer = removeFirst();
+            if (timer.cancelled)
+                cancelledInHeap--;
+            else
+                due.add(timer);
+        }
+
+        int rc = 0;
+        int fired = 0;
+        while (fired < due.size()) {
+            Timer timer = due.get(fired);
+            if (timer.cancelled) {
+                fired++;
+                continue; // Cancelled by an earlier handler
+            }
+            if (verbose)
+                System.out.println("I: zloop: call timer handler");
+            rc = timer.handler.handle(this, null, timer.arg);
             if (rc == -1)
-                break; // Some timer signalled break from the reactor loop
-
-            // Handle any pollers that are ready
-            for (int itemNbr = 0; itemNbr < pollSize; itemNbr++) {
-                SPoller poller = pollact[itemNbr];
-                if (pollset.getItem(itemNbr).isError()) {
-                    if (verbose)
-                        System.out.printf("I: zloop: can't poll %s socket (%s, %s)",
-                                poller.item.getSocket() != null ? poller.item.getSocket().getType() : "RAW",
-                                poller.item.getSocket(), poller.item.getRawSocket());
-                    // Give handler one chance to handle error, then kill
-                    // poller because it'll disrupt the reactor otherwise.
-                    if (poller.errors++ > 0) {
-                        removePoller(poller.item);
-                    }
-                } else
-                    poller.errors = 0; // A non-error happened
-
-                if (pollset.getItem(itemNbr).readyOps() > 0) {
-                    if (verbose)
-                        System.out.printf("I: zloop: call %s socket handler (%s, %s)\n",
-                                poller.item.getSocket() != null ? poller.item.getSocket().getType() : "RAW",
-                                poller.item.getSocket(), poller.item.getRawSocket());
-                    rc = poller.handler.handle(this, poller.item, poller.arg);
-                    if (rc == -1)
-                        break; // Poller handler signalled break
-                }
+                break; // Timer handler signalled break
+            fired++;
+            if (timer.cancelled)
+                continue;
+            if (timer.times != 0 && --timer.times == 0) {
+                timer.cancelled = true;
+                unlinkArg(timer);
+            } else {
+                timer.when = now + timer.delay * 1000000L;
+                insert(timer);
             }
+        }
+        // After a break, the timers not fired yet keep their expiry
+        for (int i = fired; i < due.size(); i++) {
+            if (!due.get(i).cancelled)
+                insert(due.get(i));
+        }
+        due.clear();
+        return rc;
+    }
 
-            // Now handle any timer zombies
-            // This is going to be slow if we have many zombies
-            for (Object arg : zombies) {
-                it = timers.iterator();
-                while (it.hasNext()) {
-                    STimer timer = it.next();
-                    if (timer.arg == arg) {
-                        it.remove();
-                    }
-                }
+    private void addNewTimers(long now) {
+        for (Timer timer : newTimers) {
+            if (!timer.cancelled) {
+                timer.when = now + timer.delay * 1000000L;
+                insert(timer);
             }
-            // Now handle any new timers added inside the loop
-            timers.addAll(newTimers);
-            newTimers.clear();
+        }
+        newTimers.clear();
 
-            if (rc == -1)
-                break;
+        // Drop cancelled timers once they make up most of the heap
+        if (cancelledInHeap > MIN_PURGE && cancelledInHeap > heapSize / 2)
+            purge();
+    }
+
+    private void linkArg(Timer timer) {
+        if (timer.arg == null)
+            return;
+        Timer first = timersByArg.put(timer.arg, timer);
+        if (first != null) {
+            first.prevSameArg = timer;
+            timer.nextSameArg = first;
         }
+    }
 
-        return rc;
+    private void unlinkArg(Timer timer) {
+        if (timer.arg == null)
+            return;
+        if (timer.prevSameArg != null)
+            timer.prevSameArg.nextSameArg = timer.nextSameArg;
+        else if (timer.nextSameArg != null)
+            timersByArg.put(timer.arg, timer.nextSameArg);
+        else
+            timersByArg.remove(timer.arg);
+        if (timer.nextSameArg != null)
+            timer.nextSameArg.prevSameArg = timer.prevSameArg;
+        timer.prevSameArg = null;
+        timer.nextSameArg = null;
+    }
+
+    // Binary min-heap on Timer.when. Comparisons use the difference of the
+    // nanoTime values, which stays right when the clock wraps around.
+
+    private void insert(Timer timer) {
+        if (heapSize == heap.length)
+            heap = Arrays.copyOf(heap, heapSize * 2);
+        heap[heapSize] = timer;
+        timer.index = heapSize;
+        siftUp(heapSize++);
     }
 
+    private Timer removeFirst() {
+        Timer first = heap[0];
+        first.index = -1;
+        Timer last = heap[--heapSize];
+        heap[heapSize] = null;
+        if (heapSize > 0) {
+            heap[0] = last;
+            last.index = 0;
+            siftDown(0);
+        }
+        return first;
+    }
+
+    private void purge() {
+        int size = 0;
+        for (int i = 0; i < heapSize; i++) {
+            Timer timer = heap[i];
+            heap[i] = null;
+            if (timer.cancelled)
+                timer.index = -1;
+            else
+                heap[size++] = timer;
+        }
+        heapSize = size;
+        cancelledInHeap = 0;
+        heapify();
+    }
+
+    private void heapify() {
+        for (int i = 0; i < heapSize; i++)
+            heap[i].index = i;
+        for (int i = heapSize / 2 - 1; i >= 0; i--)
+            siftDown(i);
+    }
+
+    private void siftUp(int i) {
+        Timer timer = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent].when - timer.when <= 0)
+                break;
+            heap[i] = heap[parent];
+            heap[i].index = i;
+            i = parent;
+        }
+        heap[i] = timer;
+        timer.index = i;
+    }
+
+    private void siftDown(int i) {
+        Timer timer = heap[i];
+        int half = heapSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && heap[child + 1].when - heap[child].when < 0)
+                child++;
+            if (timer.when - heap[child].when <= 0)
+                break;
+            heap[i] = heap[child];
+            heap[i].index = i;
+            i = child;
+        }
+        heap[i] = timer;
+        timer.index = i;
+    }
 }
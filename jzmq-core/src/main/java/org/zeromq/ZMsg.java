@@ -157,19 +157,56 @@ public class ZMsg implements Deque<ZFrame>
      *            0MQ socket to send ZMsg on.
      */
     public void send(Socket socket, boolean destroy)
+    {
+        send(socket, 0);
+        if (destroy) {
+            destroy();
+        }
+    }
+
+    /**
+     * Send message to 0MQ socket with the given flags, such as ZMQ.DONTWAIT.
+     * 0MQ takes the rest of a message once it took the first frame, so the
+     * message is either sent whole or not at all. A later frame only fails
+     * when the socket or context is closing, which raises a ZMQException and
+     * leaves the socket in the middle of a message it should be closed with.
+     * @param socket
+     *            0MQ socket to send ZMsg on.
+     * @param flags
+     *            Valid send() method flags, applied to every frame.
+     * @return true if the message was sent or has no frames, false if the
+     *         first frame would block
+     */
+    public boolean send(Socket socket, int flags)
     {
         if (socket == null)
             throw new IllegalArgumentException("socket is null");
         if (frames.size() == 0)
-            return;
-        Iterator<ZFrame> i = frames.iterator();
-        while (i.hasNext()) {
+            return true;
+        boolean pooled = false;
+        for (ZFrame f : frames)
+            pooled |= f.isPooled();
+        if (pooled) {
+            // Send pooled frames straight from their direct buffers.
+            Iterator<ZFrame> i = frames.iterator();
             ZFrame f = i.next();
-            f.send(socket, (i.hasNext()) ? ZMQ.SNDMORE : 0);
-        }
-        if (destroy) {
-            destroy();
+            if (!f.send(socket, flags | (i.hasNext() ? ZMQ.SNDMORE : 0)))
+                return false;
+            for (int n = 1; i.hasNext(); n++) {
+                f = i.next();
+                if (!f.send(socket, flags | (i.hasNext() ? ZMQ.SNDMORE : 0)))
+                    throw new ZMQException("Frame " + n + " of " + frames.size() + " could not be sent",
+                            (int) ZMQ.Error.EAGAIN.getCode());
+            }
+            return true;
         }
+        // Hand all frames to the socket at once, which costs a single JNI
+        // crossing instead of one per frame.
+        byte[][] parts = new byte[frames.size()][];
+        int n = 0;
+        for (ZFrame f : frames)
+            parts[n++] = f.hasData() ? f.getData() : new byte[0];
+        return socket.sendMultipart(parts, flags);
     }
 
     /**
@@ -195,6 +232,44 @@ public class ZMsg implements Deque<ZFrame>
      * @return
      */
     public static ZMsg recvMsg(Socket socket, int flag)
+    {
+        if (socket == null)
+            throw new IllegalArgumentException("socket is null");
+
+        byte[][] parts;
+        try {
+            parts = socket.recvMultipart(flag);
+        } catch (ZMQException e) {
+            ZMQ.Error error = ZMQ.Error.findByCode(e.getErrorCode());
+            if (error == ZMQ.Error.ETERM || error == ZMQ.Error.ENOTSOCK)
+                return null;
+            throw e;
+        }
+        if (parts == null) {
+            // If receive failed or was interrupted
+            return null;
+        }
+
+        ZMsg msg = new ZMsg();
+        for (int i = 0; i < parts.length; i++)
+            msg.add(new ZFrame(parts[i], i < parts.length - 1));
+        return msg;
+    }
+
+    /**
+     * Receives message from socket in to direct buffers taken from the pool,
+     * returns ZMsg object or null if the recv was interrupted. Destroying the
+     * message gives the buffers back to the pool. A frame larger than the
+     * largest pooled buffer raises ENOBUFS once the rest of the message has
+     * been read and dropped, so the next receive starts on a new message.
+     * @param socket
+     * @param flag
+     *            see ZMQ constants
+     * @param pool
+     *            pool to take frame buffers from
+     * @return
+     */
+    public static ZMsg recvMsg(Socket socket, int flag, ZBufferPool pool)
     {
         if (socket == null)
             throw new IllegalArgumentException("socket is null");
@@ -202,8 +277,18 @@ public class ZMsg implements Deque<ZFrame>
         ZMsg msg = new ZMsg();
 
         while (true) {
-            ZFrame f = ZFrame.recvFrame(socket, flag);
-            if (f == null || !f.hasData()) {
+            ZFrame f;
+            try {
+                f = ZFrame.recvFrame(socket, flag, pool);
+            } catch (ZMQException e) {
+                msg.destroy();
+                if (e.getErrorCode() == ZMQ.Error.ENOBUFS.getCode()) {
+                    while (socket.hasReceiveMore())
+                        socket.recv(0);
+                }
+                throw e;
+            }
+            if (f == null) {
                 // If receive failed or was interrupted
                 msg.destroy();
                 msg = null;
@@ -0,0 +1,92 @@
+package org.zeromq;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AddressTrieTest {
+
+    @Test
+    public void testExactAddresses() {
+        AddressTrie trie = new AddressTrie();
+        assertTrue(trie.isEmpty());
+        trie.add("127.0.0.1");
+        trie.add("10.1.2.3");
+        assertFalse(trie.isEmpty());
+
+        assertTrue(trie.contains("127.0.0.1"));
+        assertTrue(trie.contains("10.1.2.3"));
+        assertFalse(trie.contains("10.1.2.4"));
+        assertFalse(trie.contains("127.0.0.2"));
+        assertFalse(trie.contains(""));
+        assertFalse(trie.contains(null));
+    }
+
+    @Test
+    public void testIPv4Ranges() {
+        AddressTrie trie = new AddressTrie();
+        trie.add("10.0.0.0/8");
+        trie.add("192.168.1.0/24");
+        trie.add("192.168.1.128/25");
+        trie.add("172.16.5.4/32");
+
+        assertTrue(trie.contains("10.255.0.1"));
+        assertTrue(trie.contains("192.168.1.1"));
+        assertTrue(trie.contains("192.168.1.200"));
+        assertTrue(trie.contains("172.16.5.4"));
+        assertFalse(trie.contains("11.0.0.1"));
+        assertFalse(trie.contains("192.168.2.1"));
+        assertFalse(trie.contains("172.16.5.5"));
+        // The same address written as IPv4-mapped IPv6
+        assertTrue(trie.contains("::ffff:10.1.2.3"));
+        assertTrue(trie.contains("::ffff:c0a8:101"));
+    }
+
+    @Test
+    public void testIPv6Ranges() {
+        AddressTrie trie = new AddressTrie();
+        trie.add("fe80::/10");
+        trie.add("2001:db8::1");
+        trie.add("2001:db8:1::/48");
+
+        assertTrue(trie.contains("fe80::1"));
+        assertTrue(trie.contains("[febf::abcd%eth0]"));
+        assertFalse(trie.contains("fec0::1"));
+        assertTrue(trie.contains("2001:db8:0:0:0:0:0:1"));
+        assertFalse(trie.contains("2001:db8::2"));
+        assertTrue(trie.contains("2001:db8:1:ffff::1"));
+        assertFalse(trie.contains("2001:db8:2::1"));
+        assertFalse(trie.contains("10.0.0.1"));
+    }
+
+    @Test
+    public void testEverything() {
+        AddressTrie trie = new AddressTrie();
+        trie.add("0.0.0.0/0");
+        assertTrue(trie.contains("1.2.3.4"));
+        assertFalse(trie.contains("2001:db8::1"));
+        trie.add("::/0");
+        assertTrue(trie.contains("2001:db8::1"));
+    }
+
+    @Test
+    public void testNames() {
+        AddressTrie trie = new AddressTrie();
+        trie.add("localhost");
+        assertTrue(trie.contains("localhost"));
+        assertFalse(trie.contains("127.0.0.1"));
+    }
+
+    @Test
+    public void testInvalidRanges() {
+        String[] invalid = { "10.0.0.0/33", "10.0.0/8", "fe80::/129", "1::2::3/64", "10.0.0.0/x", "a.b.c.d/8" };
+        for (String entry : invalid) {
+            try {
+                AddressTrie.check(entry);
+                throw new AssertionError("Accepted " + entry);
+            } catch (IllegalArgumentException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.zeromq;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MpscQueueTest {
+
+    @Test
+    public void testBounded() {
+        MpscQueue<Integer> queue = new MpscQueue<Integer>(2);
+        assertEquals(2, queue.capacity());
+        assertTrue(queue.isEmpty());
+        assertTrue(queue.offer(0));
+        assertTrue(queue.offer(1));
+        assertFalse(queue.offer(2));
+
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.offer(2));
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testSingleElementCapacity() {
+        MpscQueue<Integer> queue = new MpscQueue<Integer>(1);
+        assertEquals(2, queue.capacity());
+        assertTrue(queue.offer(0));
+        assertTrue(queue.offer(1));
+        assertFalse(queue.offer(2));
+    }
+
+    @Test
+    public void testProducersKeepTheirOrder() throws Exception {
+        final int producers = 4;
+        final int count = 50000;
+        final MpscQueue<int[]> queue = new MpscQueue<int[]>(128);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int id = p;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        int[] e = new int[] { id, i };
+                        while (!queue.offer(e)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            threads[p].start();
+        }
+
+        int[] next = new int[producers];
+        for (int received = 0; received < producers * count;) {
+            int[] e = queue.poll();
+            if (e == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next[e[0]]++, e[1]);
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int p = 0; p < producers; p++) {
+            assertEquals(count, next[p]);
+        }
+        assertTrue(queue.isEmpty());
+    }
+}
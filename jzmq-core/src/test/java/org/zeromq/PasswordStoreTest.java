@@ -0,0 +1,83 @@
+package org.zeromq;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PasswordStoreTest {
+
+    private static final String PASSWORDS = "test-passwords";
+
+    private static void write(String content) throws IOException {
+        FileWriter writer = new FileWriter(PASSWORDS);
+        writer.write(content);
+        writer.close();
+    }
+
+    @After
+    public void cleanup() {
+        new File(PASSWORDS).delete();
+    }
+
+    @Test
+    public void testCheck() throws IOException {
+        write("# comment\nguest=guest\n\nadmin=secret\nbroken\nempty=\n");
+        PasswordStore store = new PasswordStore(new File(PASSWORDS));
+        assertEquals(2, store.size());
+
+        assertTrue(store.check("guest", "guest"));
+        assertTrue(store.check("admin", "secret"));
+        assertFalse(store.check("admin", "guest"));
+        assertFalse(store.check("admin", "secret2"));
+        assertFalse(store.check("empty", ""));
+        assertFalse(store.check("nobody", "secret"));
+        assertFalse(store.check(null, null));
+    }
+
+    @Test
+    public void testReload() throws IOException {
+        write("guest=guest\nadmin=secret\n");
+        File file = new File(PASSWORDS);
+        file.setLastModified(System.currentTimeMillis() - 10000);
+        PasswordStore store = new PasswordStore(file);
+        // Not changed
+        assertFalse(store.reloadIfChanged());
+
+        write("guest=guest\nadmin=changed\n");
+        file.setLastModified(System.currentTimeMillis() - 5000);
+        assertTrue(store.reloadIfChanged());
+        assertTrue(store.check("guest", "guest"));
+        assertTrue(store.check("admin", "changed"));
+        assertFalse(store.check("admin", "secret"));
+        assertFalse(store.reloadIfChanged());
+    }
+
+    @Test
+    public void testUnreadableFileKeepsLogins() throws IOException {
+        write("guest=guest\n");
+        File file = new File(PASSWORDS);
+        PasswordStore store = new PasswordStore(file);
+        assertTrue(store.check("guest", "guest"));
+
+        // Something that cannot be read as a file takes its place for a moment
+        assertTrue(file.delete());
+        assertTrue(file.mkdir());
+        store.reload();
+        assertEquals(1, store.size());
+        assertTrue(store.check("guest", "guest"));
+    }
+
+    @Test
+    public void testMissingFile() {
+        PasswordStore store = new PasswordStore(new File(PASSWORDS));
+        assertEquals(0, store.size());
+        assertFalse(store.check("guest", "guest"));
+    }
+}
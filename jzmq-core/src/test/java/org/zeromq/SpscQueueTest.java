@@ -0,0 +1,60 @@
+package org.zeromq;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpscQueueTest {
+
+    @Test
+    public void testBounded() {
+        SpscQueue<Integer> queue = new SpscQueue<Integer>(3);
+        assertEquals(4, queue.capacity());
+        assertTrue(queue.isEmpty());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertTrue(queue.isFull());
+        assertFalse(queue.offer(4));
+
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertFalse(queue.isFull());
+        assertTrue(queue.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testOrderAcrossThreads() throws Exception {
+        final int count = 100000;
+        final SpscQueue<Integer> queue = new SpscQueue<Integer>(64);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    while (!queue.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        };
+        producer.start();
+
+        for (int expected = 0; expected < count;) {
+            Integer i = queue.poll();
+            if (i == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(expected++, i.intValue());
+        }
+        producer.join();
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -5,6 +5,8 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.charset.Charset;
 
+import static org.junit.Assert.assertEquals;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -81,6 +83,45 @@ public class ZAuthTest {
 		}
 	}
 	
+	@Test
+	public void testPlainWithWorkersAndCache() {
+		ZContext ctx = new ZContext();
+		try {
+			//  Several threads answer the ZAP requests, and decisions are remembered
+			ZAuth auth = new ZAuth(ctx, 4);
+		    auth.setVerbose(VERBOSE_MODE);
+		    auth.configureCache(100, 10000);
+		    auth.allow("127.0.0.1");
+		    auth.configurePlain("*", "passwords");
+		    TestUtils.sleep(100);
+		    
+		    ZMQ.Socket server = ctx.createSocket(ZMQ.PUSH);
+		    server.setPlainServer(true);
+		    server.setZAPDomain("global".getBytes());
+		    server.bind("tcp://*:9000");
+		    server.setSendTimeOut(1000);
+		    
+		    //  The same credentials twice, the second time from the cache
+		    for (int i = 0; i < 2; i++) {
+		    	ZMQ.Socket client = ctx.createSocket(ZMQ.PULL);
+		    	client.setPlainUsername("admin".getBytes());
+		    	client.setPlainPassword("secret".getBytes());
+		    	client.setReceiveTimeOut(1000);
+		    	client.connect("tcp://127.0.0.1:9000");
+		    	
+		    	server.send("Hello");
+		    	String message = client.recvStr(0,Charset.defaultCharset());
+		    	assert("Hello".equals(message));
+		    	ctx.destroySocket(client);
+		    }
+		    //  Only the first handshake was checked
+		    assertEquals(1, auth.cacheHits());
+		}
+		finally {
+			ctx.close();	
+		}
+	}
+	
 	@Test
 	public void testCurveAnyClient() {
 		// accept any client-certificate
@@ -0,0 +1,69 @@
+package org.zeromq;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ZBufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        ZBufferPool pool = new ZBufferPool(10, 1000, 4);
+        assertEquals(1024, pool.getMaxSize());
+
+        ByteBuffer small = pool.acquire(1);
+        assertTrue(small.isDirect());
+        assertEquals(16, small.capacity());
+        assertEquals(0, small.position());
+        assertEquals(1, small.limit());
+
+        assertEquals(512, pool.acquire(300).capacity());
+        assertEquals(1024, pool.acquire(1024).capacity());
+        assertEquals(2000, pool.acquire(2000).capacity());
+    }
+
+    @Test
+    public void testReuse() {
+        ZBufferPool pool = new ZBufferPool(64, 1024, 1, 1);
+        ByteBuffer first = pool.acquire(100);
+        first.put((byte) 1);
+        pool.release(first);
+
+        ByteBuffer second = pool.acquire(128);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(128, second.limit());
+
+        // Only one idle buffer is kept per class and stripe.
+        ByteBuffer third = pool.acquire(128);
+        pool.release(second);
+        pool.release(third);
+        assertSame(second, pool.acquire(128));
+        assertNotSame(third, pool.acquire(128));
+    }
+
+    @Test
+    public void testForeignBuffersAreDropped() {
+        ZBufferPool pool = new ZBufferPool(64, 1024, 4, 1);
+        ByteBuffer heap = ByteBuffer.allocate(128);
+        ByteBuffer odd = ByteBuffer.allocateDirect(100);
+        pool.release(heap);
+        pool.release(odd);
+        pool.release(null);
+
+        ByteBuffer buffer = pool.acquire(128);
+        assertNotSame(heap, buffer);
+        assertEquals(128, buffer.capacity());
+        assertEquals(128, pool.acquire(100).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidConfiguration() {
+        new ZBufferPool(128, 64, 4);
+    }
+}
@@ -3,6 +3,8 @@ package org.zeromq;
 import static org.junit.Assert.assertFalse;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 
 import org.junit.After;
 import org.junit.Before;
@@ -93,6 +95,51 @@ public class ZCertStoreTest {
 		assert(certStore.checkCertFolderForChanges());
 	}
 	
+	@Test
+	public void watchCertFolderTest() {
+		if (!certStore.startWatching()) {
+			return; // no java.nio.file on this runtime
+		}
+		
+		ZCert c1 = new ZCert();
+		c1.savePublic(CERTSTORE_LOCATION+"/c1.cert");
+		ZCert c2 = new ZCert();
+		c2.savePublic(CERTSTORE_LOCATION+"/sub/c2.cert");
+		TestUtils.sleep(500);
+		// the watcher indexed both, lookups no longer scan the folder
+		assert(certStore.containsPublicKey(c1.getPublicKeyAsZ85()));
+		assert(certStore.containsPublicKey(c2.getPublicKeyAsZ85()));
+		assert(certStore.getAmountCertificates() == 2);
+		
+		new File(CERTSTORE_LOCATION+"/sub/c2.cert").delete();
+		TestUtils.sleep(500);
+		assertFalse(certStore.containsPublicKey(c2.getPublicKeyAsZ85()));
+		assert(certStore.getAmountCertificates() == 1);
+		
+		certStore.stopWatching();
+	}
+	
+	@Test
+	public void emptyCertFileKeepsItsKey() throws IOException {
+		if (!certStore.startWatching()) {
+			return; // no java.nio.file on this runtime
+		}
+		
+		ZCert c1 = new ZCert();
+		c1.savePublic(CERTSTORE_LOCATION+"/c1.cert");
+		File f = new File(CERTSTORE_LOCATION+"/c1.cert");
+		certStore.updateFile(f);
+		assert(certStore.containsPublicKey(c1.getPublicKeyAsZ85()));
+		
+		// truncated by an editor that is about to write it again
+		new FileWriter(f).close();
+		certStore.updateFile(f);
+		assert(certStore.containsPublicKey(c1.getPublicKeyAsZ85()));
+		assert(certStore.getAmountCertificates() == 1);
+		
+		certStore.stopWatching();
+	}
+	
 //	This test has a very minimal chance to fail so I take it out for now 
 //	@Test
 	public void testCheckThread() {
@@ -3,18 +3,27 @@ package org.zeromq;
 import org.junit.Test;
 
 import java.text.MessageFormat;
+import java.util.Collections;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
 /**
  */
@@ -194,6 +203,273 @@ public class ZDispatcherTest {
         ctx.destroy();
     }
 
+    @Test
+    public void testRepliesFromHandlersWakeTheLoop() throws InterruptedException {
+        final int nRounds = 100;
+        final CountDownLatch latch = new CountDownLatch(nRounds);
+        ZContext ctx = new ZContext();
+
+        ZMQ.Socket socketOne = ctx.createSocket(ZMQ.PAIR);
+        socketOne.bind("inproc://zmsg.test");
+        ZMQ.Socket socketTwo = ctx.createSocket(ZMQ.PAIR);
+        socketTwo.connect("inproc://zmsg.test");
+
+        ZDispatcher dispatcher = new ZDispatcher();
+
+        // Ping pong, each message sent from a handler thread
+        ZDispatcher.ZSender senderOne = new ZDispatcher.ZSender();
+        dispatcher.registerHandler(socketOne, new ZDispatcher.ZMessageHandler() {
+            @Override
+            public void handleMessage(ZDispatcher.ZSender sender, ZMsg msg) {
+                sender.send(msg);
+            }
+        }, senderOne);
+
+        ZDispatcher.ZSender senderTwo = new ZDispatcher.ZSender();
+        dispatcher.registerHandler(socketTwo, new ZDispatcher.ZMessageHandler() {
+            @Override
+            public void handleMessage(ZDispatcher.ZSender sender, ZMsg msg) {
+                latch.countDown();
+                if (latch.getCount() > 0) {
+                    sender.send(msg);
+                }
+            }
+        }, senderTwo);
+
+        ZMsg msg = new ZMsg();
+        msg.add(new ZFrame("Ping"));
+        senderTwo.send(msg);
+
+        latch.await(5, TimeUnit.SECONDS);
+        assertEquals(0, latch.getCount());
+
+        dispatcher.unregisterHandler(socketOne);
+        dispatcher.shutdown();
+        ctx.destroy();
+    }
+
+    @Test
+    public void testBlockedSocketDoesNotStallTheOthers() throws InterruptedException {
+        final int nRounds = 100;
+        final CountDownLatch latch = new CountDownLatch(nRounds);
+        ZContext ctx = new ZContext();
+
+        // No peer yet, so it has no room for what it is asked to send
+        ZMQ.Socket blocked = ctx.createSocket(ZMQ.DEALER);
+        blocked.bind("inproc://zmsg.blocked");
+        ZMQ.Socket socketOne = ctx.createSocket(ZMQ.PAIR);
+        socketOne.bind("inproc://zmsg.test");
+        ZMQ.Socket socketTwo = ctx.createSocket(ZMQ.PAIR);
+        socketTwo.connect("inproc://zmsg.test");
+
+        ZDispatcher dispatcher = new ZDispatcher();
+        ZDispatcher.ZMessageHandler echo = new ZDispatcher.ZMessageHandler() {
+            @Override
+            public void handleMessage(ZDispatcher.ZSender sender, ZMsg msg) {
+                latch.countDown();
+                if (latch.getCount() > 0) {
+                    sender.send(msg);
+                }
+            }
+        };
+        ZDispatcher.ZSender blockedSender = new ZDispatcher.ZSender();
+        dispatcher.registerHandler(blocked, echo, blockedSender);
+        blockedSender.send(ZMsg.newStringMsg("Stuck"));
+        dispatcher.registerHandler(socketOne, echo, new ZDispatcher.ZSender());
+        ZDispatcher.ZSender senderTwo = new ZDispatcher.ZSender();
+        dispatcher.registerHandler(socketTwo, echo, senderTwo);
+
+        senderTwo.send(ZMsg.newStringMsg("Ping"));
+        latch.await(5, TimeUnit.SECONDS);
+        assertEquals(0, latch.getCount());
+
+        // Once a peer shows up, the message that waited goes out
+        ZMQ.Socket peer = ctx.createSocket(ZMQ.ROUTER);
+        peer.setReceiveTimeOut(5000);
+        peer.connect("inproc://zmsg.blocked");
+        ZMsg stuck = ZMsg.recvMsg(peer);
+        assertEquals("Stuck", stuck.getLast().toString());
+
+        dispatcher.shutdown();
+        ctx.destroy();
+    }
+
+    @Test
+    public void testTerminatedContextOnlyDropsItsSocket() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ZMQ.Context doomed = ZMQ.context(1);
+        ZMQ.Socket lost = doomed.socket(ZMQ.PAIR);
+        lost.bind("inproc://zmsg.doomed");
+        ZContext ctx = new ZContext();
+        ZMQ.Socket socketOne = ctx.createSocket(ZMQ.PAIR);
+        socketOne.bind("inproc://zmsg.test");
+        ZMQ.Socket socketTwo = ctx.createSocket(ZMQ.PAIR);
+        socketTwo.connect("inproc://zmsg.test");
+
+        ZDispatcher dispatcher = new ZDispatcher();
+        ZDispatcher.ZMessageHandler count = new ZDispatcher.ZMessageHandler() {
+            @Override
+            public void handleMessage(ZDispatcher.ZSender sender, ZMsg msg) {
+                latch.countDown();
+            }
+        };
+        dispatcher.registerHandler(lost, count, new ZDispatcher.ZSender());
+        dispatcher.registerHandler(socketOne, count, new ZDispatcher.ZSender());
+
+        // Terminating waits for the socket to be closed, which is only done once the dispatcher let go of it
+        Thread term = new Thread() {
+            @Override
+            public void run() {
+                doomed.term();
+            }
+        };
+        term.start();
+        Thread.sleep(100);
+
+        socketTwo.send("Hello", 0);
+        latch.await(5, TimeUnit.SECONDS);
+        assertEquals(0, latch.getCount());
+
+        dispatcher.unregisterHandler(lost);
+        lost.close();
+        term.join(5000);
+        assertFalse(term.isAlive());
+
+        dispatcher.shutdown();
+        ctx.destroy();
+    }
+
+    @Test
+    public void testMessagesWithTheSameKeyKeepTheirOrder() throws InterruptedException {
+        final int nClients = 8;
+        final int nMessages = 200;
+        final AtomicBoolean orderIssueDetected = new AtomicBoolean(false);
+        final ConcurrentMap<ZFrame, AtomicInteger> expected = new ConcurrentHashMap<ZFrame, AtomicInteger>();
+        final CountDownLatch latch = new CountDownLatch(nClients * nMessages);
+        ZContext ctx = new ZContext();
+
+        ZMQ.Socket router = ctx.createSocket(ZMQ.ROUTER);
+        router.bind("inproc://zmsg.test");
+
+        ZDispatcher dispatcher = new ZDispatcher();
+        dispatcher.registerHandler(router, new ZDispatcher.ZMessageHandler() {
+            @Override
+            public void handleMessage(ZDispatcher.ZSender sender, ZMsg msg) {
+                ZFrame identity = msg.getFirst();
+                expected.putIfAbsent(identity, new AtomicInteger());
+                int sequence = Integer.parseInt(msg.getLast().toString());
+                if (expected.get(identity).getAndIncrement() != sequence) {
+                    orderIssueDetected.set(true);
+                }
+                latch.countDown();
+            }
+        }, new ZDispatcher.ZSender(), ZDispatcher.ROUTER_IDENTITY);
+
+        ZMQ.Socket[] clients = new ZMQ.Socket[nClients];
+        for (int c = 0; c < nClients; c++) {
+            clients[c] = ctx.createSocket(ZMQ.DEALER);
+            clients[c].connect("inproc://zmsg.test");
+        }
+        for (int i = 0; i < nMessages; i++) {
+            for (ZMQ.Socket client : clients) {
+                client.send(Integer.toString(i));
+            }
+        }
+
+        latch.await(5, TimeUnit.SECONDS);
+        assertEquals(0, latch.getCount());
+        assertEquals(nClients, expected.size());
+        assertFalse(orderIssueDetected.get());
+
+        dispatcher.shutdown();
+        ctx.destroy();
+    }
+
+    @Test
+    public void testSlowLaneLosesNoMessages() throws InterruptedException {
+        final int nClients = 4;
+        final int nMessages = 200;
+        final ZFrame slow = new ZFrame("slow");
+        final CountDownLatch latch = new CountDownLatch(nClients * nMessages);
+        ZContext ctx = new ZContext();
+
+        ZMQ.Socket router = ctx.createSocket(ZMQ.ROUTER);
+        router.bind("inproc://zmsg.test");
+
+        // Tiny lanes, so the slow one fills up while the others keep going
+        ZDispatcher dispatcher = new ZDispatcher(Executors.newSingleThreadExecutor(), 4);
+        dispatcher.registerHandler(router, new ZDispatcher.ZMessageHandler() {
+            @Override
+            public void handleMessage(ZDispatcher.ZSender sender, ZMsg msg) {
+                if (slow.equals(msg.getFirst())) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                latch.countDown();
+            }
+        }, new ZDispatcher.ZSender(), Executors.newFixedThreadPool(nClients), ZDispatcher.ROUTER_IDENTITY, nClients);
+
+        ZMQ.Socket[] clients = new ZMQ.Socket[nClients];
+        for (int c = 0; c < nClients; c++) {
+            clients[c] = ctx.createSocket(ZMQ.DEALER);
+            clients[c].setIdentity(c == 0 ? "slow".getBytes() : ("fast" + c).getBytes());
+            clients[c].connect("inproc://zmsg.test");
+        }
+        for (int i = 0; i < nMessages; i++) {
+            for (ZMQ.Socket client : clients) {
+                client.send(Integer.toString(i));
+            }
+        }
+
+        latch.await(10, TimeUnit.SECONDS);
+        assertEquals(0, latch.getCount());
+
+        dispatcher.shutdown();
+        ctx.destroy();
+    }
+
+    @Test
+    public void testHandlerExecutorKeepsItsBudget() throws InterruptedException {
+        final int nTasks = 32;
+        final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        final CountDownLatch latch = new CountDownLatch(nTasks);
+        ExecutorService executor = ZDispatcher.newHandlerExecutor(2, true);
+        for (int i = 0; i < nTasks; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    threads.add(Thread.currentThread());
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await(1, TimeUnit.SECONDS);
+        assertEquals(0, latch.getCount());
+        assertTrue(threads.size() <= 2);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSenderBackpressure() {
+        // Not registered, so nothing drains the queue
+        ZDispatcher.ZSender dropping = new ZDispatcher.ZSender(2, ZDispatcher.Backpressure.DROP);
+        assertTrue(dropping.send(new ZMsg()));
+        assertTrue(dropping.send(new ZMsg()));
+        assertFalse(dropping.send(new ZMsg()));
+
+        ZDispatcher.ZSender rejecting = new ZDispatcher.ZSender(2, ZDispatcher.Backpressure.REJECT);
+        assertTrue(rejecting.send(new ZMsg()));
+        assertTrue(rejecting.send(new ZMsg()));
+        try {
+            rejecting.send(new ZMsg());
+            fail("Expected the full queue to reject the message");
+        } catch (IllegalStateException e) {
+        }
+    }
+
     @Test
     public void dispatcherPerformanceTest() throws InterruptedException {
         final int nMessages = 1000000;
@@ -0,0 +1,111 @@
+package org.zeromq;
+
+import org.junit.Test;
+import org.zeromq.ZMQ.Socket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ZFlatMsgTest {
+
+    @Test
+    public void testAddAndPop() {
+        ZFlatMsg msg = new ZFlatMsg(4, 1);
+        msg.add("Hello");
+        msg.add("World");
+        msg.add(new byte[0]);
+        assertEquals(3, msg.size());
+        assertEquals(10, msg.contentSize());
+        assertEquals("World", msg.getString(1));
+        assertEquals(0, msg.frameSize(2));
+        assertTrue(msg.frameEquals(0, "Hello".getBytes()));
+        assertFalse(msg.frameEquals(1, "Hello".getBytes()));
+
+        assertEquals("Hello", msg.popString());
+        assertArrayEquals("World".getBytes(), msg.pop());
+        assertEquals(0, msg.pop().length);
+        assertTrue(msg.isEmpty());
+        assertNull(msg.pop());
+    }
+
+    @Test
+    public void testEnvelope() {
+        ZFlatMsg msg = new ZFlatMsg(8, 1);
+        msg.add("body");
+        byte[] address = new byte[100];
+        address[99] = 7;
+        for (int i = 0; i < 5; i++) {
+            msg.wrap(address);
+            assertEquals(2 + 2 * i, msg.size() - 1);
+        }
+        assertEquals(11, msg.size());
+        for (int i = 0; i < 5; i++)
+            assertArrayEquals(address, msg.unwrap());
+        assertEquals(1, msg.size());
+        assertEquals("body", msg.getString(0));
+
+        msg.push("a");
+        msg.push("b");
+        assertEquals("b", msg.getString(0));
+        assertEquals("a", msg.getString(1));
+        assertEquals("body", msg.getString(2));
+    }
+
+    @Test
+    public void testZMsgConversion() {
+        ZMsg zmsg = new ZMsg();
+        zmsg.add("one");
+        zmsg.add("");
+        zmsg.add("three");
+        ZFlatMsg flat = ZFlatMsg.from(zmsg);
+        assertEquals(3, flat.size());
+        assertEquals(zmsg, flat.toZMsg());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testIndexOutOfRange() {
+        ZFlatMsg msg = new ZFlatMsg();
+        msg.add("one");
+        msg.getFrame(1);
+    }
+
+    @Test
+    public void testSendAndRecv() {
+        if (ZMQ.version_full() < ZMQ.make_version(3, 0, 0))
+            return;
+
+        ZContext ctx = new ZContext();
+        Socket output = ctx.createSocket(ZMQ.PAIR);
+        output.bind("inproc://zflatmsg.test");
+        Socket input = ctx.createSocket(ZMQ.PAIR);
+        input.connect("inproc://zflatmsg.test");
+
+        ZFlatMsg msg = new ZFlatMsg(2, 1);
+        msg.add("Hello");
+        msg.wrap("address".getBytes());
+        assertTrue(msg.send(output));
+
+        ZMsg zmsg = new ZMsg();
+        zmsg.add("World");
+        zmsg.send(output);
+
+        ZFlatMsg received = new ZFlatMsg(2, 1);
+        assertTrue(received.recv(input, 0));
+        assertEquals(3, received.size());
+        assertArrayEquals("address".getBytes(), received.unwrap());
+        assertEquals("Hello", received.getString(0));
+
+        assertTrue(received.recv(input, 0));
+        assertEquals(1, received.size());
+        assertEquals("World", received.getString(0));
+
+        assertFalse(received.recv(input, ZMQ.DONTWAIT));
+        assertTrue(received.isEmpty());
+        assertNull(ZFlatMsg.recvMsg(input, ZMQ.DONTWAIT));
+
+        ctx.close();
+    }
+}
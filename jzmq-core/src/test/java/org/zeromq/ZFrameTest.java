@@ -7,6 +7,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 
 /**
  * Tests ZFrame class
@@ -134,4 +135,93 @@ public class ZFrameTest {
 
         ctx.close();
     }
+
+    @Test
+    public void testPooledFrames() {
+        assumeTrue(ZMQ.version_full() >= ZMQ.make_version(3, 0, 0));
+
+        ZBufferPool pool = new ZBufferPool(16, 1024, 4, 1);
+        ZContext ctx = new ZContext();
+        Socket output = ctx.createSocket(ZMQ.PAIR);
+        output.bind("inproc://zframe.test");
+        Socket input = ctx.createSocket(ZMQ.PAIR);
+        input.connect("inproc://zframe.test");
+
+        ZFrame f = new ZFrame(pool, 5);
+        f.getBuffer().put("Hello".getBytes());
+        assertTrue(f.hasData());
+        assertEquals(5, f.size());
+        assertTrue(f.streq("Hello"));
+        assertTrue(f.send(output, ZMQ.SNDMORE));
+        f.destroy();
+
+        new ZFrame(new byte[700]).send(output, 0);
+
+        ZFrame small = ZFrame.recvFrame(input, 0, pool);
+        assertTrue(small.hasMore());
+        assertEquals(5, small.size());
+        assertEquals(16, small.capacity());
+        assertTrue(small.getBuffer().isDirect());
+        assertEquals(new ZFrame("Hello"), small);
+
+        ZFrame large = ZFrame.recvFrame(input, 0, pool);
+        assertFalse(large.hasMore());
+        assertEquals(700, large.size());
+        assertEquals(1024, large.capacity());
+
+        ZFrame copy = small.duplicate();
+        small.destroy();
+        assertTrue(copy.streq("Hello"));
+
+        assertNull(ZFrame.recvFrame(input, ZMQ.DONTWAIT, pool));
+        ctx.close();
+    }
+
+    @Test(expected = ZMQException.class)
+    public void testPooledFrameTooLarge() {
+        assumeTrue(ZMQ.version_full() >= ZMQ.make_version(3, 0, 0));
+
+        ZBufferPool pool = new ZBufferPool(16, 64, 4, 1);
+        ZContext ctx = new ZContext();
+        try {
+            Socket output = ctx.createSocket(ZMQ.PAIR);
+            output.bind("inproc://zframe.test");
+            Socket input = ctx.createSocket(ZMQ.PAIR);
+            input.connect("inproc://zframe.test");
+
+            new ZFrame(new byte[100]).send(output, 0);
+            ZFrame.recvFrame(input, 0, pool);
+        } finally {
+            ctx.close();
+        }
+    }
+
+    @Test
+    public void testStreqAndStartsWith() throws Exception {
+        String[] samples = { "", "Hello", "h\u00e9llo", "\u20ac42", "\ud83d\ude00!", "bad\ud800" };
+        for (String sample : samples) {
+            ZFrame f = new ZFrame(sample);
+            assertTrue(sample, f.streq(sample));
+            assertTrue(sample, f.startsWith(sample));
+            assertTrue(sample, f.startsWith(""));
+            assertFalse(sample, f.streq(sample + "x"));
+            assertFalse(sample, f.startsWith(sample + "x"));
+            if (sample.length() > 0) {
+                assertFalse(sample, f.streq(sample.substring(1)));
+            }
+        }
+
+        ZFrame f = new ZFrame("topic.prices.eur");
+        assertTrue(f.startsWith("topic."));
+        assertTrue(f.startsWith("topic.prices"));
+        assertFalse(f.startsWith("topic.trades"));
+        assertFalse(f.streq("topic."));
+        assertFalse(new ZFrame().streq(""));
+
+        ZFrame pooled = new ZFrame(new ZBufferPool(), 6);
+        pooled.getBuffer().put("h\u00e9llo".getBytes("UTF-8"));
+        assertTrue(pooled.streq("h\u00e9llo"));
+        assertTrue(pooled.startsWith("h\u00e9"));
+        assertFalse(pooled.startsWith("he"));
+    }
 }
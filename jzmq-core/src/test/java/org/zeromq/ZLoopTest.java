@@ -242,4 +242,104 @@ public class ZLoopTest {
         loop.removePoller(pollInput);
         Assert.assertEquals("PING", received);
     }
+
+    @Test
+    public void testZLoopCancelTimer() {
+        ZLoop loop = new ZLoop();
+
+        ZLoop.IZLoopHandler timerEvent = new ZLoop.IZLoopHandler() {
+
+            @Override
+            public int handle(ZLoop loop, PollItem item, Object arg) {
+                ((Socket) arg).send("PING", 0);
+                return 0;
+            }
+        };
+
+        ZLoop.IZLoopHandler cancelEvent = new ZLoop.IZLoopHandler() {
+
+            @Override
+            public int handle(ZLoop loop, PollItem item, Object arg) {
+                ((ZLoop.Timer) arg).cancel();
+                return 0;
+            }
+        };
+
+        ZLoop.IZLoopHandler socketEvent = new ZLoop.IZLoopHandler() {
+
+            @Override
+            public int handle(ZLoop loop, PollItem item, Object arg) {
+                received = ((Socket) arg).recvStr(0);
+                return -1;
+            }
+        };
+
+        ZLoop.IZLoopHandler shutdownEvent = new ZLoop.IZLoopHandler() {
+
+            @Override
+            public int handle(ZLoop loop, PollItem item, Object arg) {
+                received = "TIMEOUT";
+                return -1;
+            }
+        };
+
+        // A repeating ping, cancelled by another timer before it fires
+        ZLoop.Timer ping = loop.addTimer(20, 0, timerEvent, input);
+        loop.addTimer(5, 1, cancelEvent, ping);
+        // And one cancelled from outside the loop
+        loop.addTimer(10, 1, timerEvent, input).cancel();
+        loop.addTimer(50, 1, shutdownEvent, null);
+
+        // A ping getting through ends the reactor early
+        PollItem pollInput = new PollItem(output, Poller.POLLIN);
+        loop.addPoller(pollInput, socketEvent, output);
+
+        Assert.assertFalse(ping.isCancelled());
+        loop.start();
+
+        loop.removePoller(pollInput);
+        Assert.assertTrue(ping.isCancelled());
+        Assert.assertEquals("TIMEOUT", received);
+    }
+
+    @Test
+    public void testZLoopReplacePollerFromHandler() {
+        ZLoop loop = new ZLoop();
+
+        final Socket output2 = ctx.createSocket(ZMQ.PAIR);
+        output2.bind("inproc://zloop.test2");
+        final Socket input2 = ctx.createSocket(ZMQ.PAIR);
+        input2.connect("inproc://zloop.test2");
+
+        final ZLoop.IZLoopHandler secondEvent = new ZLoop.IZLoopHandler() {
+
+            @Override
+            public int handle(ZLoop loop, PollItem item, Object arg) {
+                received = ((Socket) arg).recvStr(0);
+                return -1;
+            }
+        };
+
+        ZLoop.IZLoopHandler firstEvent = new ZLoop.IZLoopHandler() {
+
+            @Override
+            public int handle(ZLoop loop, PollItem item, Object arg) {
+                ((Socket) arg).recvStr(0);
+                // Swap this poller for one on the second pair
+                loop.removePoller(item);
+                loop.addPoller(new PollItem(output2, Poller.POLLIN), secondEvent, output2);
+                input2.send("PONG", 0);
+                // Would be handled by this poller if it were still registered
+                input.send("PING", 0);
+                return 0;
+            }
+        };
+
+        loop.addPoller(new PollItem(output, Poller.POLLIN), firstEvent, output);
+        input.send("PING", 0);
+        loop.start();
+
+        Assert.assertEquals("PONG", received);
+        Assert.assertEquals("PING", output.recvStr(0));
+    }
 }
@@ -10,13 +10,16 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 public class ZMsgTest {
 
@@ -188,6 +191,40 @@ public class ZMsgTest {
         }
     }
 
+    @Test
+    public void testPooledMessageTooLarge() {
+        assumeTrue(ZMQ.version_full() >= ZMQ.make_version(3, 0, 0));
+
+        ZBufferPool pool = new ZBufferPool(16, 64, 4, 1);
+        ByteBuffer small = pool.acquire(5);
+        pool.release(small);
+
+        ZContext ctx = new ZContext();
+        Socket output = ctx.createSocket(ZMQ.PAIR);
+        output.bind("inproc://zmsg.test");
+        Socket input = ctx.createSocket(ZMQ.PAIR);
+        input.connect("inproc://zmsg.test");
+
+        output.sendMore("Hello");
+        output.send(new byte[100], ZMQ.SNDMORE);
+        output.send("World");
+        output.send("Next");
+
+        try {
+            ZMsg.recvMsg(input, 0, pool);
+            fail("Expected ENOBUFS");
+        } catch (ZMQException e) {
+            assertEquals(ZMQ.Error.ENOBUFS.getCode(), e.getErrorCode());
+        }
+        // The first frame gave its buffer back and the rest was dropped
+        assertSame(small, pool.acquire(5));
+        ZMsg next = ZMsg.recvMsg(input, 0, pool);
+        assertEquals(1, next.size());
+        assertEquals("Next", next.popString());
+
+        ctx.destroy();
+    }
+
     @Test
     public void testNewStringMessage() {
         // A single string => frame
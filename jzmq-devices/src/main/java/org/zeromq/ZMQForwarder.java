@@ -6,13 +6,20 @@ import org.zeromq.ZMQ.Socket;
 /**
  * ZeroMQ Forwarder Device implementation.
  * 
+ * Messages from one or more input sockets are forwarded to a single output
+ * socket. After each wakeup up to drainBudget messages are taken from every
+ * ready input without polling again, so a busy input does not cost one poll
+ * per message and cannot starve the others for long.
+ * 
  * @author Alois Belaska &lt;alois.belaska@gmail.com&gt;
  */
 public class ZMQForwarder implements Runnable {
 
     private final ZMQ.Poller poller;
-    private final ZMQ.Socket inSocket;
+    private final ZMQ.Socket[] inSockets;
     private final ZMQ.Socket outSocket;
+    private final int drainBudget;
+    private final ZMQInspector inspector;
 
     /**
      * Class constructor.
@@ -22,11 +29,47 @@ public class ZMQForwarder implements Runnable {
      * @param outSocket output socket
      */
     public ZMQForwarder(Context context, Socket inSocket, Socket outSocket) {
-        this.inSocket = inSocket;
+        this(context, inSocket, outSocket, null);
+    }
+
+    /**
+     * Class constructor.
+     * 
+     * @param context a 0MQ context previously created.
+     * @param inSocket input socket
+     * @param outSocket output socket
+     * @param inspector called for each message part forwarded, may be null
+     */
+    public ZMQForwarder(Context context, Socket inSocket, Socket outSocket, ZMQInspector inspector) {
+        this(context, new Socket[] { inSocket }, outSocket, 1, inspector);
+    }
+
+    /**
+     * Class constructor.
+     * 
+     * @param context a 0MQ context previously created.
+     * @param inSockets input sockets
+     * @param outSocket output socket
+     * @param drainBudget most messages forwarded from one input per wakeup
+     * @param inspector called for each message part forwarded, may be null
+     */
+    public ZMQForwarder(Context context, Socket[] inSockets, Socket outSocket, int drainBudget,
+            ZMQInspector inspector) {
+        if (inSockets.length == 0) {
+            throw new IllegalArgumentException("No input socket");
+        }
+        if (drainBudget < 1) {
+            throw new IllegalArgumentException("Drain budget must be at least 1");
+        }
+        this.inSockets = inSockets.clone();
         this.outSocket = outSocket;
+        this.drainBudget = drainBudget;
+        this.inspector = inspector;
 
-        this.poller = context.poller(1);
-        this.poller.register(inSocket, ZMQ.Poller.POLLIN);
+        this.poller = context.poller(inSockets.length);
+        for (Socket inSocket : this.inSockets) {
+            this.poller.register(inSocket, ZMQ.Poller.POLLIN);
+        }
     }
 
     /**
@@ -34,30 +77,68 @@ public class ZMQForwarder implements Runnable {
      */
     @Override
     public void run() {
-        byte[] msg = null;
-        boolean more = true;
+        ZMQ.Message part = inspector != null ? new ZMQ.Message() : null;
 
-        while (!Thread.currentThread().isInterrupted()) {
-            try {
-                // wait while there are requests to process
-                if (poller.poll(250000) < 1) {
-                    continue;
-                }
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    // wait while there are requests to process
+                    if (poller.poll(250000) < 1) {
+                        continue;
+                    }
 
-                msg = inSocket.recv(0);
+                    for (int i = 0; i < inSockets.length; i++) {
+                        if (poller.pollin(i)) {
+                            drain(inSockets[i], part);
+                        }
+                    }
+                } catch (ZMQException e) {
+                    // context destroyed, exit
+                    if (ZMQ.Error.ETERM.getCode() == e.getErrorCode()) {
+                        break;
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            if (part != null) {
+                part.close();
+            }
+        }
+    }
 
-                more = inSocket.hasReceiveMore();
+    /**
+     * Forward the messages waiting on inSocket, up to the drain budget.
+     */
+    private void drain(Socket inSocket, ZMQ.Message part) {
+        for (int n = 0; n < drainBudget; n++) {
+            boolean forwarded;
+            if (part == null) {
+                forwarded = inSocket.forward(outSocket, ZMQ.DONTWAIT) > 0;
+            } else {
+                forwarded = forward(inSocket, part, ZMQ.DONTWAIT);
+            }
+            if (!forwarded) {
+                return;
+            }
+        }
+    }
 
-                if (msg != null) {
-                    outSocket.send(msg, more ? ZMQ.SNDMORE : 0);
-                }
-            } catch (ZMQException e) {
-                // context destroyed, exit
-                if (ZMQ.Error.ETERM.getCode() == e.getErrorCode()) {
-                    break;
-                }
-                throw e;
+    /**
+     * Forward one whole message through the inspector.
+     */
+    private boolean forward(Socket inSocket, ZMQ.Message part, int flags) {
+        boolean more = true;
+        while (more) {
+            if (!inSocket.recvMessage(part, flags)) {
+                return false;
             }
+            more = part.hasMore();
+            inspector.inspect(inSocket, part);
+            outSocket.sendMessage(part, more ? ZMQ.SNDMORE : 0);
+            // the rest of the message is already queued
+            flags = 0;
         }
+        return true;
     }
 }
@@ -0,0 +1,20 @@
+package org.zeromq;
+
+import org.zeromq.ZMQ.Socket;
+
+/**
+ * Hook called by the devices for each message part they forward.
+ *
+ * The part is not copied out of 0MQ: {@link ZMQ.Message#data()} is a
+ * read-only view of the payload that is only valid until inspect returns.
+ */
+public interface ZMQInspector {
+
+    /**
+     * Called before a part is sent on.
+     *
+     * @param source socket the part was received from
+     * @param part the part; {@link ZMQ.Message#hasMore()} tells whether more parts follow
+     */
+    void inspect(Socket source, ZMQ.Message part);
+}
@@ -16,6 +16,7 @@ public class ZMQQueue implements Runnable, Closeable {
     private final ZMQ.Poller poller;
     private final ZMQ.Socket inSocket;
     private final ZMQ.Socket outSocket;
+    private final ZMQInspector inspector;
 
     /**
      * Class constructor.
@@ -25,8 +26,21 @@ public class ZMQQueue implements Runnable, Closeable {
      * @param outSocket output socket
      */
     public ZMQQueue(Context context, Socket inSocket, Socket outSocket) {
+        this(context, inSocket, outSocket, null);
+    }
+
+    /**
+     * Class constructor.
+     * 
+     * @param context a 0MQ context previously created.
+     * @param inSocket input socket
+     * @param outSocket output socket
+     * @param inspector called for each message part forwarded, may be null
+     */
+    public ZMQQueue(Context context, Socket inSocket, Socket outSocket, ZMQInspector inspector) {
         this.inSocket = inSocket;
         this.outSocket = outSocket;
+        this.inspector = inspector;
 
         this.poller = context.poller(2);
         this.poller.register(inSocket, ZMQ.Poller.POLLIN);
@@ -38,50 +52,57 @@ public class ZMQQueue implements Runnable, Closeable {
      */
     @Override
     public void run() {
-        byte[] msg = null;
-        boolean more = true;
+        ZMQ.Message part = inspector != null ? new ZMQ.Message() : null;
 
-        while (!Thread.currentThread().isInterrupted()) {
-            try {
-                // wait while there are either requests or replies to process
-                if (poller.poll(-1) < 0) {
-                    break;
-                }
-
-                // process a request
-                if (poller.pollin(0)) {
-                    more = true;
-                    while (more) {
-                        msg = inSocket.recv(0);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    // wait while there are either requests or replies to process
+                    if (poller.poll(-1) < 0) {
+                        break;
+                    }
 
-                        more = inSocket.hasReceiveMore();
+                    // process a request
+                    if (poller.pollin(0)) {
+                        forward(inSocket, outSocket, part);
+                    }
 
-                        if (msg != null) {
-                            outSocket.send(msg, more ? ZMQ.SNDMORE : 0);
-                        }
+                    // process a reply
+                    if (poller.pollin(1)) {
+                        forward(outSocket, inSocket, part);
                     }
+                } catch (ZMQException e) {
+                    // context destroyed, exit
+                    if (ZMQ.Error.ETERM.getCode() == e.getErrorCode()) {
+                        break;
+                    }
+                    throw e;
                 }
+            }
+        } finally {
+            if (part != null) {
+                part.close();
+            }
+        }
+    }
 
-                // process a reply
-                if (poller.pollin(1)) {
-                    more = true;
-                    while (more) {
-                        msg = outSocket.recv(0);
-
-                        more = outSocket.hasReceiveMore();
+    /**
+     * Forward one whole message, natively unless it has to be inspected.
+     */
+    private void forward(Socket from, Socket to, ZMQ.Message part) {
+        if (part == null) {
+            from.forward(to, 0);
+            return;
+        }
 
-                        if (msg != null) {
-                            inSocket.send(msg, more ? ZMQ.SNDMORE : 0);
-                        }
-                    }
-                }
-            } catch (ZMQException e) {
-                // context destroyed, exit
-                if (ZMQ.Error.ETERM.getCode() == e.getErrorCode()) {
-                    break;
-                }
-                throw e;
+        boolean more = true;
+        while (more) {
+            if (!from.recvMessage(part, 0)) {
+                return;
             }
+            more = part.hasMore();
+            inspector.inspect(from, part);
+            to.sendMessage(part, more ? ZMQ.SNDMORE : 0);
         }
     }
 
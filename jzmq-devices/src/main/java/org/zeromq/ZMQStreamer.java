@@ -20,4 +20,16 @@ public class ZMQStreamer extends ZMQForwarder {
     public ZMQStreamer(Context context, Socket inSocket, Socket outSocket) {
         super(context, inSocket, outSocket);
     }
+
+    /**
+     * Class constructor.
+     * 
+     * @param context a 0MQ context previously created.
+     * @param inSocket input socket
+     * @param outSocket output socket
+     * @param inspector called for each message part forwarded, may be null
+     */
+    public ZMQStreamer(Context context, Socket inSocket, Socket outSocket, ZMQInspector inspector) {
+        super(context, inSocket, outSocket, inspector);
+    }
 }
@@ -1,6 +1,10 @@
 package org.zeromq;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashSet;
+import java.util.Set;
 
 import org.junit.Test;
 
@@ -38,4 +42,43 @@ public class ZMQForwarderTest {
 
         t.interrupt();
     }
+
+    @Test
+    public void testFanIn() throws InterruptedException {
+        ZMQ.Context context = ZMQ.context(1);
+
+        ZMQ.Socket[] inputs = new ZMQ.Socket[2];
+        ZMQ.Socket[] senders = new ZMQ.Socket[2];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = context.socket(ZMQ.PULL);
+            inputs[i].bind("inproc://fan_in" + i);
+            senders[i] = context.socket(ZMQ.PUSH);
+            senders[i].connect("inproc://fan_in" + i);
+        }
+
+        ZMQ.Socket output = context.socket(ZMQ.PUSH);
+        output.bind("inproc://fan_out");
+        ZMQ.Socket receiver = context.socket(ZMQ.PULL);
+        receiver.connect("inproc://fan_out");
+
+        Thread t = new Thread(new ZMQForwarder(context, inputs, output, 4, null));
+        t.start();
+
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < senders.length; j++) {
+                senders[j].send(("part" + j).getBytes(), ZMQ.SNDMORE);
+                senders[j].send(("message" + i).getBytes(), 0);
+            }
+        }
+
+        Set<String> received = new HashSet<String>();
+        for (int i = 0; i < 20; i++) {
+            byte[][] msg = receiver.recvMultipart();
+            assertEquals(2, msg.length);
+            received.add(new String(msg[0]) + "/" + new String(msg[1]));
+        }
+        assertEquals(20, received.size());
+
+        t.interrupt();
+    }
 }
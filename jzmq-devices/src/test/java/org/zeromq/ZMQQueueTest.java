@@ -1,6 +1,12 @@
 package org.zeromq;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -47,4 +53,55 @@ public class ZMQQueueTest {
 		
 		t.interrupt();
 	}
+
+	@Test
+	public void testQueueInspector() throws InterruptedException {
+		ZMQ.Context context = ZMQ.context(1);
+
+		ZMQ.Socket clients = context.socket(ZMQ.XREP);
+		clients.bind("inproc://inspect_clients");
+
+		ZMQ.Socket workers = context.socket(ZMQ.XREQ);
+		workers.bind("inproc://inspect_workers");
+
+		ZMQ.Socket client = context.socket(ZMQ.DEALER);
+		client.connect("inproc://inspect_clients");
+
+		ZMQ.Socket worker = context.socket(ZMQ.DEALER);
+		worker.connect("inproc://inspect_workers");
+
+		final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+		ZMQInspector inspector = new ZMQInspector() {
+			@Override
+			public void inspect(ZMQ.Socket source, ZMQ.Message part) {
+				ByteBuffer data = part.data();
+				byte[] bytes = new byte[data.remaining()];
+				data.get(bytes);
+				seen.add(new String(bytes) + (part.hasMore() ? "+" : ""));
+			}
+		};
+
+		Thread t = new Thread(new ZMQQueue(context, clients, workers, inspector));
+		t.start();
+
+		client.send("header".getBytes(), ZMQ.SNDMORE);
+		client.send("body".getBytes(), 0);
+
+		// worker gets the identity frame first, then the two parts
+		byte[][] request = worker.recvMultipart();
+		assertEquals(3, request.length);
+		assertArrayEquals("header".getBytes(), request[1]);
+		assertArrayEquals("body".getBytes(), request[2]);
+
+		worker.sendMultipart(new byte[][] { request[0], "reply".getBytes() });
+		assertArrayEquals("reply".getBytes(), client.recv(0));
+
+		// identity frames are not printable, check the rest
+		assertEquals(5, seen.size());
+		assertEquals("header+", seen.get(1));
+		assertEquals("body", seen.get(2));
+		assertEquals("reply", seen.get(4));
+
+		t.interrupt();
+	}
 }
@@ -0,0 +1,166 @@
+/*
+    Copyright (c) 2007-2013 Contributors as noted in the AUTHORS file
+
+    This file is part of 0MQ.
+
+    0MQ is free software; you can redistribute it and/or modify it under
+    the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    0MQ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+#include <zmq.h>
+
+#include "jzmq.hpp"
+#include "util.hpp"
+#include "org_zeromq_ZMQ_Message.h"
+
+static jfieldID storageFID;
+static jfieldID moreFID;
+
+//  Backing address handed out for empty messages.
+static char empty_data [1];
+
+static zmq_msg_t *get_msg (JNIEnv *env, jobject obj)
+{
+    jobject storage = env->GetObjectField (obj, storageFID);
+    zmq_msg_t *msg = (zmq_msg_t*) env->GetDirectBufferAddress (storage);
+    env->DeleteLocalRef (storage);
+    return msg;
+}
+
+JNIEXPORT void JNICALL
+Java_org_zeromq_ZMQ_00024Message_nativeInit (JNIEnv *env, jclass cls)
+{
+    storageFID = env->GetFieldID (cls, "storage", "Ljava/nio/ByteBuffer;");
+    moreFID = env->GetFieldID (cls, "more", "Z");
+}
+
+JNIEXPORT jint JNICALL
+Java_org_zeromq_ZMQ_00024Message_sizeOf (JNIEnv *env, jclass cls)
+{
+    return sizeof (zmq_msg_t);
+}
+
+/**
+ * Called by Java's Message::init().
+ */
+JNIEXPORT void JNICALL
+Java_org_zeromq_ZMQ_00024Message_init (JNIEnv *env, jobject obj)
+{
+    zmq_msg_t *msg = get_msg (env, obj);
+    if (zmq_msg_init (msg) != 0)
+        raise_exception (env, zmq_errno());
+}
+
+/**
+ * Called by Java's Message::release(). Gives the message data back to 0MQ
+ * and leaves an empty message behind, ready for the next receive.
+ */
+JNIEXPORT void JNICALL
+Java_org_zeromq_ZMQ_00024Message_release (JNIEnv *env, jobject obj)
+{
+    zmq_msg_t *msg = get_msg (env, obj);
+    if (zmq_msg_close (msg) != 0) {
+        raise_exception (env, zmq_errno());
+        return;
+    }
+    if (zmq_msg_init (msg) != 0)
+        raise_exception (env, zmq_errno());
+}
+
+/**
+ * Called by Java's Message::recv(long socket, int flags). Receiving releases
+ * whatever the message held before. Returns the size of the message, or -1
+ * if nothing was received.
+ */
+JNIEXPORT jint JNICALL
+Java_org_zeromq_ZMQ_00024Message_recv (JNIEnv *env, jobject obj, jlong socket, jint flags)
+{
+    zmq_msg_t *msg = get_msg (env, obj);
+
+#if ZMQ_VERSION >= ZMQ_MAKE_VERSION(3,0,0)
+    int rc = zmq_recvmsg ((void *) socket, msg, flags);
+#else
+    int rc = zmq_recv ((void *) socket, msg, flags);
+#endif
+    if (rc < 0) {
+        int err = zmq_errno();
+        //  A failed receive may leave the old contents in place, so release
+        //  them and leave the message empty.
+        zmq_msg_close (msg);
+        zmq_msg_init (msg);
+        if (err != EAGAIN)
+            raise_exception (env, err);
+        return -1;
+    }
+
+#if ZMQ_VERSION >= ZMQ_MAKE_VERSION(3,0,0)
+    int more = 0;
+#else
+    int64_t more = 0;
+#endif
+    size_t more_size = sizeof (more);
+    zmq_getsockopt ((void *) socket, ZMQ_RCVMORE, &more, &more_size);
+    env->SetBooleanField (obj, moreFID, more != 0);
+
+    return (jint) zmq_msg_size (msg);
+}
+
+/**
+ * Called by Java's Message::send(long socket, int flags). On success 0MQ
+ * takes over the data and leaves the message empty.
+ */
+JNIEXPORT jboolean JNICALL
+Java_org_zeromq_ZMQ_00024Message_send (JNIEnv *env, jobject obj, jlong socket, jint flags)
+{
+    zmq_msg_t *msg = get_msg (env, obj);
+
+#if ZMQ_VERSION >= ZMQ_MAKE_VERSION(3,0,0)
+    int rc = zmq_sendmsg ((void *) socket, msg, flags);
+#else
+    int rc = zmq_send ((void *) socket, msg, flags);
+#endif
+    if (rc < 0) {
+        int err = zmq_errno();
+        if (err != EAGAIN)
+            raise_exception (env, err);
+        return JNI_FALSE;
+    }
+    return JNI_TRUE;
+}
+
+/**
+ * Called by Java's Message::buffer().
+ */
+JNIEXPORT jobject JNICALL
+Java_org_zeromq_ZMQ_00024Message_buffer (JNIEnv *env, jobject obj)
+{
+    zmq_msg_t *msg = get_msg (env, obj);
+    size_t size = zmq_msg_size (msg);
+    void *data = size > 0 ? zmq_msg_data (msg) : empty_data;
+    return env->NewDirectByteBuffer (data, size);
+}
+
+/**
+ * Called by Java's Message::copy(byte[] dst, int offset).
+ */
+JNIEXPORT void JNICALL
+Java_org_zeromq_ZMQ_00024Message_copy (JNIEnv *env, jobject obj, jbyteArray dst, jint offset)
+{
+    zmq_msg_t *msg = get_msg (env, obj);
+    jsize size = (jsize) zmq_msg_size (msg);
+    if (dst == NULL || offset < 0 || offset > env->GetArrayLength (dst) - size) {
+        raise_exception (env, EINVAL);
+        return;
+    }
+    env->SetByteArrayRegion (dst, offset, size, (jbyte*) zmq_msg_data (msg));
+}
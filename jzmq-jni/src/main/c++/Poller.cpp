@@ -18,6 +18,7 @@
 */
 
 #include <assert.h>
+#include <string.h>
 
 #include <zmq.h>
 
@@ -33,6 +34,20 @@ static jfieldID field_revents;
 static void *fetch_socket (JNIEnv *env, jobject socket);
 static int fetch_socket_fd (JNIEnv *env, jobject socket);
 
+/**
+ * Poll set kept in step with a Java Poller. The zmq_pollitem_t array is
+ * dense; slots maps each entry back to its index in the Java poll set and
+ * positions maps a Java index to its entry, or -1.
+ */
+struct poll_set_t {
+    zmq_pollitem_t *items;
+    int *slots;
+    int count;
+    int capacity;
+    int *positions;
+    int positions_size;
+};
+
 JNIEXPORT jint JNICALL
 Java_org_zeromq_ZMQ_00024Poller_run_1poll (JNIEnv *env, jclass cls, jobjectArray socket_0mq, jint count, jlong timeout)
 {
@@ -107,6 +122,161 @@ Java_org_zeromq_ZMQ_00024Poller_run_1poll (JNIEnv *env, jclass cls, jobjectArray
     return rc;
 }
 
+/**
+ * Called by Java's Poller::pollset_new(int capacity).
+ */
+JNIEXPORT jlong JNICALL
+Java_org_zeromq_ZMQ_00024Poller_pollset_1new (JNIEnv *env, jclass cls, jint capacity)
+{
+    if (capacity < 1)
+        capacity = 1;
+
+    poll_set_t *set = new poll_set_t;
+    set->items = new zmq_pollitem_t [capacity];
+    set->slots = new int [capacity];
+    set->count = 0;
+    set->capacity = capacity;
+    set->positions = new int [capacity];
+    set->positions_size = capacity;
+    for (int i = 0; i < capacity; ++i)
+        set->positions [i] = -1;
+
+    return (jlong) set;
+}
+
+/**
+ * Called by Java's Poller::pollset_free(long set).
+ */
+JNIEXPORT void JNICALL
+Java_org_zeromq_ZMQ_00024Poller_pollset_1free (JNIEnv *env, jclass cls, jlong handle)
+{
+    poll_set_t *set = (poll_set_t*) handle;
+    if (set == NULL)
+        return;
+
+    delete [] set->items;
+    delete [] set->slots;
+    delete [] set->positions;
+    delete set;
+}
+
+/**
+ * Called by Java's Poller::pollset_add(long set, int index, PollItem item).
+ */
+JNIEXPORT void JNICALL
+Java_org_zeromq_ZMQ_00024Poller_pollset_1add (JNIEnv *env, jclass cls, jlong handle, jint index, jobject item)
+{
+    poll_set_t *set = (poll_set_t*) handle;
+    if (set == NULL || item == NULL || index < 0) {
+        raise_exception (env, EINVAL);
+        return;
+    }
+
+    void *s = fetch_socket (env, item);
+    int fd = (s == NULL) ? fetch_socket_fd (env, item) : 0;
+    if (s == NULL && fd < 0) {
+        raise_exception (env, EINVAL);
+        return;
+    }
+
+    if (index >= set->positions_size) {
+        int nsize = set->positions_size * 2;
+        if (nsize <= index)
+            nsize = index + 1;
+        int *positions = new int [nsize];
+        memcpy (positions, set->positions, set->positions_size * sizeof (int));
+        for (int i = set->positions_size; i < nsize; ++i)
+            positions [i] = -1;
+        delete [] set->positions;
+        set->positions = positions;
+        set->positions_size = nsize;
+    }
+
+    int pos = set->positions [index];
+    if (pos < 0) {
+        if (set->count == set->capacity) {
+            int ncap = set->capacity * 2;
+            zmq_pollitem_t *items = new zmq_pollitem_t [ncap];
+            int *slots = new int [ncap];
+            memcpy (items, set->items, set->count * sizeof (zmq_pollitem_t));
+            memcpy (slots, set->slots, set->count * sizeof (int));
+            delete [] set->items;
+            delete [] set->slots;
+            set->items = items;
+            set->slots = slots;
+            set->capacity = ncap;
+        }
+        pos = set->count++;
+        set->slots [pos] = index;
+        set->positions [index] = pos;
+    }
+
+    set->items [pos].socket = s;
+    set->items [pos].fd = fd;
+    set->items [pos].events = (short) env->GetIntField (item, field_events);
+    set->items [pos].revents = 0;
+}
+
+/**
+ * Called by Java's Poller::pollset_remove(long set, int index).
+ */
+JNIEXPORT void JNICALL
+Java_org_zeromq_ZMQ_00024Poller_pollset_1remove (JNIEnv *env, jclass cls, jlong handle, jint index)
+{
+    poll_set_t *set = (poll_set_t*) handle;
+    if (set == NULL || index < 0 || index >= set->positions_size)
+        return;
+
+    int pos = set->positions [index];
+    if (pos < 0)
+        return;
+
+    //  Move the last entry into the hole to keep the array dense.
+    int last = --set->count;
+    if (pos != last) {
+        set->items [pos] = set->items [last];
+        set->slots [pos] = set->slots [last];
+        set->positions [set->slots [pos]] = pos;
+    }
+    set->positions [index] = -1;
+}
+
+/**
+ * Called by Java's Poller::pollset_poll(long set, IntBuffer ready, long timeout).
+ *
+ * Writes an (index, revents) pair to ready for every signalled item and
+ * returns the number of pairs written.
+ */
+JNIEXPORT jint JNICALL
+Java_org_zeromq_ZMQ_00024Poller_pollset_1poll (JNIEnv *env, jclass cls, jlong handle, jobject ready, jlong timeout)
+{
+    poll_set_t *set = (poll_set_t*) handle;
+    jint *out = (jint*) env->GetDirectBufferAddress (ready);
+    if (set == NULL || out == NULL) {
+        raise_exception (env, EINVAL);
+        return 0;
+    }
+    if (set->count == 0)
+        return 0;
+
+    int rc = zmq_poll (set->items, set->count, (long) timeout);
+    if (rc < 0) {
+        raise_exception (env, zmq_errno());
+        return 0;
+    }
+
+    jlong max = env->GetDirectBufferCapacity (ready) / 2;
+    int n = 0;
+    for (int i = 0; i < set->count && n < rc && n < max; ++i) {
+        if (set->items [i].revents == 0)
+            continue;
+        out [2 * n] = set->slots [i];
+        out [2 * n + 1] = set->items [i].revents;
+        ++n;
+    }
+    return n;
+}
+
 /**
  * Get the value of socketHandle for the specified Java Socket.
  */
@@ -20,6 +20,11 @@
 #include <assert.h>
 #include <string.h>
 #include <zmq.h>
+#if defined _WIN32
+#include <windows.h>
+#else
+#include <pthread.h>
+#endif
 
 #include "jzmq.hpp"
 #include "util.hpp"
@@ -30,9 +35,50 @@ static jmethodID contextHandleMID;
 static jmethodID limitMID;
 static jmethodID positionMID;
 static jmethodID setPositionMID;
+static jfieldID  bufferLimitFID;
+static jfieldID  bufferPositionFID;
+static jfieldID  bufferMarkFID;
+static jclass    byteArrayClass;
+static JavaVM   *jvm;
+static jclass    reaperClass;
+static jmethodID enqueueMID;
+
+//  Threads 0MQ releases zero copy buffers on stay attached to the JVM, and
+//  are detached as they exit.
+#if defined _WIN32
+static DWORD     detachKey = FLS_OUT_OF_INDEXES;
+
+static void WINAPI s_detach (PVOID attached)
+{
+    if (attached)
+        jvm->DetachCurrentThread ();
+}
+#else
+static pthread_key_t detachKey;
+static bool      detachKeyCreated = false;
+
+static void s_detach (void *attached)
+{
+    jvm->DetachCurrentThread ();
+}
+#endif
 
 static zmq_msg_t* do_read(JNIEnv *env, jobject obj, zmq_msg_t *message, int flags);
 
+/**
+ * Look up a private int field of java.nio.Buffer, or return NULL if this
+ * JVM's Buffer does not have it.
+ */
+static jfieldID find_buffer_field (JNIEnv *env, jclass cls, const char *name)
+{
+    jfieldID fid = env->GetFieldID (cls, name, "I");
+    if (env->ExceptionCheck ()) {
+        env->ExceptionClear ();
+        return NULL;
+    }
+    return fid;
+}
+
 JNIEXPORT void JNICALL
 Java_org_zeromq_ZMQ_00024Socket_nativeInit (JNIEnv *env, jclass c)
 {
@@ -42,6 +88,38 @@ Java_org_zeromq_ZMQ_00024Socket_nativeInit (JNIEnv *env, jclass c)
     setPositionMID = env->GetMethodID(bbcls, "position", "(I)Ljava/nio/Buffer;");
     env->DeleteLocalRef(bbcls);
 
+    //  Reading and writing the Buffer fields directly saves an upcall into
+    //  Java per access. Fall back to the accessor methods if the fields
+    //  are not there.
+    jclass bcls = env->FindClass("java/nio/Buffer");
+    bufferLimitFID = find_buffer_field (env, bcls, "limit");
+    bufferPositionFID = find_buffer_field (env, bcls, "position");
+    bufferMarkFID = find_buffer_field (env, bcls, "mark");
+    if (bufferLimitFID == NULL || bufferPositionFID == NULL || bufferMarkFID == NULL) {
+        bufferLimitFID = NULL;
+        bufferPositionFID = NULL;
+        bufferMarkFID = NULL;
+    }
+    env->DeleteLocalRef(bcls);
+
+    jclass bacls = env->FindClass("[B");
+    byteArrayClass = (jclass) env->NewGlobalRef(bacls);
+    env->DeleteLocalRef(bacls);
+
+    env->GetJavaVM(&jvm);
+    jclass reapercls = env->FindClass("org/zeromq/ZMQ$ZeroCopyReaper");
+    reaperClass = (jclass) env->NewGlobalRef(reapercls);
+    enqueueMID = env->GetStaticMethodID(reapercls, "enqueue",
+                                        "(Lorg/zeromq/ZMQ$ZeroCopyCallback;Ljava/nio/ByteBuffer;)V");
+    env->DeleteLocalRef(reapercls);
+#if defined _WIN32
+    if (detachKey == FLS_OUT_OF_INDEXES)
+        detachKey = FlsAlloc (s_detach);
+#else
+    if (!detachKeyCreated)
+        detachKeyCreated = pthread_key_create (&detachKey, s_detach) == 0;
+#endif
+
     jclass contextcls = env->FindClass("org/zeromq/ZMQ$Context");
     contextHandleMID = env->GetMethodID(contextcls, "getContextHandle", "()J");
     env->DeleteLocalRef(contextcls);
@@ -63,6 +141,35 @@ inline void *fetch_context (JNIEnv *env, jobject context)
     return (void*) env->CallLongMethod (context, contextHandleMID);
 }
 
+inline jint get_buffer_limit (JNIEnv *env, jobject buffer)
+{
+    if (bufferLimitFID)
+        return env->GetIntField (buffer, bufferLimitFID);
+    return env->CallIntMethod (buffer, limitMID);
+}
+
+inline jint get_buffer_position (JNIEnv *env, jobject buffer)
+{
+    if (bufferPositionFID)
+        return env->GetIntField (buffer, bufferPositionFID);
+    return env->CallIntMethod (buffer, positionMID);
+}
+
+/**
+ * Same as Buffer.position(int): the mark is discarded if it is past the
+ * new position.
+ */
+inline void set_buffer_position (JNIEnv *env, jobject buffer, jint position)
+{
+    if (bufferPositionFID) {
+        if (env->GetIntField (buffer, bufferMarkFID) > position)
+            env->SetIntField (buffer, bufferMarkFID, -1);
+        env->SetIntField (buffer, bufferPositionFID, position);
+        return;
+    }
+    env->CallObjectMethod (buffer, setPositionMID, position);
+}
+
 static
 zmq_msg_t *do_read(JNIEnv *env, jobject obj, zmq_msg_t *message, int flags)
 {
@@ -102,6 +209,22 @@ zmq_msg_t *do_read(JNIEnv *env, jobject obj, zmq_msg_t *message, int flags)
     return message;
 }
 
+/**
+ * Check whether the message part just read from the socket has more parts
+ * to follow.
+ */
+static bool s_rcvmore (void *socket)
+{
+#if ZMQ_VERSION >= ZMQ_MAKE_VERSION(3,0,0)
+    int more = 0;
+#else
+    int64_t more = 0;
+#endif
+    size_t more_size = sizeof (more);
+    int rc = zmq_getsockopt (socket, ZMQ_RCVMORE, &more, &more_size);
+    return rc == 0 && more != 0;
+}
+
 JNIEXPORT void JNICALL
 Java_org_zeromq_ZMQ_00024Socket_construct (JNIEnv *env, jobject obj, jobject context, jint type)
 {
@@ -145,12 +268,14 @@ JNIEXPORT void JNICALL Java_org_zeromq_ZMQ_00024Socket_destroy (JNIEnv *env, job
     }
 }
 
-JNIEXPORT jlong JNICALL
-Java_org_zeromq_ZMQ_00024Socket_getLongSockopt (JNIEnv *env, jobject obj, jint option)
+/**
+ * Read a long option of a socket into value.
+ *
+ * @return 0, or the error to raise.
+ */
+static int get_long_sockopt (void *s, int option, jlong *value)
 {
-
-	
-	switch (option) {
+    switch (option) {
 #if ZMQ_VERSION >= ZMQ_MAKE_VERSION(3,0,0)
     case ZMQ_BACKLOG:
     case ZMQ_MAXMSGSIZE:
@@ -201,10 +326,7 @@ Java_org_zeromq_ZMQ_00024Socket_getLongSockopt (JNIEnv *env, jobject obj, jint o
     case ZMQ_RCVBUF:
     case ZMQ_RCVMORE:
         {
-            void *s = get_socket (env, obj);
-            jlong ret = 0;
             int rc = 0;
-            int err = 0;
             if (
                    (option == ZMQ_AFFINITY)
 #if ZMQ_VERSION >= ZMQ_MAKE_VERSION(2,1,0)
@@ -217,28 +339,67 @@ Java_org_zeromq_ZMQ_00024Socket_getLongSockopt (JNIEnv *env, jobject obj, jint o
                 int64_t optval = 0; 
                 size_t optvallen = sizeof(optval);
                 rc = zmq_getsockopt (s, option, &optval, &optvallen);
-                ret = (jlong) optval;
+                *value = (jlong) optval;
             } else
             {
                 int optval = 0;
                 size_t optvallen = sizeof(optval);
                 rc = zmq_getsockopt (s, option, &optval, &optvallen);
-                ret = (jlong) optval;
-            }
-            err = zmq_errno();
-
-            if (rc != 0) {
-                raise_exception (env, err);
-                return 0L;
+                *value = (jlong) optval;
             }
-            return ret;
+            return rc == 0 ? 0 : zmq_errno();
         }
     default:
-        raise_exception (env, EINVAL);
+        return EINVAL;
+    }
+}
+
+/**
+ * Called by Java's Socket::getLongSockopt(int option).
+ */
+JNIEXPORT jlong JNICALL
+Java_org_zeromq_ZMQ_00024Socket_nativeGetLongSockopt (JNIEnv *env, jobject obj, jint option)
+{
+    jlong value = 0;
+    int err = get_long_sockopt (get_socket (env, obj), option, &value);
+    if (err != 0) {
+        raise_exception (env, err);
         return 0L;
     }
+    return value;
+}
+
+/**
+ * Called by Java's Socket::getSockopts(int[] options, long[] out), to read
+ * many options in one call.
+ */
+JNIEXPORT void JNICALL
+Java_org_zeromq_ZMQ_00024Socket_nativeGetSockopts (JNIEnv *env, jobject obj, jintArray options, jlongArray out)
+{
+    void *s = get_socket (env, obj);
+    jsize count = env->GetArrayLength (options);
+    if (env->GetArrayLength (out) < count) {
+        raise_exception (env, EINVAL);
+        return;
+    }
+    jint *ids = env->GetIntArrayElements (options, NULL);
+    if (ids == NULL)
+        return;
+    jlong *values = env->GetLongArrayElements (out, NULL);
+    if (values == NULL) {
+        env->ReleaseIntArrayElements (options, ids, JNI_ABORT);
+        return;
+    }
+    int err = 0;
+    for (jsize i = 0; i < count && err == 0; i++)
+        err = get_long_sockopt (s, ids [i], &values [i]);
+    env->ReleaseLongArrayElements (out, values, 0);
+    env->ReleaseIntArrayElements (options, ids, JNI_ABORT);
+    if (err != 0)
+        raise_exception (env, err);
 }
 
+
 /**
  * Called by Java's Socket::getBytesSockopt(int option).
  */
@@ -286,7 +447,7 @@ JNIEXPORT jbyteArray JNICALL Java_org_zeromq_ZMQ_00024Socket_getBytesSockopt (JN
 /**
  * Called by Java's Socket::setLongSockopt(int option, long value).
  */
-JNIEXPORT void JNICALL Java_org_zeromq_ZMQ_00024Socket_setLongSockopt (JNIEnv *env,
+JNIEXPORT void JNICALL Java_org_zeromq_ZMQ_00024Socket_nativeSetLongSockopt (JNIEnv *env,
                                                                        jobject obj,
                                                                        jint option,
                                                                        jlong value)
@@ -603,33 +764,86 @@ JNIEXPORT void JNICALL Java_org_zeromq_ZMQ_00024Socket_disconnect (JNIEnv *env,
 }
 
 typedef struct _jzmq_zerocopy_t {
-    JNIEnv *env;
     jobject ref_buffer;
+    jobject ref_callback;
 } jzmq_zerocopy_t;
 
+/**
+ * Return the JNIEnv of the calling thread, attaching it to the JVM for the
+ * rest of its life if it is not attached yet, or NULL if it cannot be.
+ */
+static JNIEnv *s_attached_env ()
+{
+    JNIEnv *env = NULL;
+    if (jvm->GetEnv ((void **) &env, JNI_VERSION_1_2) != JNI_EDETACHED)
+        return env;
+#if defined _WIN32
+    if (detachKey == FLS_OUT_OF_INDEXES)
+        return NULL;
+#else
+    if (!detachKeyCreated)
+        return NULL;
+#endif
+    if (jvm->AttachCurrentThreadAsDaemon ((void **) &env, NULL) != JNI_OK)
+        return NULL;
+    //  The key only needs a non-NULL value for its destructor to run
+#if defined _WIN32
+    FlsSetValue (detachKey, env);
+#else
+    pthread_setspecific (detachKey, env);
+#endif
+    return env;
+}
+
+/**
+ * Called by 0MQ once it is done with a zero copy message, usually from one
+ * of its I/O threads. The callback is only queued for the reaper thread, so
+ * a slow one does not hold up 0MQ.
+ */
 static
 void s_delete_ref (void *ptr, void *hint)
 {
     jzmq_zerocopy_t *free_hint = (jzmq_zerocopy_t *)hint;
-    free_hint->env->DeleteGlobalRef(free_hint->ref_buffer);
+
+    JNIEnv *env = s_attached_env ();
+    if (env == NULL) {
+        //  Nothing sensible can be done; leak rather than crash.
+        delete free_hint;
+        return;
+    }
+
+    if (free_hint->ref_callback) {
+        env->CallStaticVoidMethod (reaperClass, enqueueMID, free_hint->ref_callback, free_hint->ref_buffer);
+        //  There is no Java caller to report to.
+        if (env->ExceptionCheck ())
+            env->ExceptionClear ();
+        env->DeleteGlobalRef (free_hint->ref_callback);
+    }
+    env->DeleteGlobalRef (free_hint->ref_buffer);
     delete free_hint;
 }
 
 #if ZMQ_VERSION >= ZMQ_MAKE_VERSION(3,0,0)
 static
-jboolean s_zerocopy_init (JNIEnv *env, zmq_msg_t *message, jobject obj, jint length)
+jboolean s_zerocopy_init (JNIEnv *env, zmq_msg_t *message, jobject obj, jint length, jobject callback)
 {
-    jobject ref_buffer = env->NewGlobalRef(obj);
-    jzmq_zerocopy_t *free_hint = new jzmq_zerocopy_t;
-
-    free_hint->env = env;
-    free_hint->ref_buffer = ref_buffer;
+    jbyte* buf = (jbyte*) env->GetDirectBufferAddress(obj);
+    if (buf == NULL || length < 0 || length > env->GetDirectBufferCapacity(obj)) {
+        raise_exception (env, EINVAL);
+        return JNI_FALSE;
+    }
 
-    jbyte* buf = (jbyte*) env->GetDirectBufferAddress(ref_buffer);
+    jzmq_zerocopy_t *free_hint = new jzmq_zerocopy_t;
+    free_hint->ref_buffer = env->NewGlobalRef(obj);
+    free_hint->ref_callback = callback ? env->NewGlobalRef(callback) : NULL;
 
     int rc = zmq_msg_init_data (message, buf, length, s_delete_ref, free_hint);
     if (rc != 0) {
         int err = zmq_errno();
+        if (free_hint->ref_callback)
+            env->DeleteGlobalRef (free_hint->ref_callback);
+        env->DeleteGlobalRef (free_hint->ref_buffer);
+        delete free_hint;
         raise_exception (env, err);
         return JNI_FALSE;
     }
@@ -642,7 +856,8 @@ Java_org_zeromq_ZMQ_00024Socket_sendZeroCopy (JNIEnv *env,
                                               jobject obj,
                                               jobject buffer,
                                               jint length,
-                                              jint flags)
+                                              jint flags,
+                                              jobject callback)
 {
 #if ZMQ_VERSION >= ZMQ_MAKE_VERSION(3,0,0)
     int rc = 0;
@@ -650,15 +865,17 @@ Java_org_zeromq_ZMQ_00024Socket_sendZeroCopy (JNIEnv *env,
 
     // init the message
     zmq_msg_t message;
-    jboolean retval = s_zerocopy_init (env, &message, buffer, length);
+    jboolean retval = s_zerocopy_init (env, &message, buffer, length, callback);
     if (retval == JNI_FALSE)
         return JNI_FALSE;
 
     rc = zmq_sendmsg (sock, &message, flags);
     if (rc == -1) {
         int err = zmq_errno();
+        //  Closing releases the buffer, the callback hears about it.
         zmq_msg_close (&message);
-        raise_exception (env, err);
+        if (err != EAGAIN)
+            raise_exception (env, err);
         return JNI_FALSE;
     }
     return JNI_TRUE;
@@ -678,18 +895,19 @@ Java_org_zeromq_ZMQ_00024Socket_sendByteBuffer (JNIEnv *env, jobject obj, jobjec
 
     void *sock = get_socket (env, obj);
 
-    int lim = env->CallIntMethod(buffer, limitMID);
-    int pos = env->CallIntMethod(buffer, positionMID);
+    int lim = get_buffer_limit (env, buffer);
+    int pos = get_buffer_position (env, buffer);
     int rem = pos <= lim ? lim - pos : 0;
 
     int rc = zmq_send(sock, buf + pos, rem, flags);
 
     if (rc > 0)
-        env->CallVoidMethod(buffer, setPositionMID, pos + rc);
+        set_buffer_position (env, buffer, pos + rc);
 
     if (rc == -1) {
         int err = zmq_errno();
-        raise_exception (env, err);
+        if (err != EAGAIN)
+            raise_exception (env, err);
         return -1;
     }
     return rc;
@@ -763,13 +981,6 @@ JNIEXPORT jboolean JNICALL Java_org_zeromq_ZMQ_00024Socket_send (JNIEnv *env,
     return JNI_TRUE;
 }
 
-inline void setByteBufferPosition(JNIEnv *env, jobject buffer, jint position) {
-	jclass cls = env->GetObjectClass(buffer);
-	jmethodID positionHandle = env->GetMethodID(cls, "position", "(I)Ljava/nio/Buffer;");
-	env->DeleteLocalRef(cls);
-	env->CallVoidMethod(buffer, positionHandle, position);
-}
-
 JNIEXPORT jint JNICALL
 Java_org_zeromq_ZMQ_00024Socket_recvZeroCopy (JNIEnv *env,
                                               jobject obj,
@@ -787,7 +998,7 @@ Java_org_zeromq_ZMQ_00024Socket_recvZeroCopy (JNIEnv *env,
     int rc = zmq_recv(sock, buf, length, flags);
     if (rc > 0) {
         int newpos = rc > length ? length : rc;
-        setByteBufferPosition(env, buffer, newpos);
+        set_buffer_position (env, buffer, newpos);
     }
     if(rc == -1) {
         int err = zmq_errno();
@@ -813,14 +1024,14 @@ Java_org_zeromq_ZMQ_00024Socket_recvByteBuffer (JNIEnv *env, jobject obj, jobjec
 
     void *sock = get_socket (env, obj);
 
-    int lim = env->CallIntMethod(buffer, limitMID);
-    int pos = env->CallIntMethod(buffer, positionMID);
+    int lim = get_buffer_limit (env, buffer);
+    int pos = get_buffer_position (env, buffer);
     int rem = pos <= lim ? lim - pos : 0;
 
     int read = zmq_recv(sock, buf + pos, rem, flags);
     if (read > 0) {
         read = read > rem ? rem : read;
-        env->CallObjectMethod(buffer, setPositionMID, read + pos);
+        set_buffer_position (env, buffer, read + pos);
         return read;
     }
     else if(read == -1) {
@@ -836,6 +1047,330 @@ Java_org_zeromq_ZMQ_00024Socket_recvByteBuffer (JNIEnv *env, jobject obj, jobjec
 #endif
 }
 
+/**
+ * Send parts that are all built up front, setting SNDMORE on all but the
+ * last. Once the first part is accepted the high water mark no longer holds
+ * the message back, so only the first send can fail with EAGAIN; any later
+ * failure means the socket or context is going away and is raised.
+ */
+static jboolean s_send_parts (JNIEnv *env, void *socket, zmq_msg_t *parts, int count, int flags)
+{
+    for (int i = 0; i < count; ++i) {
+#if ZMQ_VERSION >= ZMQ_MAKE_VERSION(3,0,0)
+        int rc = zmq_sendmsg (socket, &parts [i], i < count - 1 ? flags | ZMQ_SNDMORE : flags);
+#else
+        int rc = zmq_send (socket, &parts [i], i < count - 1 ? flags | ZMQ_SNDMORE : flags);
+#endif
+        if (rc < 0) {
+            int err = zmq_errno();
+            //  Nothing has been queued yet, so the caller can simply retry.
+            if (i == 0 && err == EAGAIN)
+                return JNI_FALSE;
+            raise_exception (env, err);
+            return JNI_FALSE;
+        }
+    }
+    return JNI_TRUE;
+}
+
+/**
+ * Close the first count parts and free the array if it was allocated.
+ */
+static void s_close_parts (zmq_msg_t *parts, int count, zmq_msg_t *local_parts)
+{
+    for (int i = 0; i < count; ++i)
+        zmq_msg_close (&parts [i]);
+    if (parts != local_parts)
+        delete [] parts;
+}
+
+/**
+ * Called by Java's Socket::sendMultipart(byte[][] frames, int flags).
+ */
+JNIEXPORT jboolean JNICALL
+Java_org_zeromq_ZMQ_00024Socket_sendMultipart___3_3BI (JNIEnv *env,
+                                                       jobject obj,
+                                                       jobjectArray frames,
+                                                       jint flags)
+{
+    if (frames == NULL) {
+        raise_exception (env, EINVAL);
+        return JNI_FALSE;
+    }
+
+    void *s = get_socket (env, obj);
+    jsize count = env->GetArrayLength (frames);
+
+    //  Copy every part before sending any, so a failure to build one cannot
+    //  leave half a message queued.
+    zmq_msg_t local_parts [8];
+    zmq_msg_t *parts = count > 8 ? new zmq_msg_t [count] : local_parts;
+    int built = 0;
+    int err = 0;
+    for (; built < count; ++built) {
+        jbyteArray frame = (jbyteArray) env->GetObjectArrayElement (frames, built);
+        jsize length = frame ? env->GetArrayLength (frame) : 0;
+        if (zmq_msg_init_size (&parts [built], length) != 0) {
+            err = zmq_errno();
+            env->DeleteLocalRef (frame);
+            break;
+        }
+        if (length > 0)
+            env->GetByteArrayRegion (frame, 0, length, (jbyte*) zmq_msg_data (&parts [built]));
+        env->DeleteLocalRef (frame);
+    }
+
+    jboolean sent = JNI_FALSE;
+    if (built < count)
+        raise_exception (env, err);
+    else
+        sent = s_send_parts (env, s, parts, count, flags);
+    s_close_parts (parts, built, local_parts);
+    return sent;
+}
+
+/**
+ * Called by Java's Socket::sendMultipart(ByteBuffer buffer, int[] sizes, int count, int flags).
+ */
+JNIEXPORT jboolean JNICALL
+Java_org_zeromq_ZMQ_00024Socket_sendMultipart__Ljava_nio_ByteBuffer_2_3III (JNIEnv *env,
+                                                                          jobject obj,
+                                                                          jobject buffer,
+                                                                          jintArray sizes,
+                                                                          jint count,
+                                                                          jint flags)
+{
+#if ZMQ_VERSION >= ZMQ_MAKE_VERSION(3,0,0)
+    jbyte *buf = (jbyte*) env->GetDirectBufferAddress(buffer);
+    if (buf == NULL || sizes == NULL || count < 0 || count > env->GetArrayLength (sizes)) {
+        raise_exception (env, EINVAL);
+        return JNI_FALSE;
+    }
+
+    void *sock = get_socket (env, obj);
+
+    int lim = get_buffer_limit (env, buffer);
+    int pos = get_buffer_position (env, buffer);
+
+    jint *frame_sizes = env->GetIntArrayElements (sizes, NULL);
+    long total = 0;
+    for (jint i = 0; i < count; ++i) {
+        if (frame_sizes [i] < 0)
+            total = -1;
+        if (total < 0)
+            break;
+        total += frame_sizes [i];
+    }
+    if (total < 0 || pos + total > lim) {
+        env->ReleaseIntArrayElements (sizes, frame_sizes, JNI_ABORT);
+        raise_exception (env, EINVAL);
+        return JNI_FALSE;
+    }
+
+    //  As above, build every part before sending any.
+    zmq_msg_t local_parts [8];
+    zmq_msg_t *parts = count > 8 ? new zmq_msg_t [count] : local_parts;
+    int built = 0;
+    int err = 0;
+    int offset = pos;
+    for (; built < count; ++built) {
+        if (zmq_msg_init_size (&parts [built], frame_sizes [built]) != 0) {
+            err = zmq_errno();
+            break;
+        }
+        memcpy (zmq_msg_data (&parts [built]), buf + offset, frame_sizes [built]);
+        offset += frame_sizes [built];
+    }
+    env->ReleaseIntArrayElements (sizes, frame_sizes, JNI_ABORT);
+
+    jboolean sent = JNI_FALSE;
+    if (built < count)
+        raise_exception (env, err);
+    else
+        sent = s_send_parts (env, sock, parts, count, flags);
+    s_close_parts (parts, built, local_parts);
+
+    if (sent)
+        set_buffer_position (env, buffer, offset);
+    return sent;
+#else
+    raise_exception (env, ENOTSUP);
+    return JNI_FALSE;
+#endif
+}
+
+/**
+ * Called by Java's Socket::recvMultipart(int flags).
+ */
+JNIEXPORT jobjectArray JNICALL
+Java_org_zeromq_ZMQ_00024Socket_recvMultipart__I (JNIEnv *env,
+                                                  jobject obj,
+                                                  jint flags)
+{
+    void *s = get_socket (env, obj);
+
+    //  Most messages are a handful of frames; only grow past that on demand.
+    zmq_msg_t local_parts [8];
+    zmq_msg_t *parts = local_parts;
+    int capacity = 8;
+    int count = 0;
+    bool more = true;
+
+    while (more) {
+        if (count == capacity) {
+            zmq_msg_t *grown = new zmq_msg_t [capacity * 2];
+            for (int i = 0; i < count; ++i) {
+                zmq_msg_init (&grown [i]);
+                zmq_msg_move (&grown [i], &parts [i]);
+                zmq_msg_close (&parts [i]);
+            }
+            if (parts != local_parts)
+                delete [] parts;
+            parts = grown;
+            capacity *= 2;
+        }
+        if (!do_read (env, obj, &parts [count], flags))
+            break;
+        ++count;
+        more = s_rcvmore (s);
+    }
+
+    jobjectArray result = NULL;
+    if (!more) {
+        result = env->NewObjectArray (count, byteArrayClass, NULL);
+        for (int i = 0; result != NULL && i < count; ++i) {
+            int sz = zmq_msg_size (&parts [i]);
+            jbyteArray data = env->NewByteArray (sz);
+            if (data == NULL) {
+                result = NULL;
+                break;
+            }
+            env->SetByteArrayRegion (data, 0, sz, (jbyte*) zmq_msg_data (&parts [i]));
+            env->SetObjectArrayElement (result, i, data);
+            env->DeleteLocalRef (data);
+        }
+    }
+
+    for (int i = 0; i < count; ++i)
+        zmq_msg_close (&parts [i]);
+    if (parts != local_parts)
+        delete [] parts;
+
+    return result;
+}
+
+/**
+ * Called by Java's Socket::recvMultipart(ByteBuffer buffer, int[] sizes, int flags).
+ */
+JNIEXPORT jint JNICALL
+Java_org_zeromq_ZMQ_00024Socket_recvMultipart__Ljava_nio_ByteBuffer_2_3II (JNIEnv *env,
+                                                                         jobject obj,
+                                                                         jobject buffer,
+                                                                         jintArray sizes,
+                                                                         jint flags)
+{
+    jbyte *buf = (jbyte*) env->GetDirectBufferAddress(buffer);
+    if (buf == NULL || sizes == NULL) {
+        raise_exception (env, EINVAL);
+        return -1;
+    }
+
+    void *sock = get_socket (env, obj);
+
+    int lim = get_buffer_limit (env, buffer);
+    int pos = get_buffer_position (env, buffer);
+    jsize max_frames = env->GetArrayLength (sizes);
+
+    int frames = 0;
+    int err = 0;
+    bool more = true;
+    while (more) {
+        zmq_msg_t message;
+        //  The position is only moved once the whole message is stored.
+        if (!do_read (env, obj, &message, flags))
+            return -1;
+        jint sz = zmq_msg_size (&message);
+        more = s_rcvmore (sock);
+
+        //  A part that does not fit fails the receive, but the rest of the
+        //  message is still read so the next receive starts on a new one.
+        if (err == 0 && (frames >= max_frames || sz > lim - pos))
+            err = ENOBUFS;
+        if (err == 0) {
+            memcpy (buf + pos, zmq_msg_data (&message), sz);
+            env->SetIntArrayRegion (sizes, frames, 1, &sz);
+            pos += sz;
+        }
+        ++frames;
+        zmq_msg_close (&message);
+    }
+
+    if (err != 0) {
+        raise_exception (env, err);
+        return -1;
+    }
+    set_buffer_position (env, buffer, pos);
+    return frames;
+}
+
+/**
+ * Called by Java's Socket::forward(long destination, int flags). Moves the
+ * parts of one message from this socket to the destination one at a time,
+ * the way zmq_proxy does, so the data stays inside 0MQ.
+ */
+JNIEXPORT jint JNICALL
+Java_org_zeromq_ZMQ_00024Socket_forward (JNIEnv *env,
+                                         jobject obj,
+                                         jlong destination,
+                                         jint flags)
+{
+    void *src = get_socket (env, obj);
+    void *dst = (void *) destination;
+
+    zmq_msg_t message;
+    if (zmq_msg_init (&message) != 0) {
+        raise_exception (env, zmq_errno());
+        return -1;
+    }
+
+    int frames = 0;
+    bool more = true;
+    while (more) {
+        //  Once the first part is in, the rest of the message is already
+        //  queued, so only the first receive honours flags.
+#if ZMQ_VERSION >= ZMQ_MAKE_VERSION(3,0,0)
+        int rc = zmq_recvmsg (src, &message, frames == 0 ? flags : 0);
+#else
+        int rc = zmq_recv (src, &message, frames == 0 ? flags : 0);
+#endif
+        if (rc < 0) {
+            int err = zmq_errno();
+            zmq_msg_close (&message);
+            if (err == EAGAIN && frames == 0)
+                return 0;
+            raise_exception (env, err);
+            return -1;
+        }
+        more = s_rcvmore (src);
+
+#if ZMQ_VERSION >= ZMQ_MAKE_VERSION(3,0,0)
+        rc = zmq_sendmsg (dst, &message, more ? ZMQ_SNDMORE : 0);
+#else
+        rc = zmq_send (dst, &message, more ? ZMQ_SNDMORE : 0);
+#endif
+        if (rc < 0) {
+            int err = zmq_errno();
+            zmq_msg_close (&message);
+            raise_exception (env, err);
+            return -1;
+        }
+        ++frames;
+    }
+
+    zmq_msg_close (&message);
+    return frames;
+}
+
 /**
  * Called by Java's Socket::recv(byte[] buffer, int offset, int len, int flags).
  */
@@ -17,9 +17,15 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 
+#include <string.h>
+#if defined _MSC_VER
+#include <windows.h>
+#endif
+
 #include <zmq.h>
 
 #include "jzmq.hpp"
+#include "util.hpp"
 #include "org_zeromq_ZMQ.h"
 
 static void *get_socket (JNIEnv *env, jobject obj)
@@ -162,3 +168,247 @@ Java_org_zeromq_ZMQ_run_1proxy (JNIEnv *env, jclass cls, jobject frontend_, jobj
     zmq_proxy (frontend, backend, capture);
 #endif
 }
+
+#if ZMQ_VERSION >= ZMQ_MAKE_VERSION(3,0,0)
+
+//  Layout of the counter block shared with Java's ZMQ.ProxyCounters, one
+//  group for each socket, in the order zmq_proxy_steerable reports them.
+enum {
+    STAT_MSG_IN,
+    STAT_BYTES_IN,
+    STAT_MSG_OUT,
+    STAT_BYTES_OUT,
+    STAT_GROUP
+};
+
+//  Counters are only written by the proxy thread and read by any other, so
+//  each one is stored and loaded whole, even on 32-bit platforms, with
+//  release and acquire ordering.
+static inline void s_stat_store (volatile uint64_t *stat, uint64_t value)
+{
+#if defined _MSC_VER
+    InterlockedExchange64 ((volatile LONGLONG *) stat, (LONGLONG) value);
+#else
+    __atomic_store_n (stat, value, __ATOMIC_RELEASE);
+#endif
+}
+
+static inline uint64_t s_stat_load (volatile uint64_t *stat)
+{
+#if defined _MSC_VER
+    return (uint64_t) InterlockedCompareExchange64 ((volatile LONGLONG *) stat, 0, 0);
+#else
+    return __atomic_load_n (stat, __ATOMIC_ACQUIRE);
+#endif
+}
+
+/**
+ * Move one whole message from one socket to the other, copying each part to
+ * the capture socket first if there is one.
+ */
+static int s_proxy_forward (void *from, void *to, void *capture, zmq_msg_t *msg,
+                            volatile uint64_t *from_stats, volatile uint64_t *to_stats)
+{
+    uint64_t bytes = 0;
+    int more = 0;
+    size_t more_size = sizeof (more);
+    do {
+        if (zmq_recvmsg (from, msg, 0) < 0)
+            return -1;
+        bytes += zmq_msg_size (msg);
+        if (zmq_getsockopt (from, ZMQ_RCVMORE, &more, &more_size) < 0)
+            return -1;
+
+        if (capture) {
+            zmq_msg_t copy;
+            zmq_msg_init (&copy);
+            if (zmq_msg_copy (&copy, msg) < 0
+            ||  zmq_sendmsg (capture, &copy, more ? ZMQ_SNDMORE : 0) < 0) {
+                zmq_msg_close (&copy);
+                return -1;
+            }
+        }
+        if (zmq_sendmsg (to, msg, more ? ZMQ_SNDMORE : 0) < 0)
+            return -1;
+    } while (more);
+
+    s_stat_store (&from_stats [STAT_MSG_IN], s_stat_load (&from_stats [STAT_MSG_IN]) + 1);
+    s_stat_store (&from_stats [STAT_BYTES_IN], s_stat_load (&from_stats [STAT_BYTES_IN]) + bytes);
+    s_stat_store (&to_stats [STAT_MSG_OUT], s_stat_load (&to_stats [STAT_MSG_OUT]) + 1);
+    s_stat_store (&to_stats [STAT_BYTES_OUT], s_stat_load (&to_stats [STAT_BYTES_OUT]) + bytes);
+    return 0;
+}
+
+/**
+ * Send the counters to the control socket as one frame per counter.
+ */
+static int s_proxy_reply_stats (void *control, volatile uint64_t *stats)
+{
+    for (int i = 0; i < 2 * STAT_GROUP; ++i) {
+        uint64_t value = s_stat_load (&stats [i]);
+        if (zmq_send (control, &value, sizeof (value),
+                      i < 2 * STAT_GROUP - 1 ? ZMQ_SNDMORE : 0) < 0)
+            return -1;
+    }
+    return 0;
+}
+
+static bool s_is_command (zmq_msg_t *msg, const char *command)
+{
+    size_t size = strlen (command);
+    return zmq_msg_size (msg) == size && memcmp (zmq_msg_data (msg), command, size) == 0;
+}
+
+/**
+ * Run the proxy loop until TERMINATE or until the context is terminated.
+ * Returns the error that stopped it, or 0.
+ */
+static int s_proxy_steerable (void *frontend, void *backend, void *capture, void *control,
+                              volatile uint64_t *stats)
+{
+    int control_type = 0;
+    size_t type_size = sizeof (control_type);
+    if (zmq_getsockopt (control, ZMQ_TYPE, &control_type, &type_size) < 0)
+        return zmq_errno ();
+
+    zmq_pollitem_t items [] = {
+        { control, 0, ZMQ_POLLIN, 0 },
+        { frontend, 0, ZMQ_POLLIN, 0 },
+        { backend, 0, ZMQ_POLLIN, 0 }
+    };
+
+    zmq_msg_t msg;
+    zmq_msg_init (&msg);
+
+    bool paused = false;
+    int err = 0;
+    while (true) {
+        //  While paused only the control socket is watched.
+        int nitems = paused ? 1 : 3;
+        if (zmq_poll (items, nitems, -1) < 0) {
+            if (zmq_errno () == EINTR)
+                continue;
+            err = zmq_errno ();
+            break;
+        }
+
+        if (items [0].revents & ZMQ_POLLIN) {
+            if (zmq_recvmsg (control, &msg, 0) < 0) {
+                err = zmq_errno ();
+                break;
+            }
+            int rc = 0;
+            bool terminate = false;
+            if (s_is_command (&msg, "PAUSE"))
+                paused = true;
+            else
+            if (s_is_command (&msg, "RESUME"))
+                paused = false;
+            else
+            if (s_is_command (&msg, "TERMINATE"))
+                terminate = true;
+
+            if (s_is_command (&msg, "STATISTICS"))
+                rc = s_proxy_reply_stats (control, stats);
+            else
+            //  A REP socket must answer before it can receive again.
+            if (control_type == ZMQ_REP)
+                rc = zmq_send (control, "", 0, 0);
+            if (rc < 0) {
+                err = zmq_errno ();
+                break;
+            }
+            if (terminate)
+                break;
+        }
+        //  Nothing moves while paused, and after a paused poll the other
+        //  items hold stale events.
+        if (nitems == 1 || paused)
+            continue;
+        if ((items [1].revents & ZMQ_POLLIN)
+        &&  s_proxy_forward (frontend, backend, capture, &msg, stats, stats + STAT_GROUP) < 0) {
+            err = zmq_errno ();
+            break;
+        }
+        //  Frontend and backend may be the same socket.
+        if (backend != frontend && (items [2].revents & ZMQ_POLLIN)
+        &&  s_proxy_forward (backend, frontend, capture, &msg, stats + STAT_GROUP, stats) < 0) {
+            err = zmq_errno ();
+            break;
+        }
+    }
+
+    zmq_msg_close (&msg);
+    return err;
+}
+
+#endif
+
+/**
+ * Called by Java's ZMQ::proxy(Socket frontend, Socket backend, Socket capture,
+ * Socket control, ProxyCounters counters).
+ */
+JNIEXPORT void JNICALL
+Java_org_zeromq_ZMQ_run_1proxy_1steerable (JNIEnv *env, jclass cls, jobject frontend_, jobject backend_,
+                                           jobject capture_, jobject control_, jobject counters)
+{
+#if ZMQ_VERSION >= ZMQ_MAKE_VERSION(3,0,0)
+    void *frontend = get_socket (env, frontend_);
+    void *backend = get_socket (env, backend_);
+    void *control = get_socket (env, control_);
+    void *capture = NULL;
+    if (capture_ != NULL)
+        capture = get_socket (env, capture_);
+
+    //  Without a shared block the counters still answer STATISTICS.
+    uint64_t local_stats [2 * STAT_GROUP];
+    memset (local_stats, 0, sizeof (local_stats));
+    volatile uint64_t *stats = local_stats;
+    if (counters != NULL) {
+        stats = (volatile uint64_t *) env->GetDirectBufferAddress (counters);
+        if (stats == NULL || env->GetDirectBufferCapacity (counters) < (jlong) sizeof (local_stats)) {
+            raise_exception (env, EINVAL);
+            return;
+        }
+    }
+
+    int err = s_proxy_steerable (frontend, backend, capture, control, stats);
+    //  Like zmq_proxy, return quietly once the context is terminated.
+    if (err != 0 && err != ETERM)
+        raise_exception (env, err);
+#endif
+}
+
+/**
+ * Called by Java's ZMQ.ProxyCounters::get(int counter).
+ */
+JNIEXPORT jlong JNICALL
+Java_org_zeromq_ZMQ_proxy_1counter (JNIEnv *env, jclass cls, jobject block, jint counter)
+{
+#if ZMQ_VERSION >= ZMQ_MAKE_VERSION(3,0,0)
+    volatile uint64_t *stats = (volatile uint64_t *) env->GetDirectBufferAddress (block);
+    if (stats == NULL)
+        return 0;
+    return (jlong) s_stat_load (&stats [counter]);
+#else
+    return 0;
+#endif
+}
+
+/**
+ * Called by Java's ZMQ.ProxyCounters::snapshot(), reading all counters in
+ * one call.
+ */
+JNIEXPORT void JNICALL
+Java_org_zeromq_ZMQ_proxy_1counters (JNIEnv *env, jclass cls, jobject block, jlongArray values)
+{
+#if ZMQ_VERSION >= ZMQ_MAKE_VERSION(3,0,0)
+    volatile uint64_t *stats = (volatile uint64_t *) env->GetDirectBufferAddress (block);
+    if (stats == NULL)
+        return;
+    jlong copy [2 * STAT_GROUP];
+    for (int i = 0; i < 2 * STAT_GROUP; ++i)
+        copy [i] = (jlong) s_stat_load (&stats [i]);
+    env->SetLongArrayRegion (values, 0, 2 * STAT_GROUP, copy);
+#endif
+}
@@ -23,19 +23,54 @@
 
 #include "util.hpp"
 
+//  ZMQException and its constructor, looked up once when the library is
+//  loaded rather than on every error.
+static jclass exception_class;
+static jmethodID exception_constructor;
+
+static bool s_init_exception (JNIEnv *env)
+{
+    jclass cls = env->FindClass ("org/zeromq/ZMQException");
+    if (cls == NULL)
+        return false;
+    exception_constructor = env->GetMethodID (cls,
+        "<init>", "(Ljava/lang/String;I)V");
+    exception_class = (jclass) env->NewGlobalRef (cls);
+    env->DeleteLocalRef (cls);
+    return exception_class != NULL && exception_constructor != NULL;
+}
+
+JNIEXPORT jint JNICALL JNI_OnLoad (JavaVM *vm, void *reserved)
+{
+    JNIEnv *env;
+    if (vm->GetEnv ((void **) &env, JNI_VERSION_1_2) != JNI_OK)
+        return JNI_ERR;
+    if (!s_init_exception (env))
+        return JNI_ERR;
+    return JNI_VERSION_1_2;
+}
+
+JNIEXPORT void JNICALL JNI_OnUnload (JavaVM *vm, void *reserved)
+{
+    JNIEnv *env;
+    if (vm->GetEnv ((void **) &env, JNI_VERSION_1_2) != JNI_OK)
+        return;
+    if (exception_class != NULL)
+        env->DeleteGlobalRef (exception_class);
+    exception_class = NULL;
+    exception_constructor = NULL;
+}
+
 /**
  * Raise an exception that includes 0MQ's error message.
  */
 void raise_exception (JNIEnv *env, int err)
 {
-    //  Get exception class.
-    jclass exception_class = env->FindClass ("org/zeromq/ZMQException");
-    assert (exception_class);
+    //  Keep the first error when a cleanup step fails too.
+    if (env->ExceptionCheck ())
+        return;
 
-    //  Get exception class constructor
-    jmethodID constructor_method = env->GetMethodID(exception_class,
-    	"<init>", "(Ljava/lang/String;I)V");
-    assert (constructor_method);
+    assert (exception_class);
 
     //  Get text description of the exception.
     const char *err_desc = zmq_strerror (err);
@@ -44,11 +79,11 @@ void raise_exception (JNIEnv *env, int err)
 
     //  Create exception class instance
     jthrowable exception = static_cast<jthrowable>(env->NewObject(
-    	exception_class, constructor_method, err_str, err));
+    	exception_class, exception_constructor, err_str, err));
 
     //  Raise the exception.
     int rc = env->Throw (exception);
-    env->DeleteLocalRef (exception_class);
+    env->DeleteLocalRef (exception);
     env->DeleteLocalRef (err_str);
 
     assert (rc == 0);
@@ -0,0 +1,166 @@
+package org.zeromq;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Per thread encoder and decoder for sending and receiving Strings, with
+ * buffers that are reused from one message to the next. Strings longer
+ * than MAX_CACHED chars go through the plain String conversions, so the
+ * memory kept per thread stays small.
+ */
+final class StringCodec {
+    private static final int MAX_CACHED = 8192;
+
+    private static final ThreadLocal<StringCodec> CODECS = new ThreadLocal<StringCodec>() {
+        @Override
+        protected StringCodec initialValue() {
+            return new StringCodec();
+        }
+    };
+
+    private Charset charset;
+    private CharsetEncoder encoder;
+    private CharsetDecoder decoder;
+
+    private byte[] bytes = new byte[256];
+    private ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+    private char[] chars = new char[256];
+    private CharBuffer charBuffer = CharBuffer.wrap(chars);
+
+    private ZMQ.Message message;
+
+    private StringCodec() {
+    }
+
+    /**
+     * Send a String encoded with the given charset.
+     */
+    static boolean send(ZMQ.Socket socket, String str, int flags, Charset charset) {
+        if (str.length() > MAX_CACHED) {
+            byte[] b = str.getBytes(charset);
+            return socket.send(b, 0, b.length, flags);
+        }
+        StringCodec codec = CODECS.get();
+        int length = codec.encode(str, charset);
+        if (length < 0) {
+            byte[] b = str.getBytes(charset);
+            return socket.send(b, 0, b.length, flags);
+        }
+        return socket.send(codec.bytes, 0, length, flags);
+    }
+
+    /**
+     * Receive a message and decode it with the given charset.
+     *
+     * @return the String received, null if there was nothing to receive.
+     */
+    static String recv(ZMQ.Socket socket, int flags, Charset charset) {
+        StringCodec codec = CODECS.get();
+        if (codec.message == null) {
+            codec.message = new ZMQ.Message();
+        }
+        ZMQ.Message msg = codec.message;
+        int size;
+        try {
+            if (!socket.recvMessage(msg, flags)) {
+                return null;
+            }
+            size = msg.size();
+            if (size > MAX_CACHED) {
+                byte[] b = new byte[size];
+                msg.copyTo(b, 0);
+                return new String(b, charset);
+            }
+            codec.ensureBytes(size);
+            msg.copyTo(codec.bytes, 0);
+        } finally {
+            msg.close();
+        }
+        return codec.decode(size, charset);
+    }
+
+    private void use(Charset charset) {
+        if (charset.equals(this.charset)) {
+            return;
+        }
+        // Replace bad input the same way String.getBytes and new String do.
+        encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.charset = charset;
+    }
+
+    /**
+     * Encode str in to bytes.
+     *
+     * @return the number of bytes written, -1 if the encoder needed more room than expected.
+     */
+    private int encode(String str, Charset charset) {
+        use(charset);
+        int length = str.length();
+        ensureChars(length);
+        ensureBytes((int) Math.ceil(length * (double) encoder.maxBytesPerChar()));
+        str.getChars(0, length, chars, 0);
+
+        CharBuffer in = charBuffer;
+        in.clear();
+        in.limit(length);
+        ByteBuffer out = byteBuffer;
+        out.clear();
+
+        encoder.reset();
+        CoderResult rc = encoder.encode(in, out, true);
+        if (rc.isUnderflow()) {
+            rc = encoder.flush(out);
+        }
+        if (!rc.isUnderflow()) {
+            return -1;
+        }
+        return out.position();
+    }
+
+    /**
+     * Decode the first length bytes.
+     */
+    private String decode(int length, Charset charset) {
+        use(charset);
+        ensureChars((int) Math.ceil(length * (double) decoder.maxCharsPerByte()));
+
+        ByteBuffer in = byteBuffer;
+        in.clear();
+        in.limit(length);
+        CharBuffer out = charBuffer;
+        out.clear();
+
+        decoder.reset();
+        CoderResult rc = decoder.decode(in, out, true);
+        if (rc.isUnderflow()) {
+            rc = decoder.flush(out);
+        }
+        if (!rc.isUnderflow()) {
+            return new String(bytes, 0, length, charset);
+        }
+        return new String(chars, 0, out.position());
+    }
+
+    private void ensureBytes(int size) {
+        if (bytes.length < size) {
+            bytes = new byte[Math.max(size, 2 * bytes.length)];
+            byteBuffer = ByteBuffer.wrap(bytes);
+        }
+    }
+
+    private void ensureChars(int size) {
+        if (chars.length < size) {
+            chars = new char[Math.max(size, 2 * chars.length)];
+            charBuffer = CharBuffer.wrap(chars);
+        }
+    }
+}
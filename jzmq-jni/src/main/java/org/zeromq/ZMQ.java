@@ -20,10 +20,14 @@ package org.zeromq;
 
 import java.io.Closeable;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.nio.channels.SelectableChannel;
 import java.nio.charset.Charset;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.Arrays;
 
@@ -41,6 +45,12 @@ public class ZMQ {
             System.loadLibrary("jzmq");
     }
 
+    // The library cannot change under a running JVM, so ask it once rather than on every version check
+    private static final int VERSION_MAJOR = version_major();
+    private static final int VERSION_MINOR = version_minor();
+    private static final int VERSION_PATCH = version_patch();
+    private static final int VERSION_FULL = version_full();
+
     // Values for flags in Socket's send and recv functions.
     /**
      * Socket flag to indicate a nonblocking send or recv mode.
@@ -231,32 +241,52 @@ public class ZMQ {
             EVENT_LISTENING | EVENT_BIND_FAILED | EVENT_ACCEPTED | EVENT_ACCEPT_FAILED |
             EVENT_CLOSED | EVENT_CLOSE_FAILED | EVENT_DISCONNECTED | EVENT_MONITOR_STOPPED;
 
+    /**
+     * Proxy control command: stop forwarding until RESUME.
+     */
+    public static final String PROXY_PAUSE = "PAUSE";
+
+    /**
+     * Proxy control command: start forwarding again after PAUSE.
+     */
+    public static final String PROXY_RESUME = "RESUME";
+
+    /**
+     * Proxy control command: make the proxy return.
+     */
+    public static final String PROXY_TERMINATE = "TERMINATE";
+
+    /**
+     * Proxy control command: reply with the counters, one 8 byte frame each in the order of ProxyCounters.
+     */
+    public static final String PROXY_STATISTICS = "STATISTICS";
+
     /**
      * @return Major version number of the ZMQ library.
      */
     public static int getMajorVersion() {
-        return version_major();
+        return VERSION_MAJOR;
     }
 
     /**
      * @return Major version number of the ZMQ library.
      */
     public static int getMinorVersion() {
-        return version_minor();
+        return VERSION_MINOR;
     }
 
     /**
      * @return Major version number of the ZMQ library.
      */
     public static int getPatchVersion() {
-        return version_patch();
+        return VERSION_PATCH;
     }
 
     /**
      * @return Full version number of the ZMQ library used for comparing versions.
      */
     public static int getFullVersion() {
-        return version_full();
+        return VERSION_FULL;
     }
 
     /**
@@ -267,14 +297,15 @@ public class ZMQ {
      * @return Comparible single int version number.
      */
     public static int makeVersion(final int major, final int minor, final int patch) {
-        return make_version(major, minor, patch);
+        // Same as ZMQ_MAKE_VERSION
+        return major * 10000 + minor * 100 + patch;
     }
 
     /**
      * @return String version number in the form major.minor.patch.
      */
     public static String getVersionString() {
-        return String.format("%d.%d.%d", version_major(), version_minor(), version_patch());
+        return String.format("%d.%d.%d", VERSION_MAJOR, VERSION_MINOR, VERSION_PATCH);
     }
 
     /**
@@ -296,12 +327,34 @@ public class ZMQ {
      * @since 3.2.2
      */
     public static void proxy(Socket frontend, Socket backend, Socket capture) {
-        if (ZMQ.version_full() < ZMQ.make_version(3, 2, 2))
+        if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 2, 2))
             throw new UnsupportedOperationException();
 
         run_proxy(frontend, backend, capture);
     }
 
+    /**
+     * Starts a proxy that can be steered through a control socket, in the current application thread. It forwards
+     * like {@link #proxy(Socket, Socket, Socket)}, and also reads commands from the control socket:
+     * {@link #PROXY_PAUSE}, {@link #PROXY_RESUME}, {@link #PROXY_TERMINATE} and {@link #PROXY_STATISTICS}. If the
+     * control socket is a REP socket, commands other than STATISTICS get an empty reply.
+     * 
+     * Returns once TERMINATE is received or the context is closed.
+     * 
+     * @param frontend ZMQ.Socket
+     * @param backend ZMQ.Socket
+     * @param capture socket to send a copy of all messages to, may be null
+     * @param control socket to read commands from
+     * @param counters counters to update as messages pass, may be null
+     * @since 3.0.0
+     */
+    public static void proxy(Socket frontend, Socket backend, Socket capture, Socket control, ProxyCounters counters) {
+        if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 0, 0))
+            throw new UnsupportedOperationException();
+
+        run_proxy_steerable(frontend, backend, capture, control, counters != null ? counters.block : null);
+    }
+
     /**
      * Poll on polling items until timeout
      * 
@@ -369,6 +422,14 @@ public class ZMQ {
 
     private static native void run_proxy(Socket frontend, Socket backend, Socket capture);
 
+    // Atomic loads of the counters the proxy thread stores to
+    private static native long proxy_counter(ByteBuffer block, int counter);
+
+    private static native void proxy_counters(ByteBuffer block, long[] values);
+
+    private static native void run_proxy_steerable(Socket frontend, Socket backend, Socket capture, Socket control,
+            ByteBuffer counters);
+
     /**
      * Inner class: Error.
      */
@@ -524,6 +585,62 @@ public class ZMQ {
         public native int getMaxSockets();
     }
 
+    /**
+     * Notified when 0MQ no longer needs a buffer passed to {@link Socket#sendZeroCopy(ByteBuffer, int, int,
+     * ZeroCopyCallback)}, at which point the buffer may be reused.
+     * <p>
+     * The notification comes from a single thread shared by all sockets, so that 0MQ's I/O threads never wait for
+     * it; a slow implementation delays the notifications queued behind it. Exceptions thrown from it are dropped.
+     */
+    public interface ZeroCopyCallback {
+        void released(ByteBuffer buffer);
+    }
+
+    /**
+     * Runs the ZeroCopyCallbacks. 0MQ's I/O threads only queue the buffers they release.
+     */
+    private static final class ZeroCopyReaper implements Runnable {
+        private static final BlockingQueue<ZeroCopyReaper> released = new LinkedBlockingQueue<ZeroCopyReaper>();
+        private static final AtomicBoolean started = new AtomicBoolean(false);
+
+        private final ZeroCopyCallback callback;
+        private final ByteBuffer buffer;
+
+        private ZeroCopyReaper(ZeroCopyCallback callback, ByteBuffer buffer) {
+            this.callback = callback;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Called from JNI, on the thread 0MQ released the buffer on.
+         */
+        private static void enqueue(ZeroCopyCallback callback, ByteBuffer buffer) {
+            if (started.compareAndSet(false, true)) {
+                Thread thread = new Thread(new ZeroCopyReaper(null, null), "jzmq zero copy reaper");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            released.add(new ZeroCopyReaper(callback, buffer));
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                ZeroCopyReaper release;
+                try {
+                    release = released.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                try {
+                    release.callback.released(release.buffer);
+                } catch (Throwable t) {
+                    // There is no caller to report to, and the reaper must keep going for the other callbacks
+                }
+            }
+        }
+    }
+
     /**
      * Inner class: Socket.
      */
@@ -543,6 +660,7 @@ public class ZMQ {
          */
         public void close() {
             if(closed.compareAndSet(false, true)) {
+                cachedOptions = 0;
                 destroy();
             }
         }
@@ -555,7 +673,7 @@ public class ZMQ {
          * @since 2.1.0
          */
         public int getType() {
-            if (ZMQ.version_full() < ZMQ.make_version(2, 1, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(2, 1, 0))
                 return -1;
 
             return (int) getLongSockopt(TYPE);
@@ -568,7 +686,7 @@ public class ZMQ {
          * @since 2.1.0
          */
         public long getLinger() {
-            if (ZMQ.version_full() < ZMQ.make_version(2, 1, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(2, 1, 0))
                 return -1;
 
             return getLongSockopt(LINGER);
@@ -581,7 +699,7 @@ public class ZMQ {
          * @since 3.0.0
          */
         public long getReconnectIVL() {
-            if (ZMQ.version_full() < ZMQ.make_version(2, 1, 10))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(2, 1, 10))
                 return -1;
 
             return getLongSockopt(RECONNECT_IVL);
@@ -594,7 +712,7 @@ public class ZMQ {
          * @since 3.0.0
          */
         public long getBacklog() {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 0, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 0, 0))
                 return -1;
 
             return getLongSockopt(BACKLOG);
@@ -607,7 +725,7 @@ public class ZMQ {
          * @since 3.0.0
          */
         public long getReconnectIVLMax() {
-            if (ZMQ.version_full() < ZMQ.make_version(2, 1, 10))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(2, 1, 10))
                 return -1;
 
             return getLongSockopt(RECONNECT_IVL_MAX);
@@ -620,7 +738,7 @@ public class ZMQ {
          * @since 3.0.0
          */
         public long getMaxMsgSize() {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 0, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 0, 0))
                 return -1;
 
             return getLongSockopt(MAXMSGSIZE);
@@ -633,7 +751,7 @@ public class ZMQ {
          * @since 3.0.0
          */
         public long getSndHWM() {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 0, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 0, 0))
                 return -1;
 
             return getLongSockopt(SNDHWM);
@@ -646,7 +764,7 @@ public class ZMQ {
          * @since 3.0.0
          */
         public long getRcvHWM() {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 0, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 0, 0))
                 return -1;
           
             return getLongSockopt(RCVHWM);
@@ -658,7 +776,7 @@ public class ZMQ {
          * @return the High Water Mark.
          */
         public long getHWM() {
-            if (ZMQ.version_full() >= ZMQ.make_version(3, 0, 0))
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(3, 0, 0))
                 return -1;
 
             return getLongSockopt(HWM);
@@ -670,7 +788,7 @@ public class ZMQ {
         * @return the number of messages for handover.
         */
         public long getRouterHandover() {
-            if (ZMQ.version_full() >= ZMQ.make_version(4, 1, 0))
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 1, 0))
                 return -1L;
             else
                 return getLongSockopt(56);
@@ -682,7 +800,7 @@ public class ZMQ {
          * @return the number of messages to swap at most.
          */
         public long getSwap() {
-            if (ZMQ.version_full() >= ZMQ.make_version(3, 0, 0))
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(3, 0, 0))
                 return -1;
 
             return getLongSockopt(SWAP);
@@ -703,7 +821,7 @@ public class ZMQ {
          * @return the keep alive setting.
          */
         public long getTCPKeepAliveSetting() {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 2, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 2, 0))
                 return -1;
 
             return getLongSockopt(KEEPALIVE);
@@ -715,7 +833,7 @@ public class ZMQ {
          * @return the keep alive idle value.
          */
         public long getTCPKeepAliveIdle() {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 2, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 2, 0))
                 return -1;
 
             return getLongSockopt(KEEPALIVEIDLE);
@@ -727,7 +845,7 @@ public class ZMQ {
          * @return the keep alive interval.
          */
         public long getTCPKeepAliveInterval() {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 2, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 2, 0))
                 return -1;
 
             return getLongSockopt(KEEPALIVEINTVL);
@@ -739,7 +857,7 @@ public class ZMQ {
          * @return the keep alive count.
          */
         public long getTCPKeepAliveCount() {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 2, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 2, 0))
                 return -1;
 
             return getLongSockopt(KEEPALIVECNT);
@@ -762,7 +880,7 @@ public class ZMQ {
          * @return the last endpoint.
          */
         public byte[] getLastEndpoint() {
-            if (ZMQ.version_full() >= ZMQ.make_version(3, 2, 0)) {
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(3, 2, 0)) {
                 return getBytesSockopt(LAST_ENDPOINT);
             } else {
                 return null;
@@ -793,7 +911,7 @@ public class ZMQ {
          * @return the Multicast Loop.
          */
         public boolean hasMulticastLoop() {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 0, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 0, 0))
                 return false;
 
             return getLongSockopt(MCAST_LOOP) != 0;
@@ -806,7 +924,7 @@ public class ZMQ {
          * @param mcast_hops
          */
         public void setMulticastHops(long mcast_hops) {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 0, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 0, 0))
                 return;
 
             setLongSockopt(MULTICAST_HOPS, mcast_hops);
@@ -818,7 +936,7 @@ public class ZMQ {
          * @return the Multicast Hops.
          */
         public long getMulticastHops() {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 0, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 0, 0))
                 return 1;
             return getLongSockopt(MULTICAST_HOPS);
         }
@@ -832,7 +950,7 @@ public class ZMQ {
          * @param timeout Timeout for receive operation in milliseconds. Default -1 (infinite)
          */
         public void setReceiveTimeOut(int timeout) {
-            if (ZMQ.version_full() < ZMQ.make_version(2, 2, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(2, 2, 0))
                 return;
 
             setLongSockopt(RCVTIMEO, timeout);
@@ -844,7 +962,7 @@ public class ZMQ {
          * @return the Receive Timeout in milliseconds
          */
         public int getReceiveTimeOut() {
-            if (ZMQ.version_full() < ZMQ.make_version(2, 2, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(2, 2, 0))
                 return -1;
             return (int) getLongSockopt(RCVTIMEO);
         }
@@ -858,7 +976,7 @@ public class ZMQ {
          * @param timeout Timeout for send operation in milliseconds. Default -1 (infinite)
          */
         public void setSendTimeOut(int timeout) {
-            if (ZMQ.version_full() < ZMQ.make_version(2, 2, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(2, 2, 0))
                 return;
 
             setLongSockopt(SNDTIMEO, timeout);
@@ -870,7 +988,7 @@ public class ZMQ {
          * @return the Send Timeout. in milliseconds
          */
         public int getSendTimeOut() {
-            if (ZMQ.version_full() < ZMQ.make_version(2, 2, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(2, 2, 0))
                 return -1;
             return (int) getLongSockopt(SNDTIMEO);
         }
@@ -908,7 +1026,7 @@ public class ZMQ {
          * @return if the socket is setup for PLAIN security
          */
         public boolean getPlainServer() {
-            if (ZMQ.version_full() >= ZMQ.make_version(4, 0, 0)) {
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 0, 0)) {
                 return getLongSockopt(PLAIN_SERVER) == 1;
             }
 
@@ -921,7 +1039,7 @@ public class ZMQ {
          * @return null terminated byte array in server charset
          */
         public byte[] getPlainUsername() {
-            if (ZMQ.version_full() >= ZMQ.make_version(4, 0, 0)) {
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 0, 0)) {
                 return getBytesSockopt(PLAIN_USERNAME);
             }
 
@@ -934,7 +1052,7 @@ public class ZMQ {
          * @return null terminated byte array in server charset
          */
         public byte[] getPlainPassword() {
-            if (ZMQ.version_full() >= ZMQ.make_version(4, 0, 0)) {
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 0, 0)) {
                 return getBytesSockopt(PLAIN_PASSWORD);
             }
 
@@ -964,7 +1082,7 @@ public class ZMQ {
          * @since 2.1.0
          */
         public long getFD() {
-            if (ZMQ.version_full() < ZMQ.make_version(2, 1, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(2, 1, 0))
                 return -1;
 
             return getLongSockopt(FD);
@@ -978,7 +1096,7 @@ public class ZMQ {
          * @since 2.1.0
          */
         public long getEvents() {
-            if (ZMQ.version_full() < ZMQ.make_version(2, 1, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(2, 1, 0))
                 return -1;
 
             return getLongSockopt(EVENTS);
@@ -995,7 +1113,7 @@ public class ZMQ {
          * @since 2.1.0
          */
         public void setLinger(long linger) {
-            if (ZMQ.version_full() < ZMQ.make_version(2, 1, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(2, 1, 0))
                 return;
 
             setLongSockopt(LINGER, linger);
@@ -1005,7 +1123,7 @@ public class ZMQ {
          * @since 3.0.0
          */
         public void setReconnectIVL(long reconnectIVL) {
-            if (ZMQ.version_full() < ZMQ.make_version(2, 1, 10))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(2, 1, 10))
                 return;
 
             setLongSockopt(RECONNECT_IVL, reconnectIVL);
@@ -1015,7 +1133,7 @@ public class ZMQ {
          * @since 3.0.0
          */
         public void setBacklog(long backlog) {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 0, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 0, 0))
                 return;
 
             setLongSockopt(BACKLOG, backlog);
@@ -1025,7 +1143,7 @@ public class ZMQ {
          * @since 3.0.0
          */
         public void setReconnectIVLMax(long reconnectIVLMax) {
-            if (ZMQ.version_full() < ZMQ.make_version(2, 1, 10))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(2, 1, 10))
                 return;
 
             setLongSockopt(RECONNECT_IVL_MAX, reconnectIVLMax);
@@ -1035,7 +1153,7 @@ public class ZMQ {
          * @since 3.0.0
          */
         public void setMaxMsgSize(long maxMsgSize) {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 0, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 0, 0))
                 return;
 
             setLongSockopt(MAXMSGSIZE, maxMsgSize);
@@ -1045,7 +1163,7 @@ public class ZMQ {
          * @since 3.0.0
          */
         public void setSndHWM(long sndHWM) {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 0, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 0, 0))
                 return;
 
             setLongSockopt(SNDHWM, sndHWM);
@@ -1055,7 +1173,7 @@ public class ZMQ {
          * @since 3.0.0
          */
         public void setRcvHWM(long rcvHWM) {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 0, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 0, 0))
                 return;
 
             setLongSockopt(RCVHWM, rcvHWM);
@@ -1073,7 +1191,7 @@ public class ZMQ {
          * @param hwm the number of messages to queue.
          */
         public void setHWM(long hwm) {
-            if (ZMQ.version_full() >= ZMQ.make_version(3, 0, 0))
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(3, 0, 0))
                 return;
 
             setLongSockopt(HWM, hwm);
@@ -1084,7 +1202,7 @@ public class ZMQ {
         * @param handover the number of handover
         */
         public void setRouterHandover(long handover) {
-            if (ZMQ.version_full() >= ZMQ.make_version(4, 1, 0))
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 1, 0))
                 return;
             else
             {
@@ -1101,7 +1219,7 @@ public class ZMQ {
          * @param swap The value of 'ZMQ_SWAP' defines the maximum size of the swap space in bytes.
          */
         public void setSwap(long swap) {
-            if (ZMQ.version_full() >= ZMQ.make_version(3, 0, 0))
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(3, 0, 0))
                 return;
 
             setLongSockopt(SWAP, swap);
@@ -1133,7 +1251,7 @@ public class ZMQ {
          * @param optVal The value of 'ZMQ_TCP_KEEPALIVE' to turn TCP keepalives on (1) or off (0).
          */
         public void setTCPKeepAlive(long optVal) {
-            if (ZMQ.version_full() >= ZMQ.make_version(3, 2, 0))
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(3, 2, 0))
                 setLongSockopt(KEEPALIVE, optVal);
         }
 
@@ -1144,7 +1262,7 @@ public class ZMQ {
          * @param optVal The value of 'ZMQ_TCP_KEEPALIVE_CNT' defines the number of keepalives before death.
          */
         public void setTCPKeepAliveCount(long optVal) {
-            if (ZMQ.version_full() >= ZMQ.make_version(3, 2, 0))
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(3, 2, 0))
                 setLongSockopt(KEEPALIVECNT, optVal);
         }
 
@@ -1156,7 +1274,7 @@ public class ZMQ {
          *            dependant.
          */
         public void setTCPKeepAliveInterval(long optVal) {
-            if (ZMQ.version_full() >= ZMQ.make_version(3, 2, 0))
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(3, 2, 0))
                 setLongSockopt(KEEPALIVEINTVL, optVal);
         }
 
@@ -1168,7 +1286,7 @@ public class ZMQ {
          *            over the socket and the first keepalive probe. Unit is OS dependant.
          */
         public void setTCPKeepAliveIdle(long optVal) {
-            if (ZMQ.version_full() >= ZMQ.make_version(3, 2, 0))
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(3, 2, 0))
                 setLongSockopt(KEEPALIVEIDLE, optVal);
         }
 
@@ -1254,7 +1372,7 @@ public class ZMQ {
          * @param mcast_loop
          */
         public void setMulticastLoop(boolean mcast_loop) {
-            if (ZMQ.version_full() >= ZMQ.make_version(3, 0, 0))
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(3, 0, 0))
                 return;
 
             setLongSockopt(MCAST_LOOP, mcast_loop ? 1 : 0);
@@ -1310,7 +1428,7 @@ public class ZMQ {
          * @since 3.2.2
          */
         public void setXpubVerbose(boolean verbose) {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 2, 2))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 2, 2))
                 return;
               
             setLongSockopt(XPUB_VERBOSE, verbose ? 1L : 0L);
@@ -1323,7 +1441,7 @@ public class ZMQ {
          * @since 4.0.0
          */
         public void setPlainServer(boolean plain) {
-            if (ZMQ.version_full() >= ZMQ.make_version(4, 0, 0)) {
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 0, 0)) {
                 setLongSockopt(PLAIN_SERVER, plain ? 1L : 0L);
             }
         }
@@ -1335,7 +1453,7 @@ public class ZMQ {
          * @since 4.0.0
          */
         public void setPlainUsername(byte[] username) {
-            if (ZMQ.version_full() >= ZMQ.make_version(4, 0, 0)) {
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 0, 0)) {
                 setBytesSockopt(PLAIN_USERNAME, username);
             }
         }
@@ -1347,7 +1465,7 @@ public class ZMQ {
          * @since 4.0.0
          */
         public void setPlainPassword(byte[] password) {
-            if (ZMQ.version_full() >= ZMQ.make_version(4, 0, 0)) {
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 0, 0)) {
                 setBytesSockopt(PLAIN_PASSWORD, password);
             }
         }
@@ -1360,31 +1478,31 @@ public class ZMQ {
          * See http://rfc.zeromq.org/spec:27 for more details.
          */
         public void setZAPDomain(byte[] domain) {
-            if(ZMQ.version_full() >= ZMQ.make_version(4, 1, 0)) {
+            if(ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 1, 0)) {
                 setBytesSockopt(ZAP_DOMAIN, domain);
             }
         }
         
         public void setGSSAPIServer(boolean isServer) {
-            if(ZMQ.version_full() >= ZMQ.makeVersion(4, 1, 0)) {
+            if(ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 1, 0)) {
                 setLongSockopt(GSSAPI_SERVER, isServer ? 1L : 0L);
             }   
         }
 
         public void setGSSAPIPrincipal(byte[] principal) {
-            if(ZMQ.version_full() >= ZMQ.make_version(4, 1, 0)) {
+            if(ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 1, 0)) {
                 setBytesSockopt(GSSAPI_PRINCIPAL, principal);
             }
         }
 
         public void setGSSAPIServicePrincipal(byte[] principal) {
-            if(ZMQ.version_full() >= ZMQ.make_version(4, 1, 0)) {
+            if(ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 1, 0)) {
                 setBytesSockopt(GSSAPI_SERVICE_PRINCIPAL, principal);
             }
         }
 
         public void setGSSAPIPlainText(boolean isPlaintext) {
-            if(ZMQ.version_full() >= ZMQ.makeVersion(4, 1, 0)) {
+            if(ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 1, 0)) {
                 setLongSockopt(GSSAPI_PLAINTEXT, isPlaintext ? 1L : 0L);
             }   
         }
@@ -1404,7 +1522,7 @@ public class ZMQ {
          * @param isServer
          */
         public void setCurveServer(boolean isServer) {
-            if (ZMQ.version_full() >= ZMQ.make_version(4, 0, 0))
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 0, 0))
                 setLongSockopt(CURVE_SERVER, isServer ? 1L : 0L);
         }
 
@@ -1419,7 +1537,7 @@ public class ZMQ {
          * @param key key to be used
          */
         public void setCurvePublicKey(byte[] key) {
-            if (ZMQ.version_full() >= ZMQ.make_version(4, 0, 0))
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 0, 0))
                 setBytesSockopt(CURVE_PUBLICKEY, key);
         }
 
@@ -1433,7 +1551,7 @@ public class ZMQ {
          * @param key to be used
          */
         public void setCurveSecretKey(byte[] key) {
-            if (ZMQ.version_full() >= ZMQ.make_version(4, 0, 0))
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 0, 0))
                 setBytesSockopt(CURVE_SECRETKEY, key);
         }
 
@@ -1448,7 +1566,7 @@ public class ZMQ {
          * @param key to be used
          */
         public void setCurveServerKey(byte[] key) {
-            if (ZMQ.version_full() >= ZMQ.make_version(4, 0, 0))
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 0, 0))
                 setBytesSockopt(CURVE_SERVERKEY, key);
         }
 
@@ -1461,7 +1579,7 @@ public class ZMQ {
          * @since 4.0.0
          */
         public void setConflate(boolean conflate) {
-            if (ZMQ.version_full() >= ZMQ.make_version(4, 0, 0)) {
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 0, 0)) {
                 setLongSockopt(CONFLATE, conflate ? 1L : 0L);
             }
         }
@@ -1473,7 +1591,7 @@ public class ZMQ {
          * @since 4.0.0
          */
         public boolean getConflate() {
-            if (ZMQ.version_full() >= ZMQ.make_version(4, 0, 0)) {
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 0, 0)) {
                 return getLongSockopt(CONFLATE) != 0L;
             }
             else {
@@ -1488,7 +1606,7 @@ public class ZMQ {
          * @since 3.2.0
          */
         public boolean getImmediate() {
-            if (ZMQ.version_full() >= ZMQ.make_version(3, 2, 0)) {
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(3, 2, 0)) {
                 return getLongSockopt(IMMEDIATE) != 0L;
             }
             else {
@@ -1505,19 +1623,19 @@ public class ZMQ {
          * @since 3.2.0
          */
         public void setImmediate(boolean immediate) {
-            if (ZMQ.version_full() >= ZMQ.make_version(3, 2, 0)) {
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(3, 2, 0)) {
                 setLongSockopt(IMMEDIATE, immediate ? 1L : 0L);
             }
         }
 
         public void setReqRelaxed(boolean isRelaxed) {
-            if (ZMQ.version_full() >= ZMQ.make_version(4, 0, 0)) {
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 0, 0)) {
                 setLongSockopt(REQ_RELAXED, isRelaxed ? 1L : 0L);
             }
         }
 
         public void setReqCorrelate(boolean isCorrelate) {
-            if (ZMQ.version_full() >= ZMQ.make_version(4, 0, 0)) {
+            if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 0, 0)) {
                 setLongSockopt(REQ_CORRELATE, isCorrelate ? 1L : 0L);
             }
         }
@@ -1534,7 +1652,7 @@ public class ZMQ {
          * @since 4.0.0
          */
         public void setProbeRouter(boolean isProbeRouter) {
-        	if (ZMQ.version_full() >= ZMQ.make_version(4, 0, 0)) {
+        	if (ZMQ.VERSION_FULL >= ZMQ.makeVersion(4, 0, 0)) {
         		setLongSockopt(PROBE_ROUTER, isProbeRouter ? 1L : 0L);
         	}
         }       
@@ -1611,7 +1729,7 @@ public class ZMQ {
          * @param addr the endpoint to bind to.
          */
         public String bindToSystemRandomPort(String addr) {
-            if (ZMQ.version_full() < ZMQ.make_version(3, 2, 0))
+            if (ZMQ.VERSION_FULL < ZMQ.makeVersion(3, 2, 0))
                 throw new UnsupportedOperationException();
 
             bind(String.format("%s:*", addr));
@@ -1682,7 +1800,22 @@ public class ZMQ {
          * @param flags
          * @return
          */
-        public native boolean sendZeroCopy(ByteBuffer buffer, int len, int flags);
+        public boolean sendZeroCopy(ByteBuffer buffer, int len, int flags) {
+            return sendZeroCopy(buffer, len, flags, null);
+        }
+
+        /**
+         * Perform a zero copy send. The buffer must be allocated using ByteBuffer.allocateDirect, and must not be
+         * modified until the callback reports it released.
+         * 
+         * @param buffer direct buffer holding the message, starting at index 0
+         * @param len number of bytes to send
+         * @param flags the flags to apply to the send operation
+         * @param callback notified once 0MQ is done with the buffer, or null
+         * @return true if the message was queued; false if DONTWAIT was given and it could not be, in which case the
+         *         buffer is released at once
+         */
+        public native boolean sendZeroCopy(ByteBuffer buffer, int len, int flags, ZeroCopyCallback callback);
 
         /**
          * Send a message.
@@ -1703,8 +1836,7 @@ public class ZMQ {
          */
 
         public boolean send(String msg) {
-            byte[] b = msg.getBytes();
-            return send(b, 0, b.length, 0);
+            return StringCodec.send(this, msg, 0, Charset.defaultCharset());
         }
 
         /**
@@ -1715,8 +1847,7 @@ public class ZMQ {
          */
 
         public boolean sendMore(String msg) {
-            byte[] b = msg.getBytes();
-            return send(b, 0, b.length, SNDMORE);
+            return StringCodec.send(this, msg, SNDMORE, Charset.defaultCharset());
         }
 
         /**
@@ -1728,8 +1859,7 @@ public class ZMQ {
          */
 
         public boolean send(String msg, int flags) {
-            byte[] b = msg.getBytes();
-            return send(b, 0, b.length, flags);
+            return StringCodec.send(this, msg, flags, Charset.defaultCharset());
         }
 
         /**
@@ -1737,7 +1867,7 @@ public class ZMQ {
          *
          * @param bb ByteBuffer payload
          * @param flags the flags to apply to the send operation
-         * @return the number of bytes sent
+         * @return the number of bytes sent; -1 if DONTWAIT was given and the message could not be queued
          */
         public native int sendByteBuffer(ByteBuffer bb, int flags);
 
@@ -1821,13 +1951,7 @@ public class ZMQ {
          * @return the message received, as a String; null on error.
          */
         public String recvStr(int flags, Charset charset) {
-            byte[] data = recv(flags);
-
-            if (data == null) {
-                return null;
-            } else {
-                return new String(data, charset);
-            }
+            return StringCodec.recv(this, flags, charset);
         }
         /**
          * Receive a message
@@ -1838,6 +1962,127 @@ public class ZMQ {
          */
         public native int recvByteBuffer(ByteBuffer buffer, int flags);
 
+        /**
+         * Receive a message without copying it out of 0MQ. The caller must close the returned message to release it.
+         * Each call allocates a new Message and its direct buffer; to receive without allocating, reuse one Message
+         * with {@link #recvMessage(Message, int)}.
+         *
+         * @param flags the flags to apply to the receive operation.
+         * @return the message received; null on error.
+         */
+        public Message recvMessage(int flags) {
+            Message msg = new Message();
+            if (msg.recv(this, flags)) {
+                return msg;
+            }
+            return null;
+        }
+
+        /**
+         * Receive a message in to an existing Message without copying it out of 0MQ. Whatever the Message held
+         * before is released first, so a single Message can be reused for every receive.
+         *
+         * @param msg the message to receive in to.
+         * @param flags the flags to apply to the receive operation.
+         * @return true if a message was received, false on error.
+         */
+        public boolean recvMessage(Message msg, int flags) {
+            return msg.recv(this, flags);
+        }
+
+        /**
+         * Send the payload held by a Message without copying it. The payload is handed over to 0MQ, leaving the
+         * Message empty and ready for the next receive.
+         *
+         * @param msg the message to send.
+         * @param flags the flags to apply to the send operation.
+         * @return true if the message was queued, false if it would block.
+         */
+        public boolean sendMessage(Message msg, int flags) {
+            return msg.send(this, flags);
+        }
+
+        /**
+         * Move one whole multi-part message from this socket to another. The parts are handed from one socket to
+         * the other inside 0MQ, so the payload is never copied in to the Java heap.
+         *
+         * @param destination the socket to send the message to.
+         * @param flags the flags to apply to the receive of the first part.
+         * @return number of parts forwarded, 0 if there was no message waiting.
+         */
+        public int forward(Socket destination, int flags) {
+            return forward(destination.socketHandle, flags);
+        }
+
+        private native int forward(long destination, int flags);
+
+        /**
+         * Send a multi-part message in a single call.
+         *
+         * @param frames the message parts, a null part is sent as an empty frame
+         * @return true if the message was queued, false if it would block
+         */
+        public boolean sendMultipart(byte[][] frames) {
+            return sendMultipart(frames, 0);
+        }
+
+        /**
+         * Send a multi-part message in a single call. SNDMORE is set on every part but the last one. Every part is
+         * copied before the first one is sent, and if the socket would block on the first part, nothing is sent and
+         * false is returned. Once the first part is accepted the rest follow without blocking; the only failures
+         * past that point come from the socket or context being closed, which raise and drop the partial message
+         * with the socket.
+         *
+         * @param frames the message parts, a null part is sent as an empty frame
+         * @param flags the flags to apply to each part
+         * @return true if the message was queued, false if it would block
+         */
+        public native boolean sendMultipart(byte[][] frames, int flags);
+
+        /**
+         * Send a multi-part message packed back to back in a direct ByteBuffer, starting at its position. Parts are
+         * sent as {@link #sendMultipart(byte[][], int)} sends them. The position is advanced past the bytes sent
+         * once the whole message is queued and is left unchanged otherwise. Requires 0MQ 3.0 or later.
+         *
+         * @param buffer direct buffer holding the parts
+         * @param sizes size of each part
+         * @param count number of parts to send
+         * @param flags the flags to apply to each part
+         * @return true if the message was queued, false if it would block
+         */
+        public native boolean sendMultipart(ByteBuffer buffer, int[] sizes, int count, int flags);
+
+        /**
+         * Receive all parts of a message in a single call.
+         *
+         * @return the message parts; null on error.
+         */
+        public byte[][] recvMultipart() {
+            return recvMultipart(0);
+        }
+
+        /**
+         * Receive all parts of a message in a single call.
+         *
+         * @param flags the flags to apply to the receive operation.
+         * @return the message parts; null on error.
+         */
+        public native byte[][] recvMultipart(int flags);
+
+        /**
+         * Receive all parts of a message back to back in to a direct ByteBuffer, starting at its position. The size
+         * of each part is written to sizes and the position is advanced past the bytes stored. If a part does not fit
+         * in the space left before the limit, or the message has more parts than sizes has room for, the whole
+         * message is read and dropped and a ZMQException with ENOBUFS is raised. On any failure the position is left
+         * unchanged, though the bytes after it and the entries of sizes may have been overwritten.
+         *
+         * @param buffer direct buffer to copy the parts in to
+         * @param sizes receives the size of each part
+         * @param flags the flags to apply to the receive operation.
+         * @return number of parts in the message, -1 if it would block
+         */
+        public native int recvMultipart(ByteBuffer buffer, int[] sizes, int flags);
+
         /**
          * Class constructor.
          * 
@@ -1858,12 +2103,57 @@ public class ZMQ {
         protected native void destroy();
 
         /**
-         * Get the socket option value, as a long.
+         * Get the socket option value, as a long. Options that only change when set from here, such as the type,
+         * linger, high water marks and timeouts, are read from 0MQ once and then answered from a cache.
          * 
          * @param option ID of the option to set.
          * @return The socket option value (as a long).
          */
-        public native long getLongSockopt(int option);
+        public long getLongSockopt(int option) {
+            if (isCached(option))
+                return optionValues[option];
+            long value = nativeGetLongSockopt(option);
+            cache(option, value);
+            return value;
+        }
+
+        /**
+         * Get several socket option values, as longs, with at most one call into 0MQ.
+         * 
+         * @param options IDs of the options to get.
+         * @param out receives the value of options[i] at out[i], must be at least as long as options.
+         */
+        public void getSockopts(int[] options, long[] out) {
+            if (out.length < options.length)
+                throw new IllegalArgumentException("out is shorter than options");
+            boolean missed = false;
+            for (int i = 0; i < options.length; i++) {
+                if (isCached(options[i]))
+                    out[i] = optionValues[options[i]];
+                else
+                    missed = true;
+            }
+            if (!missed)
+                return;
+            nativeGetSockopts(options, out);
+            for (int i = 0; i < options.length; i++)
+                cache(options[i], out[i]);
+        }
+
+        private boolean isCached(int option) {
+            return option >= 0 && option < 64 && (cachedOptions & (1L << option)) != 0;
+        }
+
+        private void cache(int option, long value) {
+            if (option >= 0 && option < 64 && (CACHEABLE_OPTIONS & (1L << option)) != 0) {
+                optionValues[option] = value;
+                cachedOptions |= 1L << option;
+            }
+        }
+
+        private native long nativeGetLongSockopt(int option);
+
+        private native void nativeGetSockopts(int[] options, long[] out);
 
         /**
          * Get the socket option value, as a byte array.
@@ -1879,7 +2169,12 @@ public class ZMQ {
          * @param option ID of the option to set.
          * @param optval value (as a long) to set the option to.
          */
-        public native void setLongSockopt(int option, long optval);
+        public void setLongSockopt(int option, long optval) {
+            nativeSetLongSockopt(option, optval);
+            cache(option, optval);
+        }
+
+        private native void nativeSetLongSockopt(int option, long optval);
 
         /**
          * Set the socket option value, given as a byte array.
@@ -1901,6 +2196,10 @@ public class ZMQ {
         
         /** Opaque data used by JNI driver. */
         private long socketHandle;
+
+        // Values of the options with their bit set in cachedOptions, indexed by option ID
+        private final long[] optionValues = new long[64];
+        private long cachedOptions;
         private final Context context;
         // private Constants use the appropriate setter instead.
         private static final int HWM = 1;
@@ -1955,6 +2254,15 @@ public class ZMQ {
         private static final int GSSAPI_PRINCIPAL = 63;
         private static final int GSSAPI_SERVICE_PRINCIPAL = 64;
         private static final int GSSAPI_PLAINTEXT = 65;
+
+        // Options that 0MQ never changes by itself nor as a side effect of setting another option, so a value read or
+        // set once stays right for the life of the socket. Not RCVMORE and EVENTS, which follow traffic, nor IPV4ONLY
+        // and PLAIN_SERVER, which other options reset.
+        private static final long CACHEABLE_OPTIONS = 1L << TYPE | 1L << FD | 1L << LINGER | 1L << HWM | 1L << SWAP
+                | 1L << AFFINITY | 1L << RATE | 1L << RECOVERY_IVL | 1L << MCAST_LOOP | 1L << SNDBUF | 1L << RCVBUF
+                | 1L << RECONNECT_IVL | 1L << RECONNECT_IVL_MAX | 1L << BACKLOG | 1L << MAXMSGSIZE | 1L << SNDHWM
+                | 1L << RCVHWM | 1L << MULTICAST_HOPS | 1L << RCVTIMEO | 1L << SNDTIMEO | 1L << KEEPALIVE
+                | 1L << KEEPALIVECNT | 1L << KEEPALIVEIDLE | 1L << KEEPALIVEINTVL;
     }
 
     public static class PollItem {
@@ -2018,7 +2326,7 @@ public class ZMQ {
     /**
      * Inner class: Poller.
      */
-    public static class Poller {
+    public static class Poller implements Closeable {
         /**
          * These values can be ORed to specify what we want to poll for.
          */
@@ -2095,39 +2403,51 @@ public class ZMQ {
         private int registerInternal(PollItem item) {
             int pos = -1;
 
-            if (!this.freeSlots.isEmpty()) {
-                // If there are free slots in our array, remove one
-                // from the free list and use it.
-                pos = this.freeSlots.remove();
+            if (this.freeCount > 0) {
+                // If there are free slots in our array, reuse one.
+                pos = this.freeSlots[--this.freeCount];
             } else {
                 if (this.next >= this.size) {
                     // It is necessary to grow the arrays.
-
-                    // Compute new size for internal arrays.
-                    int nsize = this.size + SIZE_INCREMENT;
-
-                    // Create new internal arrays.
-                    PollItem[] ns = new PollItem[nsize];
-                    short[] ne = new short[nsize];
-                    short[] nr = new short[nsize];
-
-                    // Copy contents of current arrays into new arrays.
-                    for (int i = 0; i < this.next; ++i) {
-                        ns[i] = this.items[i];
-                    }
-
-                    // Swap internal arrays and size to new values.
-                    this.size = nsize;
-                    this.items = ns;
+                    grow(this.size + SIZE_INCREMENT);
                 }
                 pos = this.next++;
             }
 
+            Object key = item.socket != null ? item.socket : item.channel;
+            Integer first = this.indexes.put(key, pos);
+            this.sameKey[pos] = first != null ? first : -1;
+
             this.items[pos] = item;
+            this.activePos[pos] = this.used;
+            this.active[this.used] = item;
+            this.activeIndex[this.used] = pos;
             this.used++;
+            if (this.pollSet != 0) {
+                pollset_add(this.pollSet, pos, item);
+                if (this.ready.capacity() < 2 * this.used) {
+                    IntBuffer grown = newReadyBuffer(this.ready.capacity());
+                    this.ready.position(0);
+                    grown.put(this.ready);
+                    this.ready = grown;
+                }
+            }
             return pos;
         }
 
+        /**
+         * Grow the internal arrays to the given size.
+         */
+        private void grow(int nsize) {
+            this.items = Arrays.copyOf(this.items, nsize);
+            this.active = Arrays.copyOf(this.active, nsize);
+            this.activeIndex = Arrays.copyOf(this.activeIndex, nsize);
+            this.activePos = Arrays.copyOf(this.activePos, nsize);
+            this.sameKey = Arrays.copyOf(this.sameKey, nsize);
+            this.freeSlots = Arrays.copyOf(this.freeSlots, nsize);
+            this.size = nsize;
+        }
+
         /**
          * Unregister a Socket for polling on the specified events.
          * 
@@ -2152,20 +2472,31 @@ public class ZMQ {
          * @param socket the Socket to be unregistered
          */
         private void unregisterInternal(Object socket) {
-            for (int i = 0; i < this.next; ++i) {
-                PollItem item = this.items[i];
-                if (item == null) {
-                    continue;
-                }
-                if (item.socket == socket || item.channel == socket) {
-                    this.items[i] = null;
+            Integer index = this.indexes.remove(socket);
+            if (index == null) {
+                return;
+            }
+            int i = index;
+            if (this.sameKey[i] >= 0) {
+                // The same socket was registered more than once.
+                this.indexes.put(socket, this.sameKey[i]);
+            }
 
-                    this.freeSlots.add(i);
-                    --this.used;
+            // Move the last active item into the hole to keep the active items dense.
+            int pos = this.activePos[i];
+            int last = --this.used;
+            if (pos != last) {
+                this.active[pos] = this.active[last];
+                this.activeIndex[pos] = this.activeIndex[last];
+                this.activePos[this.activeIndex[pos]] = pos;
+            }
+            this.active[last] = null;
 
-                    break;
-                }
+            this.items[i] = null;
+            if (this.pollSet != 0) {
+                pollset_remove(this.pollSet, i);
             }
+            this.freeSlots[this.freeCount++] = i;
         }
 
         /**
@@ -2270,8 +2601,69 @@ public class ZMQ {
             if (this.size <= 0 || this.next <= 0) {
                 return 0;
             }
+            if (this.pollSet != 0) {
+                return pollNative(tout);
+            }
+
+            return run_poll(this.active, this.used, tout);
+        }
+
+        /**
+         * Poll the native poll set and copy the results back to the signalled items. Only the items signalled by
+         * the previous poll need their revents cleared, so no work is done for idle items.
+         */
+        private int pollNative(long tout) {
+            for (int i = 0; i < this.readyCount; ++i) {
+                PollItem item = this.items[this.ready.get(2 * i)];
+                if (item != null) {
+                    item.revents = 0;
+                }
+            }
+            this.readyCount = 0;
+            this.ready.clear();
+
+            int rc = pollset_poll(this.pollSet, this.ready, tout);
+            for (int i = 0; i < rc; ++i) {
+                this.items[this.ready.get(2 * i)].revents = this.ready.get(2 * i + 1);
+            }
+            this.readyCount = rc;
+            this.ready.limit(2 * rc);
+            return rc;
+        }
+
+        /**
+         * Get the items signalled by the latest poll call, as consecutive pairs of index in the poll set and
+         * signalled events. Only available on a poller created with a native poll set; the buffer is reused by the
+         * next poll call.
+         *
+         * @return the signalled (index, revents) pairs, or null if this poller has no native poll set.
+         */
+        public IntBuffer getReady() {
+            if (this.ready == null) {
+                return null;
+            }
+            IntBuffer view = this.ready.duplicate();
+            view.position(0);
+            view.limit(2 * this.readyCount);
+            return view;
+        }
 
-            return run_poll(this.items, this.used, tout);
+        /**
+         * Release the native poll set, if any. Polling afterwards falls back to rebuilding the poll set on every
+         * call.
+         */
+        public void close() {
+            if (this.pollSet != 0) {
+                pollset_free(this.pollSet);
+                this.pollSet = 0;
+                this.ready = null;
+                this.readyCount = 0;
+            }
+        }
+
+        private static IntBuffer newReadyBuffer(int capacity) {
+            int ints = Math.max(2 * SIZE_DEFAULT, 2 * capacity);
+            return ByteBuffer.allocateDirect(4 * ints).order(ByteOrder.nativeOrder()).asIntBuffer();
         }
 
         /**
@@ -2337,8 +2729,31 @@ public class ZMQ {
             this.next = 0;
 
             this.items = new PollItem[this.size];
+            this.active = new PollItem[this.size];
+            this.activeIndex = new int[this.size];
+            this.activePos = new int[this.size];
+            this.sameKey = new int[this.size];
+            this.freeSlots = new int[this.size];
+            this.indexes = new IdentityHashMap<Object, Integer>();
+        }
 
-            freeSlots = new LinkedList<Integer>();
+        /**
+         * Constructor
+         * <p>
+         * With a native poll set, the zmq_pollitem_t array is kept up to date as items are registered and
+         * unregistered instead of being rebuilt on every poll, and the signalled items are available from
+         * {@link #getReady()}. Sockets must be unregistered before they are closed, and the poller must be closed to
+         * release the native poll set.
+         *
+         * @param size the number of Sockets this poller will contain.
+         * @param nativePollSet whether to keep a native poll set.
+         */
+        public Poller(int size, boolean nativePollSet) {
+            this(null, size);
+            if (nativePollSet) {
+                this.pollSet = pollset_new(size);
+                this.ready = newReadyBuffer(size);
+            }
         }
 
         /**
@@ -2355,6 +2770,16 @@ public class ZMQ {
          */
         protected native static int run_poll(PollItem[] items, int count, long timeout);
 
+        private native static long pollset_new(int capacity);
+
+        private native static void pollset_free(long pollSet);
+
+        private native static void pollset_add(long pollSet, int index, PollItem item);
+
+        private native static void pollset_remove(long pollSet, int index);
+
+        private native static int pollset_poll(long pollSet, IntBuffer ready, long timeout);
+
         /**
          * Check whether a specific mask was signalled by latest poll call.
          * 
@@ -2375,13 +2800,210 @@ public class ZMQ {
         private int next = 0;
         private int used = 0;
         private PollItem[] items = null;
+        // Registered items packed at the front, with their index in items and
+        // the position of each index in this array
+        private PollItem[] active = null;
+        private int[] activeIndex = null;
+        private int[] activePos = null;
+        // Index of each registered socket or channel, chaining through
+        // sameKey when one is registered more than once
+        private IdentityHashMap<Object, Integer> indexes = null;
+        private int[] sameKey = null;
         // When socket is removed from polling, store free slots here
-        private LinkedList<Integer> freeSlots = null;
+        private int[] freeSlots = null;
+        private int freeCount = 0;
+        // Native poll set and the (index, revents) pairs from the latest poll
+        private long pollSet = 0;
+        private IntBuffer ready = null;
+        private int readyCount = 0;
 
         private static final int SIZE_DEFAULT = 32;
         private static final int SIZE_INCREMENT = 16;
     }
     
+    /**
+     * Inner class: Message.
+     * <p>
+     * A received message left in 0MQ's own memory. Its payload is exposed as a read-only direct ByteBuffer, so it
+     * can be read in place without a copy to the Java heap. A Message can be received into again and again; each
+     * receive releases the previous payload, and {@link #close()} releases the current one. A Message that is
+     * garbage collected without being closed releases its payload then, but the collector does not see 0MQ's
+     * memory and may take long to get there, so close messages or reuse one.
+     * <p>
+     * The buffer returned by {@link #data()} points straight at 0MQ's memory. Its limit is set to 0 when the payload
+     * is released, but duplicates and slices made from it are not reached and would read freed memory, which can
+     * crash the JVM. So do not duplicate or slice it, do not use it once the payload is released, and keep the
+     * Message itself reachable for as long as the buffer is in use; copy out anything needed for longer.
+     */
+    public static class Message implements Closeable {
+        private static native void nativeInit();
+
+        private static native int sizeOf();
+
+        private static final int SIZE;
+
+        static {
+            nativeInit();
+            SIZE = sizeOf();
+        }
+
+        // Storage for the zmq_msg_t itself
+        private final ByteBuffer storage;
+        private ByteBuffer data;
+        private int size = -1;
+        private boolean more;
+
+        public Message() {
+            storage = ByteBuffer.allocateDirect(SIZE);
+            init();
+        }
+
+        /**
+         * Get the payload of the last message received.
+         *
+         * @return a read-only view of the payload, or null if the message holds nothing. Valid until the next receive
+         *         or close; see the class comment before duplicating it.
+         */
+        public ByteBuffer data() {
+            if (data == null && size >= 0) {
+                data = buffer().asReadOnlyBuffer();
+            }
+            return data;
+        }
+
+        /**
+         * @return the size of the payload, 0 if the message holds nothing.
+         */
+        public int size() {
+            return size < 0 ? 0 : size;
+        }
+
+        /**
+         * @return true if more message parts follow the last one received.
+         */
+        public boolean hasMore() {
+            return more;
+        }
+
+        /**
+         * Release the payload back to 0MQ. The Message can still be received into afterwards.
+         */
+        public void close() {
+            invalidate();
+            release();
+        }
+
+        /**
+         * Receive in to this message, releasing the previous payload first.
+         */
+        boolean recv(Socket socket, int flags) {
+            invalidate();
+            size = recv(socket.socketHandle, flags);
+            return size >= 0;
+        }
+
+        /**
+         * Send the payload, handing it over to 0MQ. The message is left empty once sent.
+         */
+        boolean send(Socket socket, int flags) {
+            invalidate();
+            return send(socket.socketHandle, flags);
+        }
+
+        /**
+         * Copy the payload in to dst, which must have room for size() bytes from offset.
+         */
+        void copyTo(byte[] dst, int offset) {
+            copy(dst, offset);
+        }
+
+        /**
+         * Safety net for a Message that was never closed, so its payload is not leaked.
+         */
+        @Override
+        protected void finalize() throws Throwable {
+            try {
+                release();
+            } finally {
+                super.finalize();
+            }
+        }
+
+        private void invalidate() {
+            if (data != null) {
+                // Make the buffer handed out unreadable before its memory goes away.
+                data.limit(0);
+                data = null;
+            }
+            size = -1;
+            more = false;
+        }
+
+        private native void init();
+
+        private native void release();
+
+        private native int recv(long socket, int flags);
+
+        private native boolean send(long socket, int flags);
+
+        private native ByteBuffer buffer();
+
+        private native void copy(byte[] dst, int offset);
+    }
+
+    /**
+     * Message and byte counters of a steerable proxy, for each direction. The counters live in a direct buffer that
+     * the proxy thread updates as messages pass, each with an atomic 64-bit store, and are read back with atomic
+     * loads, so any thread can read them without a lock and without stopping the proxy. Each counter is read whole,
+     * but a snapshot may fall between the updates of two counters. A message is counted once all its parts are
+     * forwarded.
+     */
+    public static class ProxyCounters {
+        public static final int FRONTEND_MESSAGES_IN = 0;
+        public static final int FRONTEND_BYTES_IN = 1;
+        public static final int FRONTEND_MESSAGES_OUT = 2;
+        public static final int FRONTEND_BYTES_OUT = 3;
+        public static final int BACKEND_MESSAGES_IN = 4;
+        public static final int BACKEND_BYTES_IN = 5;
+        public static final int BACKEND_MESSAGES_OUT = 6;
+        public static final int BACKEND_BYTES_OUT = 7;
+
+        private static final int COUNT = 8;
+
+        private final ByteBuffer block;
+
+        public ProxyCounters() {
+            block = ByteBuffer.allocateDirect(COUNT * 8).order(ByteOrder.nativeOrder());
+        }
+
+        /**
+         * @param counter one of the counter indexes, FRONTEND_MESSAGES_IN to BACKEND_BYTES_OUT.
+         * @return the current value of the counter.
+         */
+        public long get(int counter) {
+            if (counter < 0 || counter >= COUNT) {
+                throw new IndexOutOfBoundsException("Unknown counter " + counter);
+            }
+            return proxy_counter(block, counter);
+        }
+
+        /**
+         * @return a copy of all counters, in index order.
+         */
+        public long[] snapshot() {
+            long[] values = new long[COUNT];
+            proxy_counters(block, values);
+            return values;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("frontend in %d/%dB out %d/%dB, backend in %d/%dB out %d/%dB", get(0), get(1),
+                    get(2), get(3), get(4), get(5), get(6), get(7));
+        }
+    }
+
     /**
      * Inner class: Event.
      * Monitor socket event class
@@ -10,8 +10,12 @@ import org.zeromq.ZMQ.Socket;
 import javax.xml.bind.DatatypeConverter;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -351,6 +355,73 @@ public class ZMQTest {
         ctx.term();
     }
 
+    @Test
+    public void testSteerableProxy() throws Exception {
+        if (ZMQ.getFullVersion() < ZMQ.make_version(3, 0, 0))
+            return;
+
+        final Context ctx = ZMQ.context(1);
+        final Socket frontend = ctx.socket(ZMQ.PULL);
+        frontend.bind("inproc://steer_frontend");
+        final Socket backend = ctx.socket(ZMQ.PUSH);
+        backend.bind("inproc://steer_backend");
+        final Socket control = ctx.socket(ZMQ.REP);
+        control.bind("inproc://steer_control");
+
+        Socket in = ctx.socket(ZMQ.PUSH);
+        in.connect("inproc://steer_frontend");
+        Socket out = ctx.socket(ZMQ.PULL);
+        out.connect("inproc://steer_backend");
+        Socket steer = ctx.socket(ZMQ.REQ);
+        steer.connect("inproc://steer_control");
+
+        final ZMQ.ProxyCounters counters = new ZMQ.ProxyCounters();
+        Thread proxy = new Thread() {
+            @Override
+            public void run() {
+                ZMQ.proxy(frontend, backend, null, control, counters);
+            }
+        };
+        proxy.start();
+
+        in.sendMore("hello");
+        in.send("world");
+        assertEquals("hello", out.recvStr());
+        assertEquals("world", out.recvStr());
+
+        steer.send(ZMQ.PROXY_STATISTICS);
+        byte[][] stats = steer.recvMultipart();
+        assertEquals(8, stats.length);
+        assertEquals(1, ByteBuffer.wrap(stats[0]).order(ByteOrder.nativeOrder()).getLong());
+        assertEquals(1, counters.get(ZMQ.ProxyCounters.FRONTEND_MESSAGES_IN));
+        assertEquals(10, counters.get(ZMQ.ProxyCounters.FRONTEND_BYTES_IN));
+        assertEquals(1, counters.get(ZMQ.ProxyCounters.BACKEND_MESSAGES_OUT));
+        assertEquals(0, counters.get(ZMQ.ProxyCounters.BACKEND_MESSAGES_IN));
+
+        steer.send(ZMQ.PROXY_PAUSE);
+        steer.recv(0);
+        in.send("paused");
+        Thread.sleep(100);
+        assertNull(out.recv(ZMQ.DONTWAIT));
+
+        steer.send(ZMQ.PROXY_RESUME);
+        steer.recv(0);
+        assertEquals("paused", out.recvStr());
+
+        steer.send(ZMQ.PROXY_TERMINATE);
+        steer.recv(0);
+        proxy.join();
+        assertEquals(2, counters.get(ZMQ.ProxyCounters.FRONTEND_MESSAGES_IN));
+
+        in.close();
+        out.close();
+        steer.close();
+        frontend.close();
+        backend.close();
+        control.close();
+        ctx.term();
+    }
+
     /**
      * Test method for Router Mandatory
      */
@@ -602,6 +673,362 @@ public class ZMQTest {
             }
         }
     }
+
+    @Test
+    public void testWouldBlockDoesNotThrow() {
+        if (ZMQ.version_full() >= ZMQ.make_version(3, 0, 0)) {
+            ZMQ.Context context = ZMQ.context(1);
+            ZMQ.Socket push = context.socket(ZMQ.PUSH);
+            ZMQ.Socket pull = context.socket(ZMQ.PULL);
+            try {
+                // No peer, so every non-blocking send would block
+                push.bind("inproc://wouldblock");
+                ByteBuffer buffer = ByteBuffer.allocateDirect(4);
+                buffer.put("PING".getBytes());
+                buffer.flip();
+
+                assertFalse(push.send("PING".getBytes(), 0, 4, ZMQ.DONTWAIT));
+                assertEquals(-1, push.sendByteBuffer(buffer, ZMQ.DONTWAIT));
+                assertEquals(0, buffer.position());
+                assertFalse(push.sendZeroCopy(buffer, 4, ZMQ.DONTWAIT));
+                assertFalse(push.sendMultipart(new byte[][] { "PING".getBytes() }, ZMQ.DONTWAIT));
+
+                // Nothing to receive either
+                pull.bind("inproc://wouldblock-pull");
+                assertNull(pull.recv(ZMQ.DONTWAIT));
+                assertEquals(-1, pull.recv(new byte[4], 0, 4, ZMQ.DONTWAIT));
+                assertEquals(-1, pull.recvByteBuffer(buffer, ZMQ.DONTWAIT));
+                assertEquals(-1, pull.recvZeroCopy(buffer, 4, ZMQ.DONTWAIT));
+            } finally {
+                push.close();
+                pull.close();
+                context.term();
+            }
+        }
+    }
+
+    @Test
+    public void testCachedAndBatchedSocketOptions() {
+        assertEquals(ZMQ.make_version(4, 1, 2), ZMQ.makeVersion(4, 1, 2));
+        assertEquals(ZMQ.version_full(), ZMQ.getFullVersion());
+        if (ZMQ.version_full() >= ZMQ.make_version(3, 0, 0)) {
+            ZMQ.Context context = ZMQ.context(1);
+            ZMQ.Socket socket = context.socket(ZMQ.DEALER);
+            try {
+                socket.setLinger(123);
+                socket.setSndHWM(456);
+                socket.setReceiveTimeOut(789);
+                assertEquals(ZMQ.DEALER, socket.getType());
+                assertEquals(123, socket.getLinger());
+                assertEquals(456, socket.getSndHWM());
+                assertEquals(789, socket.getReceiveTimeOut());
+                assertFalse(socket.hasReceiveMore());
+
+                // TYPE, LINGER, RCVHWM, RCVMORE, SNDTIMEO
+                int[] options = { 16, 17, 24, 13, 28 };
+                long[] values = new long[options.length];
+                socket.getSockopts(options, values);
+                assertEquals(ZMQ.DEALER, values[0]);
+                assertEquals(123, values[1]);
+                assertEquals(socket.getRcvHWM(), values[2]);
+                assertEquals(0, values[3]);
+                assertEquals(socket.getSendTimeOut(), values[4]);
+
+                socket.setLinger(0);
+                assertEquals(0, socket.getLinger());
+                socket.getSockopts(options, values);
+                assertEquals(0, values[1]);
+            } finally {
+                socket.close();
+                context.term();
+            }
+        }
+    }
+
+    @Test
+    public void testByteBufferPositionAndMark() {
+        if (ZMQ.version_full() >= ZMQ.make_version(3, 0, 0)) {
+            ZMQ.Context context = ZMQ.context(1);
+            ByteBuffer out = ByteBuffer.allocateDirect(8);
+            ByteBuffer in = ByteBuffer.allocateDirect(8);
+            ZMQ.Socket push = null;
+            ZMQ.Socket pull = null;
+            try {
+                push = context.socket(ZMQ.PUSH);
+                pull = context.socket(ZMQ.PULL);
+                pull.bind("inproc://bbposition");
+                push.connect("inproc://bbposition");
+
+                out.put("--PING".getBytes());
+                out.flip();
+                out.position(2);
+                assertEquals(4, push.sendByteBuffer(out, 0));
+                assertEquals(6, out.position());
+
+                in.position(6);
+                in.mark();
+                in.position(2);
+                assertEquals(4, pull.recvByteBuffer(in, 0));
+                assertEquals(6, in.position());
+
+                push.send("PONG".getBytes(), 0);
+                in.clear();
+                in.position(4);
+                in.mark();
+                in.position(0);
+                assertEquals(4, pull.recvZeroCopy(in, 2, 0));
+                assertEquals(2, in.position());
+                try {
+                    in.reset();
+                    Assert.fail("mark past the new position must be discarded");
+                } catch (java.nio.InvalidMarkException expected) {
+                }
+            } finally {
+                try {
+                    push.close();
+                } catch (Exception ignore) {
+                }
+                try {
+                    pull.close();
+                } catch (Exception ignore) {
+                }
+                try {
+                    context.term();
+                } catch (Exception ignore) {
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testStrings() {
+        ZMQ.Context context = ZMQ.context(1);
+        ZMQ.Socket push = null;
+        ZMQ.Socket pull = null;
+        Charset utf8 = Charset.forName("UTF-8");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("\u00e9\u20ac");
+        }
+        String large = sb.toString();
+        try {
+            push = context.socket(ZMQ.PUSH);
+            pull = context.socket(ZMQ.PULL);
+            pull.bind("inproc://strings");
+            push.connect("inproc://strings");
+
+            push.send("h\u00e9llo", 0);
+            assertEquals("h\u00e9llo", pull.recvStr(0, Charset.defaultCharset()));
+            push.send("");
+            assertEquals("", pull.recvStr(0, Charset.defaultCharset()));
+            push.send("w\u00f6rld".getBytes(utf8), 0);
+            assertEquals("w\u00f6rld", pull.recvStr(0, utf8));
+            push.send(large.getBytes(utf8), 0);
+            assertEquals(large, pull.recvStr(0, utf8));
+            assertNull(pull.recvStr(ZMQ.DONTWAIT, utf8));
+        } finally {
+            try {
+                push.close();
+            } catch (Exception ignore) {
+            }
+            try {
+                pull.close();
+            } catch (Exception ignore) {
+            }
+            try {
+                context.term();
+            } catch (Exception ignore) {
+            }
+        }
+    }
+
+    @Test
+    public void testMultipart() {
+        ZMQ.Context context = ZMQ.context(1);
+        ZMQ.Socket push = null;
+        ZMQ.Socket pull = null;
+        try {
+            push = context.socket(ZMQ.PUSH);
+            pull = context.socket(ZMQ.PULL);
+            pull.bind("inproc://multipart");
+            push.connect("inproc://multipart");
+
+            assertTrue(push.sendMultipart(new byte[][] { "A".getBytes(), null, "CCC".getBytes() }));
+            byte[][] parts = pull.recvMultipart();
+            assertEquals(3, parts.length);
+            assertArrayEquals("A".getBytes(), parts[0]);
+            assertEquals(0, parts[1].length);
+            assertArrayEquals("CCC".getBytes(), parts[2]);
+            assertFalse(pull.hasReceiveMore());
+
+            push.send("single".getBytes(), 0);
+            parts = pull.recvMultipart();
+            assertEquals(1, parts.length);
+            assertArrayEquals("single".getBytes(), parts[0]);
+        } finally {
+            try {
+                push.close();
+            } catch (Exception ignore) {
+            }
+            try {
+                pull.close();
+            } catch (Exception ignore) {
+            }
+            try {
+                context.term();
+            } catch (Exception ignore) {
+            }
+        }
+    }
+
+    @Test
+    public void testMultipartByteBuffer() {
+        if (ZMQ.version_full() >= ZMQ.make_version(3, 0, 0)) {
+            ZMQ.Context context = ZMQ.context(1);
+            ByteBuffer out = ByteBuffer.allocateDirect(16);
+            ByteBuffer in = ByteBuffer.allocateDirect(8);
+            ZMQ.Socket push = null;
+            ZMQ.Socket pull = null;
+            try {
+                push = context.socket(ZMQ.PUSH);
+                pull = context.socket(ZMQ.PULL);
+                pull.bind("inproc://multipartbb");
+                push.connect("inproc://multipartbb");
+
+                out.put("ABBCCCDDDD".getBytes());
+                out.flip();
+                assertTrue(push.sendMultipart(out, new int[] { 1, 2, 3, 4 }, 4, 0));
+                assertEquals(10, out.position());
+
+                // Too large for the buffer: the message is dropped and the position kept.
+                int[] sizes = new int[4];
+                try {
+                    pull.recvMultipart(in, sizes, 0);
+                    Assert.fail("Expected ENOBUFS");
+                } catch (ZMQException e) {
+                    assertEquals(ZMQ.ENOBUFS(), e.getErrorCode());
+                }
+                assertEquals(0, in.position());
+
+                out.rewind();
+                assertTrue(push.sendMultipart(out, new int[] { 1, 2, 3 }, 3, 0));
+                assertEquals(3, pull.recvMultipart(in, sizes, 0));
+                assertEquals(6, in.position());
+                assertArrayEquals(new int[] { 1, 2, 3, 0 }, sizes);
+                in.flip();
+                byte[] data = new byte[6];
+                in.get(data);
+                assertArrayEquals("ABBCCC".getBytes(), data);
+            } finally {
+                try {
+                    push.close();
+                } catch (Exception ignore) {
+                }
+                try {
+                    pull.close();
+                } catch (Exception ignore) {
+                }
+                try {
+                    context.term();
+                } catch (Exception ignore) {
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSendZeroCopyCallback() throws InterruptedException {
+        if (ZMQ.version_full() >= ZMQ.make_version(3, 0, 0)) {
+            ZMQ.Context context = ZMQ.context(1);
+            ZMQ.Socket push = null;
+            ZMQ.Socket pull = null;
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(8);
+            final BlockingQueue<ByteBuffer> released = new LinkedBlockingQueue<ByteBuffer>();
+            try {
+                push = context.socket(ZMQ.PUSH);
+                pull = context.socket(ZMQ.PULL);
+                int port = pull.bindToRandomPort("tcp://127.0.0.1");
+                push.connect("tcp://127.0.0.1:" + port);
+
+                buffer.put("zerocopy".getBytes());
+                assertTrue(push.sendZeroCopy(buffer, 8, 0, new ZMQ.ZeroCopyCallback() {
+                    @Override
+                    public void released(ByteBuffer b) {
+                        released.add(b);
+                    }
+                }));
+                assertArrayEquals("zerocopy".getBytes(), pull.recv(0));
+                assertTrue(released.poll(5, TimeUnit.SECONDS) == buffer);
+            } finally {
+                try {
+                    push.close();
+                } catch (Exception ignore) {
+                }
+                try {
+                    pull.close();
+                } catch (Exception ignore) {
+                }
+                try {
+                    context.term();
+                } catch (Exception ignore) {
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRecvMessage() {
+        if (ZMQ.version_full() >= ZMQ.make_version(3, 0, 0)) {
+            ZMQ.Context context = ZMQ.context(1);
+            ZMQ.Socket push = null;
+            ZMQ.Socket pull = null;
+            ZMQ.Message msg = new ZMQ.Message();
+            try {
+                push = context.socket(ZMQ.PUSH);
+                pull = context.socket(ZMQ.PULL);
+                pull.bind("inproc://recvmessage");
+                push.connect("inproc://recvmessage");
+
+                assertNull(pull.recvMessage(ZMQ.DONTWAIT));
+
+                push.send("hello".getBytes(), ZMQ.SNDMORE);
+                push.send(new byte[0], 0);
+
+                assertTrue(pull.recvMessage(msg, 0));
+                ByteBuffer data = msg.data();
+                assertTrue(data.isDirect());
+                assertTrue(data.isReadOnly());
+                assertEquals(5, msg.size());
+                assertTrue(msg.hasMore());
+                byte[] bytes = new byte[5];
+                data.get(bytes);
+                assertArrayEquals("hello".getBytes(), bytes);
+
+                assertTrue(pull.recvMessage(msg, 0));
+                assertEquals(0, data.limit());
+                assertEquals(0, msg.size());
+                assertFalse(msg.hasMore());
+
+                msg.close();
+                assertNull(msg.data());
+            } finally {
+                msg.close();
+                try {
+                    push.close();
+                } catch (Exception ignore) {
+                }
+                try {
+                    pull.close();
+                } catch (Exception ignore) {
+                }
+                try {
+                    context.term();
+                } catch (Exception ignore) {
+                }
+            }
+        }
+    }
+
     @Test
     public void testPollerUnregister() {
         Context context = ZMQ.context(1);
@@ -622,6 +1049,85 @@ public class ZMQTest {
         context.term();
     }
 
+    @Test
+    public void testPollerUnregisterReusesSlot() {
+        Context context = ZMQ.context(1);
+        Socket push = context.socket(ZMQ.PUSH);
+        Socket pullOne = context.socket(ZMQ.PULL);
+        Socket pullTwo = context.socket(ZMQ.PULL);
+        Socket pullThree = context.socket(ZMQ.PULL);
+        Poller poller = new ZMQ.Poller(2);
+        try {
+            pullThree.bind("inproc://reuse3");
+            push.connect("inproc://reuse3");
+
+            assertEquals(0, poller.register(pullOne, ZMQ.Poller.POLLIN));
+            assertEquals(1, poller.register(pullTwo, ZMQ.Poller.POLLIN));
+            poller.unregister(pullOne);
+            poller.unregister(pullOne);
+            assertNull(poller.getItem(0));
+            assertEquals(0, poller.register(pullThree, ZMQ.Poller.POLLIN));
+            assertEquals(2, poller.register(pullOne, ZMQ.Poller.POLLIN));
+            assertEquals(3, poller.getNext());
+
+            push.send("x".getBytes(), 0);
+            assertEquals(1, poller.poll(1000));
+            assertTrue(poller.pollin(0));
+            assertFalse(poller.pollin(1));
+            assertFalse(poller.pollin(2));
+        } finally {
+            push.setLinger(0);
+            push.close();
+            pullOne.close();
+            pullTwo.close();
+            pullThree.close();
+            context.term();
+        }
+    }
+
+    @Test
+    public void testPollerNativePollSet() {
+        Context context = ZMQ.context(1);
+        Socket push = context.socket(ZMQ.PUSH);
+        Socket pullOne = context.socket(ZMQ.PULL);
+        Socket pullTwo = context.socket(ZMQ.PULL);
+        Poller poller = new ZMQ.Poller(1, true);
+        try {
+            pullOne.bind("inproc://pollset1");
+            pullTwo.bind("inproc://pollset2");
+            push.connect("inproc://pollset2");
+
+            assertEquals(0, poller.register(pullOne, ZMQ.Poller.POLLIN));
+            assertEquals(1, poller.register(pullTwo, ZMQ.Poller.POLLIN));
+            assertEquals(0, poller.poll(0));
+            assertEquals(0, poller.getReady().remaining());
+
+            push.send("x".getBytes(), 0);
+            assertEquals(1, poller.poll(1000));
+            IntBuffer ready = poller.getReady();
+            assertEquals(2, ready.remaining());
+            assertEquals(1, ready.get(0));
+            assertEquals(ZMQ.Poller.POLLIN, ready.get(1));
+            assertFalse(poller.pollin(0));
+            assertTrue(poller.pollin(1));
+
+            poller.unregister(pullOne);
+            assertEquals(1, poller.poll(0));
+            assertTrue(poller.pollin(1));
+
+            pullTwo.recv(0);
+            assertEquals(0, poller.poll(0));
+            assertFalse(poller.pollin(1));
+        } finally {
+            poller.close();
+            push.setLinger(0);
+            push.close();
+            pullOne.close();
+            pullTwo.close();
+            context.term();
+        }
+    }
+
     @Test(expected = ZMQException.class)
     public void testPollingInvalidSockets() {
         Context context = ZMQ.context(1);